@@ -0,0 +1,88 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Noise kernel that uses the vector API to evaluate a sample per lane.
+ * The lattice hash, the fade polynomial and the interpolation are done in
+ * the same order as the scalar code, so the results are identical.
+ *
+ * This class needs a modern JDK and is only built with the simd profile.
+ * It is loaded through reflection by {@link PerlinNoise}.
+ */
+class VectorNoiseKernel implements NoiseKernel {
+    /**
+     * The widest double vector the hardware supports
+     */
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Integer vectors with the same amount of lanes as DOUBLES
+     */
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(
+        int.class, VectorShape.forBitSize(DOUBLES.length() * Integer.SIZE));
+
+    /**
+     * The lattice hash of ValueNoise, for every lane.
+     * @return values in the range [-1,1]
+     */
+    private DoubleVector random2d(IntVector x, int y, int seed) {
+        IntVector n = x.add(y * 57).mul(seed);
+        n = n.lanewise(VectorOperators.XOR, n.lanewise(VectorOperators.LSHL, 13));
+        IntVector nn = n.mul(n.mul(n).mul(60493).add(19990303)).add(1376312589).and(0x7fffffff);
+        DoubleVector value = (DoubleVector) nn.convertShape(VectorOperators.I2D, DOUBLES, 0);
+        return DoubleVector.broadcast(DOUBLES, 1.0).sub(value.div(1073741824.0));
+    }
+
+    /**
+     * The fade polynomial of PerlinNoise, for every lane.
+     */
+    private DoubleVector fade(DoubleVector f) {
+        return f.mul(f).mul(f).mul(f.mul(f.mul(6).sub(15)).add(10));
+    }
+
+    /**
+     * Linear interpolation, for every lane.
+     */
+    private DoubleVector lerp(DoubleVector v1, DoubleVector v2, DoubleVector factor) {
+        return v1.mul(DoubleVector.broadcast(DOUBLES, 1).sub(factor)).add(v2.mul(factor));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int addValueNoiseRow(int seed, double[] xs, int n, double y, double amplitude, double[] sums, int offset) {
+        int yFloored = (int) (Math.floor(y));
+        DoubleVector yFade = DoubleVector.broadcast(DOUBLES, y - yFloored);
+        yFade = fade(yFade);
+
+        int bound = DOUBLES.loopBound(n);
+        for (int i = 0; i < bound; i += DOUBLES.length()) {
+            DoubleVector x = DoubleVector.fromArray(DOUBLES, xs, i);
+
+            // Floor: truncate, then correct the negative values
+            IntVector xFloored = (IntVector) x.convertShape(VectorOperators.D2I, INTS, 0);
+            DoubleVector truncated = (DoubleVector) xFloored.convertShape(VectorOperators.I2D, DOUBLES, 0);
+            VectorMask<Double> below = x.lt(truncated);
+            xFloored = xFloored.sub(1, below.cast(INTS));
+            DoubleVector floored = (DoubleVector) xFloored.convertShape(VectorOperators.I2D, DOUBLES, 0);
+
+            DoubleVector topLeft = random2d(xFloored, yFloored, seed);
+            DoubleVector topRight = random2d(xFloored.add(1), yFloored, seed);
+            DoubleVector bottomLeft = random2d(xFloored, yFloored + 1, seed);
+            DoubleVector bottomRight = random2d(xFloored.add(1), yFloored + 1, seed);
+
+            DoubleVector xFade = fade(x.sub(floored));
+            DoubleVector top = lerp(topLeft, topRight, xFade);
+            DoubleVector bottom = lerp(bottomLeft, bottomRight, xFade);
+
+            DoubleVector sum = DoubleVector.fromArray(DOUBLES, sums, offset + i);
+            sum.add(lerp(top, bottom, yFade).mul(amplitude)).intoArray(sums, offset + i);
+        }
+
+        return bound;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Gradient noise, as described by Ken Perlin.
+ * Every lattice point has a pseudo-random gradient, which is picked with a
+ * permutation table that is shuffled once from the seed.
+ */
+class GradientNoise implements NoiseBackend {
+    /**
+     * The gradients a lattice point can have.
+     */
+    private static final double[][] GRADIENTS = {
+        { 1, 1 }, {-1, 1 }, { 1,-1 }, {-1,-1 },
+        { 1, 0 }, {-1, 0 }, { 0, 1 }, { 0,-1 }
+    };
+
+    /**
+     * The permutation table, repeated twice so it can be indexed without wrapping.
+     */
+    private final int[] permutation = new int[512];
+
+    /**
+     * @param seed A number to base the noise on.
+     */
+    public GradientNoise(int seed) {
+        PerlinNoise.shuffle(permutation, seed);
+    }
+
+    /**
+     * @return The index of the gradient of a lattice point
+     */
+    private int gradient(int x, int y) {
+        return permutation[permutation[x & 255] + (y & 255)] & 7;
+    }
+
+    /**
+     * @return The dot product of a gradient with the offset to its lattice point
+     */
+    private double dot(int gradient, double x, double y) {
+        return GRADIENTS[gradient][0] * x + GRADIENTS[gradient][1] * y;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y) {
+        int xFloored = (int) (Math.floor(x));
+        int yFloored = (int) (Math.floor(y));
+        double fx = x - xFloored;
+        double fy = y - yFloored;
+
+        double topLeft = dot(gradient(xFloored, yFloored), fx, fy);
+        double topRight = dot(gradient(xFloored + 1, yFloored), fx - 1, fy);
+        double bottomLeft = dot(gradient(xFloored, yFloored + 1), fx, fy - 1);
+        double bottomRight = dot(gradient(xFloored + 1, yFloored + 1), fx - 1, fy - 1);
+
+        double top = PerlinNoise.interpolate(topLeft, topRight, fx);
+        double bottom = PerlinNoise.interpolate(bottomLeft, bottomRight, fx);
+        return PerlinNoise.interpolate(top, bottom, fy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y, double[] derivative) {
+        int xFloored = (int) (Math.floor(x));
+        int yFloored = (int) (Math.floor(y));
+        double fx = x - xFloored;
+        double fy = y - yFloored;
+
+        double[] g00 = GRADIENTS[gradient(xFloored, yFloored)];
+        double[] g10 = GRADIENTS[gradient(xFloored + 1, yFloored)];
+        double[] g01 = GRADIENTS[gradient(xFloored, yFloored + 1)];
+        double[] g11 = GRADIENTS[gradient(xFloored + 1, yFloored + 1)];
+
+        double a = g00[0] * fx + g00[1] * fy;
+        double b = g10[0] * (fx - 1) + g10[1] * fy;
+        double c = g01[0] * fx + g01[1] * (fy - 1);
+        double d = g11[0] * (fx - 1) + g11[1] * (fy - 1);
+
+        double u = PerlinNoise.fade(fx);
+        double v = PerlinNoise.fade(fy);
+        double du = PerlinNoise.fadeDerivative(fx);
+        double dv = PerlinNoise.fadeDerivative(fy);
+
+        // n = a + u(b - a) + v(c - a) + uv(a - b - c + d)
+        double k = a - b - c + d;
+        derivative[0] = g00[0] + u * (g10[0] - g00[0]) + v * (g01[0] - g00[0])
+                + u * v * (g00[0] - g10[0] - g01[0] + g11[0])
+                + du * ((b - a) + v * k);
+        derivative[1] = g00[1] + u * (g10[1] - g00[1]) + v * (g01[1] - g00[1])
+                + u * v * (g00[1] - g10[1] - g01[1] + g11[1])
+                + dv * ((c - a) + u * k);
+
+        return a + u * (b - a) + v * (c - a) + u * v * k;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addRow(double[] xs, int n, double y, double amplitude, double[] sums, int offset) {
+        int yFloored = (int) (Math.floor(y));
+        double fy = y - yFloored;
+        double yFade = PerlinNoise.fade(fy);
+
+        // The gradients of the cell that is currently being sampled
+        int cellX = Integer.MIN_VALUE;
+        int topLeft = 0, topRight = 0, bottomLeft = 0, bottomRight = 0;
+
+        for (int i = 0; i < n; i++) {
+            int xFloored = (int) (Math.floor(xs[i]));
+
+            // Only look up the gradients that were not used by the previous sample
+            if (xFloored == cellX + 1) {
+                topLeft = topRight;
+                bottomLeft = bottomRight;
+                topRight = gradient(xFloored + 1, yFloored);
+                bottomRight = gradient(xFloored + 1, yFloored + 1);
+            } else if (xFloored != cellX) {
+                topLeft = gradient(xFloored, yFloored);
+                topRight = gradient(xFloored + 1, yFloored);
+                bottomLeft = gradient(xFloored, yFloored + 1);
+                bottomRight = gradient(xFloored + 1, yFloored + 1);
+            }
+            cellX = xFloored;
+
+            double fx = xs[i] - xFloored;
+            double xFade = PerlinNoise.fade(fx);
+            double top = PerlinNoise.lerp(dot(topLeft, fx, fy), dot(topRight, fx - 1, fy), xFade);
+            double bottom = PerlinNoise.lerp(dot(bottomLeft, fx, fy - 1), dot(bottomRight, fx - 1, fy - 1), xFade);
+            sums[offset + i] += PerlinNoise.lerp(top, bottom, yFade) * amplitude;
+        }
+    }
+}
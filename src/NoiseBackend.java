@@ -0,0 +1,30 @@
+/**
+ * A single octave of 2D coherent noise.
+ * {@link PerlinNoise} sums several octaves of a backend into a fractal noise.
+ */
+interface NoiseBackend {
+    /**
+     * Calculates the noise value at a point.
+     * @return a continious value in the range [-1,1]
+     */
+    double noise(double x, double y);
+
+    /**
+     * Calculates the noise value and its partial derivatives at a point.
+     * @param derivative Array of at least two values, receives dN/dx and dN/dy.
+     * @return a continious value in the range [-1,1]
+     */
+    double noise(double x, double y, double[] derivative);
+
+    /**
+     * Adds the noise values of a row of points to a sum.
+     * Backends can use this to share work between neighbouring points.
+     * @param xs The x coordinates of the points, in ascending order
+     * @param n The amount of points in the row
+     * @param y The y coordinate of the row
+     * @param amplitude The factor the noise values are multiplied with
+     * @param sums The sums to add the values to
+     * @param offset The index in sums of the first point
+     */
+    void addRow(double[] xs, int n, double y, double amplitude, double[] sums, int offset);
+}
@@ -0,0 +1,14 @@
+/**
+ * A bulk implementation of the noise that evaluates several samples at once.
+ * Kernels are optional, {@link PerlinNoise#getKernel()} returns null when no
+ * kernel can be loaded and the scalar code is used instead.
+ */
+interface NoiseKernel {
+    /**
+     * Adds value noise to a row of samples, see {@link NoiseBackend#addRow}.
+     * The kernel may leave the last few samples of the row to the caller.
+     * @param seed The seed of the value noise
+     * @return The amount of samples that were processed, starting at the first one
+     */
+    int addValueNoiseRow(int seed, double[] xs, int n, double y, double amplitude, double[] sums, int offset);
+}
@@ -17,26 +17,113 @@ IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
 CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 */
 
+import java.util.Random;
+
 /**
 * A 2D noise which is based on the perlin noise.
-* Currently it is not complete as it does not use gradients.
+* Several octaves of a noise backend are added together.
 * @author wokste
 */
 class PerlinNoise {
+    /**
+     * The available noise backends.
+     */
+    public enum Type {
+        /**
+         * Interpolated random values. Does not use gradients.
+         */
+        VALUE,
+        /**
+         * Perlin's gradient noise.
+         */
+        GRADIENT,
+        /**
+         * Simplex noise.
+         */
+        SIMPLEX
+    }
+
+    /**
+     * The name of the class of the optional vector kernel
+     */
+    private static final String KERNEL_CLASS = "VectorNoiseKernel";
+
+    /**
+     * The vector kernel, null when it is not available
+     */
+    private static final NoiseKernel kernel = loadKernel();
+
     int seed;
     int octaves;
     double scale;
 
     /**
-     * Simple constructor
+     * The noise that is used for every octave
+     */
+    private final NoiseBackend backend;
+
+    /**
+     * The frequency and amplitude of every octave, computed once.
+     */
+    private final double[] frequencies;
+    private final double[] amplitudes;
+
+    /**
+     * Simple constructor, uses value noise.
      * @param newSeed A number to base the terrain on. This should be random
      * @param newOctaves How much details the terrain should have. Take 5.
      * @param newScale The scale. Use the maximum size of mountains you want to have.
      */
     public PerlinNoise(int newSeed, int newOctaves, double newScale) {
+        this(newSeed, newOctaves, newScale, Type.VALUE);
+    }
+
+    /**
+     * @param newSeed A number to base the terrain on. This should be random
+     * @param newOctaves How much details the terrain should have. Take 5.
+     * @param newScale The scale. Use the maximum size of mountains you want to have.
+     * @param type The noise backend to use.
+     */
+    public PerlinNoise(int newSeed, int newOctaves, double newScale, Type type) {
         seed = newSeed;
         octaves = newOctaves;
         scale = newScale;
+
+        switch (type) {
+            case GRADIENT:  backend = new GradientNoise(seed); break;
+            case SIMPLEX:   backend = new SimplexNoise(seed);  break;
+            default:        backend = new ValueNoise(seed);    break;
+        }
+
+        frequencies = new double[octaves];
+        amplitudes = new double[octaves];
+        for (int i = 0; i < octaves; i++) {
+            frequencies[i] = Math.pow(2, i);
+            amplitudes[i] = Math.pow(0.4, i);
+        }
+    }
+
+    /**
+     * Tries to load the vector kernel. It is only there when the program is
+     * built with the simd profile, and it only works when the
+     * jdk.incubator.vector module is added to the runtime.
+     * @return The kernel, or null to fall back to scalar code
+     */
+    private static NoiseKernel loadKernel() {
+        try {
+            return (NoiseKernel) Class.forName(KERNEL_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The vector kernel, or null when it is not available
+     */
+    static NoiseKernel getKernel() {
+        return kernel;
     }
 
     /**
@@ -46,43 +133,55 @@ class PerlinNoise {
      * @param factor a value within the range [0, 1]
      * @return a value in the range [v1, v2]
      */
-    private double interpolate(double v1, double v2, double factor) {
-        // Use a higher order polynomial interpolation factor.
-        // This stops the code from generating sharp corners.
-        factor = factor * factor * factor * (factor * (factor * 6 - 15) + 10);
-        return v1 * (1 - factor) + v2 * factor;
+    static double interpolate(double v1, double v2, double factor) {
+        return lerp(v1, v2, fade(factor));
+    }
+
+    /**
+     * Use a higher order polynomial interpolation factor.
+     * This stops the code from generating sharp corners.
+     * @param factor a value within the range [0, 1]
+     * @return the smoothed factor, also in the range [0, 1]
+     */
+    static double fade(double factor) {
+        return factor * factor * factor * (factor * (factor * 6 - 15) + 10);
     }
 
     /**
-     * This function generates a pseudo-random number based on: x, y and the seed.
-     * It is based on prime magic.
-     * @return a value in the range [-1,1]
+     * The derivative of the fade function.
+     * @param factor a value within the range [0, 1]
      */
-    private double random2d(int x, int y) {
-        int n = x + y * 57;
-        n *= seed;
-        n ^= n << 13;
-        int nn = (n * (n * n * 60493 + 19990303) + 1376312589) & 0x7fffffff;
-        return 1.0 - ((double) nn / 1073741824.0);
+    static double fadeDerivative(double factor) {
+        return 30 * factor * factor * (factor - 1) * (factor - 1);
     }
 
     /**
-     * Calculates 1 octave of the noise2d function
-     * @return a continious value in the range [-1,1]
+     * Linear interpolation between two values.
      */
-    private double noiseIteration2d(double x, double y) {
-        // Get random values for the four corners
-        int xFloored = (int) (Math.floor(x));
-        int yFloored = (int) (Math.floor(y));
-        double topLeft = random2d(xFloored, yFloored);
-        double topRight = random2d(xFloored + 1, yFloored);
-        double bottomLeft = random2d(xFloored, yFloored + 1);
-        double bottomRight = random2d(xFloored + 1, yFloored + 1);
+    static double lerp(double v1, double v2, double factor) {
+        return v1 * (1 - factor) + v2 * factor;
+    }
 
-        // Interpolate the four corners.
-        double top = interpolate(topLeft, topRight, x - xFloored);
-        double bottom = interpolate(bottomLeft, bottomRight, x - xFloored);
-        return interpolate(top, bottom, y - yFloored);
+    /**
+     * Fills a permutation table with a random order of the numbers 0 - 255.
+     * The table is repeated, so it has to have a length of 512.
+     * @param permutation The table to fill
+     * @param seed The seed of the random order
+     */
+    static void shuffle(int[] permutation, int seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < 256; i++) {
+            permutation[i] = i;
+        }
+        for (int i = 255; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        for (int i = 0; i < 256; i++) {
+            permutation[i + 256] = permutation[i];
+        }
     }
 
     /**
@@ -94,10 +193,99 @@ class PerlinNoise {
         y /= scale;
         double sum = 0;
         for (int i = 0; i < octaves; i++) {
-            double frequency = Math.pow(2, i);
-            double amplitude = Math.pow(0.4, i);
-            sum += noiseIteration2d(x * frequency, y * frequency) * amplitude;
+            sum += backend.noise(x * frequencies[i], y * frequencies[i]) * amplitudes[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Get the noise value of a given x and y coordinates, together with its
+     * partial derivatives. This is a single pass over the octaves.
+     * @param derivative Array of at least two values, receives dN/dx and dN/dy.
+     * @return the noise value.
+     */
+    public double noise2d(double x, double y, double[] derivative) {
+        return noise2d(x, y, derivative, new double[2]);
+    }
+
+    /**
+     * noise2d with the derivative, with room for the derivative of an octave
+     * given by the caller so it can be reused between points.
+     */
+    private double noise2d(double x, double y, double[] derivative, double[] octave) {
+        x /= scale;
+        y /= scale;
+        double sum = 0;
+        double dx = 0;
+        double dy = 0;
+        for (int i = 0; i < octaves; i++) {
+            sum += backend.noise(x * frequencies[i], y * frequencies[i], octave) * amplitudes[i];
+
+            // The octave is sampled at frequency / scale times the input
+            dx += octave[0] * amplitudes[i] * frequencies[i] / scale;
+            dy += octave[1] * amplitudes[i] * frequencies[i] / scale;
         }
+        derivative[0] = dx;
+        derivative[1] = dy;
         return sum;
     }
+
+    /**
+     * Fills a grid with noise values. This gives the same values as calling
+     * noise2d for every point, but the backend can reuse work between
+     * neighbouring samples.
+     * @param x0 The x coordinate of the first sample
+     * @param y0 The y coordinate of the first sample
+     * @param step The distance between two samples
+     * @param nx The amount of samples in the x direction
+     * @param ny The amount of samples in the y direction
+     * @param out The array to store the values in, row by row. Must hold nx * ny values.
+     */
+    public void fillGrid(double x0, double y0, double step, int nx, int ny, float[] out) {
+        if (out.length < nx * ny) {
+            throw new IllegalArgumentException("Output array is too small.");
+        }
+
+        double[] sums = new double[nx * ny];
+        double[] xs = new double[nx];
+
+        for (int i = 0; i < octaves; i++) {
+            double frequency = frequencies[i];
+
+            // The x coordinates of the columns are the same for every row
+            for (int ix = 0; ix < nx; ix++) {
+                xs[ix] = (x0 + ix * step) / scale * frequency;
+            }
+
+            for (int iy = 0; iy < ny; iy++) {
+                double y = (y0 + iy * step) / scale * frequency;
+                backend.addRow(xs, nx, y, amplitudes[i], sums, iy * nx);
+            }
+        }
+
+        for (int i = 0; i < nx * ny; i++) {
+            out[i] = (float) sums[i];
+        }
+    }
+
+    /**
+     * Fills a grid with the partial derivatives of the noise, at the same
+     * points as fillGrid.
+     * @param out The array to store dN/dx and dN/dy of every sample in, row by row. Must hold 2 * nx * ny values.
+     */
+    public void fillGradientGrid(double x0, double y0, double step, int nx, int ny, float[] out) {
+        if (out.length < 2 * nx * ny) {
+            throw new IllegalArgumentException("Output array is too small.");
+        }
+
+        double[] derivative = new double[2];
+        double[] octave = new double[2];
+        for (int iy = 0; iy < ny; iy++) {
+            for (int ix = 0; ix < nx; ix++) {
+                noise2d(x0 + ix * step, y0 + iy * step, derivative, octave);
+                out[2 * (iy * nx + ix)] = (float) derivative[0];
+                out[2 * (iy * nx + ix) + 1] = (float) derivative[1];
+            }
+        }
+    }
 }
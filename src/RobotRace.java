@@ -2,7 +2,19 @@ import java.awt.Color;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import robotrace.Base;
@@ -15,9 +27,29 @@ import robotrace.Vector;
  */
 public class RobotRace extends Base {
     /**
-     * Array of the four robots.
+     * The robots in the race.
      */
-    private final Robot[] robots;
+    private final RobotStore robots;
+
+    /**
+     * How all robots are built.
+     */
+    private final Robot robot;
+
+    /**
+     * Draws the robots.
+     */
+    private final RobotRenderer robotRenderer;
+
+    /**
+     * The pose of the robot that is drawn as a stick figure
+     */
+    private final float [] stickPose = new float[16 * Robot.PARTS];
+
+    /**
+     * The meshes of the parts of the robots, shared by all robots.
+     */
+    private final MeshCache meshCache = new MeshCache();
 
     /**
      * The camera that is used to render the scene from the user perspective
@@ -39,6 +71,27 @@ public class RobotRace extends Base {
      */
     private final RaceTrack raceTrack;
 
+    /**
+     * The track parameter, the point on the curve and the frame of the track
+     * at every robot. These are computed once per frame, for all robots at once.
+     */
+    private final double [] robotParameters;
+    private final double [] robotPoints;
+    private final double [] robotTangents;
+    private final double [] robotLaterals;
+    private final double [] robotUps;
+
+    /**
+     * Room for the transformation of a single robot
+     */
+    private final double [] robotMatrix = new double[16];
+
+    /**
+     * The time and track the robot positions were computed for
+     */
+    private float robotTime = Float.NaN;
+    private int robotTrack = -1;
+
     /**
      * Instance of the terrain.
      */
@@ -49,27 +102,47 @@ public class RobotRace extends Base {
      * terrain.
      */
     public RobotRace() {
+        this(0);
+    }
+
+    /**
+     * Constructs this robot race by initializing robots, camera, track, and
+     * terrain.
+     * @param crowd The amount of robots that race along with the four robots
+     */
+    public RobotRace(int crowd) {
 
-        // Create a new array of four robots
-        robots = new Robot[] {
-            /// Instantiate swag robot
-            new Robot(Material.GOLD,4).setNeckModifier(2.f).setSpeed(50f),
+        // Create the four robots
+        robots = new RobotStore();
+        /// Instantiate swag robot
+        robots.add(Material.GOLD, 4, 50f, 2.f);
 
-            // Instantiate bender, kiss my shiny metal ass
-            new Robot(Material.SILVER,3).setSpeed(56f),
+        // Instantiate bender, kiss my shiny metal ass
+        robots.add(Material.SILVER, 3, 56f, 1.f);
 
-            // Instantiate oldschool robot
-            new Robot(Material.WOOD,2).setNeckModifier(0.5f).setSpeed(51f),
+        // Instantiate oldschool robot
+        robots.add(Material.WOOD, 2, 51f, 0.5f);
 
-            // Hey look at me, I'm an annoying orange robot!
-            new Robot(Material.ORANGE,1).setSpeed(53f)
-        };
+        // Hey look at me, I'm an annoying orange robot!
+        robots.add(Material.ORANGE, 1, 53f, 1.f);
+
+        robots.addCrowd(crowd, 42);
+
+        robot = new Robot();
+        robotRenderer = new RobotRenderer();
+
+        robotParameters = new double[robots.getCount()];
+        robotPoints = new double[3 * robots.getCount()];
+        robotTangents = new double[3 * robots.getCount()];
+        robotLaterals = new double[3 * robots.getCount()];
+        robotUps = new double[3 * robots.getCount()];
 
         // Initialize the cameras
         mainCamera = new Camera();
         camera = mainCamera;
 
         screenCamera = new Camera();
+        screenCamera.detail = .5f;
 
         // Initialize the race track
         raceTrack = new RaceTrack();
@@ -158,6 +231,9 @@ public class RobotRace extends Base {
         screenCamera.frameBuffer.create();
         screenCamera.onChangeMode(3);
 
+        // Create the shader of the robots
+        robotRenderer.create();
+
     }
 
     /**
@@ -210,6 +286,9 @@ public class RobotRace extends Base {
             )
         ) * 2.f;
 
+        // The height in pixels of something of size 1 at distance 1
+        camera.projectionScale = dimensions.h() * vDist / vHeight;
+
         // Initialize perspective from calculated values
         glu.gluPerspective(
             (float) Math.toDegrees(fovY),
@@ -272,8 +351,8 @@ public class RobotRace extends Base {
         if(raceTrack.getCurrentCurve() != gs.trackNr) {
             raceTrack.setCurrentCurve(gs.trackNr);
 
-            // Recompute the terrain, needed to make it not stick through the track
-            terrain.recomputeGeometry();
+            // Switch the terrain, needed to make it not stick through the track
+            terrain.setTrack(gs.trackNr);
         }
 
         // Draw as the main camera
@@ -283,6 +362,81 @@ public class RobotRace extends Base {
         drawAs(screenCamera);
     }
 
+    /**
+     * Computes where all the robots are, if that is not done yet for this frame
+     */
+    private void updateRobots() {
+        int track = raceTrack.getCurrentCurve();
+        if(robotTime == gs.tAnim && robotTrack == track) {
+            return;
+        }
+        robotTime = gs.tAnim;
+        robotTrack = track;
+
+        for(int i = 0; i < robots.getCount(); i++) {
+            robotParameters[i] = gs.tAnim/robots.speeds[i];
+        }
+        raceTrack.evaluate(robotParameters, robotPoints, robotTangents, robotLaterals, robotUps);
+    }
+
+    /**
+     * @return The track parameter of a robot
+     */
+    private float getRobotParameter(int i) {
+        updateRobots();
+        return (float)robotParameters[i];
+    }
+
+    /**
+     * @return The position of a robot, in the middle of its lane
+     */
+    private Vector getRobotPosition(int i) {
+        return new Vector(getRobotPosition(i, 0), getRobotPosition(i, 1), getRobotPosition(i, 2));
+    }
+
+    /**
+     * @return One coordinate of the position of a robot, without making a vector
+     */
+    private double getRobotPosition(int i, int k) {
+        updateRobots();
+
+        // The lanes are towards the outside of the track
+        return robotPoints[3*i+k] + robotLaterals[3*i+k] * (.5f+robots.lanes[i]);
+    }
+
+    /**
+     * @return The direction of a robot
+     */
+    private Vector getRobotTangent(int i) {
+        updateRobots();
+        return new Vector(robotTangents[3*i], robotTangents[3*i+1], robotTangents[3*i+2]);
+    }
+
+    /**
+     * @return The direction towards the outside of the track at a robot
+     */
+    private Vector getRobotLateral(int i) {
+        updateRobots();
+        return new Vector(robotLaterals[3*i], robotLaterals[3*i+1], robotLaterals[3*i+2]);
+    }
+
+    /**
+     * @return The transformation that puts a robot in its lane, in column
+     * major order. The robot looks along the track, with its x axis towards
+     * the outside and its z axis up from the track.
+     */
+    private double [] getRobotMatrix(int i) {
+        for(int k = 0; k < 3; k++) {
+            robotMatrix[k]      = robotLaterals[3*i+k];
+            robotMatrix[4 + k]  = robotTangents[3*i+k];
+            robotMatrix[8 + k]  = robotUps[3*i+k];
+            robotMatrix[12 + k] = getRobotPosition(i, k);
+        }
+        robotMatrix[3] = robotMatrix[7] = robotMatrix[11] = 0;
+        robotMatrix[15] = 1;
+        return robotMatrix;
+    }
+
     /**
      * Draw as a certain camera
      */
@@ -376,31 +530,22 @@ public class RobotRace extends Base {
         gl.glEnable(gl.GL_LIGHTING);
 
         // Draw all robots
-        int i = 0;
-        for(Robot bob : robots) {
-            gl.glPushMatrix();
-                // Draw bob, all our robots are named bob
-                float t = gs.tAnim/robots[i].getSpeed();
-                Vector position = raceTrack.getPoint(t);
-                Vector tangent = raceTrack.getTangent(t);
-                
-                // Center in the correct lane
-                position = position.add(
-                    tangent.cross(Vector.Z).normalized().scale(.5f+i++)
-                );
-                
-                // Move into position
-                gl.glTranslated(position.x(), position.y(), position.z());
+        if(gs.showStick) {
+            for(int i = 0; i < robots.getCount(); i++) {
+                gl.glPushMatrix();
+                    // Draw bob, all our robots are named bob, centered in the correct lane
+                    robot.pose(getRobotParameter(i), robots.phases[i], robots.necks[i], stickPose);
 
-                // Rotate
-                gl.glRotatef(
-                    (float)Math.toDegrees(Math.atan(tangent.y() / tangent.x())) + (tangent.x() < 0 ? 90 : -90),
-                    0.f, 0.f, 1.f
-                );
-                
-                // Draw
-                bob.draw(gs.showStick, t);
-            gl.glPopMatrix();
+                    // Move into position, and rotate along the track
+                    gl.glMultMatrixd(getRobotMatrix(i), 0);
+
+                    // Draw
+                    robots.getMaterial(i).set(gl);
+                    robot.drawStick(stickPose, robots.textures[i]);
+                gl.glPopMatrix();
+            }
+        } else {
+            robotRenderer.draw(camera);
         }
 
         // Draw race track
@@ -570,1620 +715,4337 @@ public class RobotRace extends Base {
       
     /**
      * Represents a Robot, to be implemented according to the Assignments.
+     * All robots are built the same way, the robots in the race only differ
+     * in the properties that are kept in the robot store.
      */
     private class Robot {
-        /**
-         * The material from which this robot is built.
-         */        
-        private Material material = null;
+        // The mother of all magic numbers
+        private static final float VAKJE                   = 0.1f;
+        private static final float SHOULDER_OVERLAP_MAGIC  = 1.f;
+
+        private static final float TORSO_HEIGHT            = 5     *VAKJE;
+        private static final float TORSO_THICKNESS         = 1.5f  *VAKJE;
+        private static final float SHOULDER_HEIGHT         = 2     *VAKJE;
+        private static final float SHOULDER_WIDTH          = TORSO_HEIGHT;
+        private static final float NECK_WIDTH              = 0.5f  *VAKJE;
+        private static final float HEAD_HEIGHT             = 3     *VAKJE;
+        private static final float HEAD_WIDTH              = 2     *VAKJE;
+        private static final float SHOUlDER_JOINT_HEIGHT   = 1     *VAKJE;
+        private static final float SHOULDER_JOINT_WIDTH    = 1.3f  *VAKJE;
+        private static final float ARM_PART_LENGTH         = 4     *VAKJE;
+        private static final float LEG_PART_LENGTH         = 5     *VAKJE;
+        private static final float TORSO_BOTTOM_HEIGHT     = 1.5f  *VAKJE;
+        private static final float TORSO_BOTTOM_WIDTH      = 0.95f *TORSO_HEIGHT;
+        private static final float FEET_LENGTH             = 2.f   *VAKJE;
+
+        private static final int PRECISION                 = 40;
+
+        private static final float ARM_WIDTH               = SHOULDER_JOINT_WIDTH * 0.8f;
+        private static final float ELBOW_JOINT_WIDTH       = SHOULDER_JOINT_WIDTH;
+        private static final float ARM_HEIGHT              = ARM_WIDTH * 0.8f;
+
+        private static final float LEG_WIDTH               = ARM_WIDTH;
+        private static final float KNEE_JOINT_WIDTH        = ELBOW_JOINT_WIDTH;
+        private static final float KNEE_JOINT_HEIGHT       = SHOUlDER_JOINT_HEIGHT;
+        private static final float LEG_HEIGHT              = LEG_WIDTH * 0.8f;
+        private static final float FEET_HEIGHT             = KNEE_JOINT_HEIGHT;
+        private static final float FEET_WIDTH              = LEG_WIDTH;
+
+        private static final float TORSO_RELATIVE_HEIGHT   = 2*LEG_PART_LENGTH+TORSO_HEIGHT/2+TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC)+KNEE_JOINT_HEIGHT/2;
 
         /**
-         * Speed of the robot
+         * The size of a robot with a normal neck, from the feet to the top of the head
          */
-        private float speedModifier = 80;
-        
+        static final float HEIGHT                          = TORSO_RELATIVE_HEIGHT+TORSO_HEIGHT/2+SHOULDER_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC)+SHOULDER_HEIGHT/2+VAKJE+HEAD_HEIGHT;
+
         /**
-         * Identifying digit of the robot
+         * The amount of parts a robot is made of, and the amount of different meshes they use
          */
-        public int id;
-        
+        static final int PARTS                             = 27;
+        static final int MESHES                            = 9;
+
         /**
-         * Material specification of different parts of the robot
+         * The meshes of the parts. The hips, joints, shoulders and neck all
+         * use the body mesh, there are two kinds of leg and arm parts.
          */
-        Material headColor = null;
-        Material neckColor = null;
-        Material shoulderColor = null;
-        Material chestColor = null;
-        Material hipColor = null;
+        static final int TORSO_MESH                        = 0;
+        static final int BODY_MESH                         = 1;
+        static final int HEAD_MESH                         = 2;
+        static final int SPHERE_MESH                       = 3;
+        static final int FOOT_MESH                         = 4;
+        static final int LEG_MESH                          = 5;
+        static final int ARM_MESH                          = 7;
 
-        Material legColor = null;
+        /**
+         * The amount of robot textures below each other in the texture file
+         */
+        static final int TEXTURES                          = 5;
 
-        Material [] singleLegColor = new Material[] {
-            legColor,
-            legColor
-        };
+        /**
+         * The mesh of every part, in the order pose puts them
+         */
+        private final int [] partMeshes = new int[PARTS];
 
-        Material [][] legPartColor = new Material[][] {
-            singleLegColor,
-            singleLegColor,
-        };
+        /**
+         * The transformations of the joints while posing
+         */
+        private final MatrixStack stack = new MatrixStack();
 
-        Material [][] legJointColor = new Material[][] {
-            singleLegColor,
-            singleLegColor,
-        };
+        /**
+         * The amount of parts that have been posed so far
+         */
+        private int posedParts;
 
-        Material[][] armPartColor   = legPartColor;
-        Material[][] armJointColor  = legJointColor;
+        /**
+         * The amount of poses that are kept of a step
+         */
+        static final int POSES                             = 64;
 
-        Material [] footColor = new Material[] {
-            legColor,
-            legColor,
-        };
+        /**
+         * The poses at evenly spread moments of a step, for every neck length
+         * of the robot store. A part takes the 12 numbers of the top three
+         * rows of its transformation, the bottom row is always the same.
+         */
+        private float [][] poses = new float[0][];
 
-        float neckHeightModifier = 1.f;
+        /**
+         * @return The mesh the part is drawn with
+         */
+        public int getPartMesh(int part) {
+            return partMeshes[part];
+        }
 
         /**
-         * Change the materials that are set to the default material
-         * @param material The material to change to
+         * @return The kind of primitives a mesh is made of
          */
-        public void setDefaultMaterial(Material material) {
-            headColor           = headColor         == this.material ? material : headColor;
-            neckColor           = neckColor         == this.material ? material : neckColor;
-            shoulderColor       = shoulderColor     == this.material ? material : shoulderColor;
-            chestColor          = chestColor        == this.material ? material : chestColor;
-            hipColor            = hipColor          == this.material ? material : hipColor;
-            legColor            = legColor          == this.material ? material : legColor;
-            singleLegColor[0]   = singleLegColor[0] == this.material ? material : singleLegColor[0];
-            singleLegColor[1]   = singleLegColor[1] == this.material ? material : singleLegColor[1];
-            footColor[0]        = footColor[0]      == this.material ? material : footColor[0];
-            footColor[1]        = footColor[1]      == this.material ? material : footColor[1];
-            this.material = material;
+        public int getMeshMode(int mesh) {
+            return mesh == FOOT_MESH ? gl.GL_TRIANGLE_STRIP : gl.GL_TRIANGLES;
         }
 
         /**
-         * Constructs the robot with initial parameters.
-         * @param material The default material
+         * Looks up the meshes of a robot, with the texture coordinates of one
+         * of the textures. The meshes have a unit size, the pose scales them.
+         * @param texture The texture of the robot
+         * @param steps The amount of pieces around of the round parts
+         * @param meshes Receives the meshes, at the mesh indices
          */
-        public Robot(Material material, int id) {
-            setDefaultMaterial(material);
-            this.id = id;
+        public void findMeshes(int texture, int steps, VBO [] meshes) {
+            meshes[TORSO_MESH]  = meshCache.get(Shape.CYLINDER_FRONT, steps, 0, 168, 420*texture+252, 420*texture+252+168);
+            meshes[BODY_MESH]   = meshCache.get(Shape.CYLINDER, steps, 150, 250, 420*texture, 420*texture+100);
+            meshes[HEAD_MESH]   = meshCache.get(Shape.CYLINDER, steps, 108, 108+260, 420*texture+147, 420*texture+147+105);
+            meshes[SPHERE_MESH] = meshCache.get(Shape.SPHERE, steps, 0, 0, 0, 0);
+            meshes[FOOT_MESH]   = meshCache.get(Shape.FOOT, 0, 600, 650, texture*420, texture*420 + 50);
+            findLimbMeshes(texture, meshes);
+        }
 
+        /**
+         * Looks up the meshes of a robot that is only made of boxes. The
+         * cylinders become boxes around them, the joint ends and the feet are
+         * left out, and are set to null.
+         * @param texture The texture of the robot
+         * @param meshes Receives the meshes, at the mesh indices
+         */
+        public void findProxyMeshes(int texture, VBO [] meshes) {
+            meshes[TORSO_MESH]  = meshCache.get(Shape.BOX, 0, 0, 168, 420*texture+252, 420*texture+252+168);
+            meshes[BODY_MESH]   = meshCache.get(Shape.BOX, 0, 150, 250, 420*texture, 420*texture+100);
+            meshes[HEAD_MESH]   = meshCache.get(Shape.BOX, 0, 108, 108+260, 420*texture+147, 420*texture+147+105);
+            meshes[SPHERE_MESH] = null;
+            meshes[FOOT_MESH]   = null;
+            findLimbMeshes(texture, meshes);
         }
-        
+
         /**
-         * Sets the speed of the robot
-         * @param speed
+         * Looks up the meshes of the arms and legs, they are boxes for every level of detail
          */
-        public Robot setSpeed(float speed){
-            this.speedModifier = speed;
-            return this;
+        private void findLimbMeshes(int texture, VBO [] meshes) {
+            for(int j = 0; j < 2; j++) {
+                meshes[LEG_MESH + j] = meshCache.get(Shape.BOX, 0, 0+j*60, 60+j*60, texture*420, texture*420+252);
+                meshes[ARM_MESH + j] = meshCache.get(Shape.BOX, 0, 344+j*54, 344+54+j*54, texture*420+252, texture*420+420);
+            }
         }
 
         /**
-         * @return The speed of the robot
+         * @return Whether a mesh is round, and is a box around a unit cylinder in the proxy
          */
-        public float getSpeed(){
-            return speedModifier;
+        public boolean isRound(int mesh) {
+            return mesh == TORSO_MESH || mesh == BODY_MESH || mesh == HEAD_MESH;
         }
 
         /**
-         * Set the material of the head
-         * @param material The material to set it to
-         * @return this for method chaining
+         * @return Whether a mesh is part of the robot that is only made of boxes
          */
-        public Robot setHeadMaterial(Material material) {
-            this.headColor = material;
-            return this;
+        public boolean isInProxy(int mesh) {
+            return mesh != SPHERE_MESH && mesh != FOOT_MESH;
         }
 
         /**
-         * Set the neck modifier
-         * @param neckHeightModifier The modifier to set on the neck
-         * @return this for method chaining
+         * @return The size of a robot from the feet to the top of the head
          */
-        public Robot setNeckModifier(float neckHeightModifier) {
-            this.neckHeightModifier = neckHeightModifier;
-            return this;
+        public float getHeight(float neckHeightModifier) {
+            return HEIGHT + (neckHeightModifier - 1) * VAKJE;
         }
-        
-        /*public Vector getPos(){
-            return new Vector(posX,posY,posZ);
-        }*/
 
         /**
-         * Draws the robot.
-         * "It works"
-         * @param stickFigure Whether to draw this robot as a stick figure
+         * Finds where every part of the robot is, relative to the robot. The
+         * pose is interpolated between the two nearest poses that are kept.
          * @param t The position in the cycle (0 - 1), used for animation.
+         * @param phase The part of a step the robot is ahead of others (0 - 1)
+         * @param neck The neck length, an index in the neck lengths of the robot store
+         * @param parts Receives the transformation of every part, column major,
+         * including the scale of the unit mesh of the part
          */
-        
-        public void draw(boolean stickFigure, float t) {
-            // The magic number, TODO: calculate this somehow
-            t *= 100 * Math.PI;
-
-            // The mother of all magic numbers
-            final float VAKJE                   = 0.1f;
-            final float SHOULDER_OVERLAP_MAGIC  = 1.f;
+        public void pose(float t, float phase, int neck, float [] parts) {
+            float [] table = getPoses(neck);
 
-            final float TORSO_HEIGHT            = 5     *VAKJE;
-            final float TORSO_THICKNESS         = 1.5f  *VAKJE;
-            final float SHOULDER_HEIGHT         = 2     *VAKJE;
-            final float SHOULDER_WIDTH          = TORSO_HEIGHT;
-            final float NECK_HEIGHT             = 1     *VAKJE  *neckHeightModifier;
-            final float NECK_WIDTH              = 0.5f  *VAKJE;
-            final float HEAD_HEIGHT             = 3     *VAKJE;
-            final float HEAD_WIDTH              = 2     *VAKJE;
-            final float SHOUlDER_JOINT_HEIGHT   = 1     *VAKJE;
-            final float SHOULDER_JOINT_WIDTH    = 1.3f  *VAKJE;
-            final float ARM_PART_LENGTH         = 4     *VAKJE;
-            final float LEG_PART_LENGTH         = 5     *VAKJE;
-            final float TORSO_BOTTOM_HEIGHT     = 1.5f  *VAKJE;
-            final float TORSO_BOTTOM_WIDTH      = 0.95f *TORSO_HEIGHT;
-            final float FEET_LENGTH             = 2.f   *VAKJE;
-
-            final int PRECISION                 = 40;
-            final int PRECISION2                = PRECISION+1;
-
-            final float ARM_WIDTH               = SHOULDER_JOINT_WIDTH * 0.8f;
-            final float ELBOW_JOINT_WIDTH       = SHOULDER_JOINT_WIDTH;
-            final float ARM_HEIGHT              = ARM_WIDTH * 0.8f;
-
-            final float LEG_WIDTH               = ARM_WIDTH;
-            final float KNEE_JOINT_WIDTH        = ELBOW_JOINT_WIDTH;
-            final float KNEE_JOINT_HEIGHT       = SHOUlDER_JOINT_HEIGHT;
-            final float LEG_HEIGHT              = LEG_WIDTH * 0.8f;
-            final float FEET_HEIGHT             = KNEE_JOINT_HEIGHT;
-            final float FEET_WIDTH              = LEG_WIDTH;
-
-            final float TORSO_RELATIVE_HEIGHT   = 2*LEG_PART_LENGTH+TORSO_HEIGHT/2+TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC)+KNEE_JOINT_HEIGHT/2;
-        
-            
-            
-            gl.glPushMatrix();
-                // Move up till torso level
-                gl.glTranslatef(0.f, 0.f, TORSO_RELATIVE_HEIGHT);
+            // The magic number, TODO: calculate this somehow
+            // A step takes 2 pi / (100 pi) of the cycle
+            double position = (50.0 * t + phase) * POSES;
+            position -= POSES * Math.floor(position / POSES);
+
+            int first = Math.min((int)position, POSES - 1);
+            int second = (first + 1) % POSES;
+            float factor = (float)(position - first);
+
+            for(int part = 0; part < PARTS; part++) {
+                int from = 12 * (PARTS * first + part), to = 12 * (PARTS * second + part);
+                for(int column = 0; column < 4; column++) {
+                    for(int row = 0; row < 3; row++) {
+                        float a = table[from + 3*column + row], b = table[to + 3*column + row];
+                        parts[16*part + 4*column + row] = a + (b - a) * factor;
+                    }
+                    parts[16*part + 4*column + 3] = column == 3 ? 1 : 0;
+                }
+            }
+        }
 
-                // Draw the torso
-                gl.glPushMatrix();
-                    gl.glTranslatef(0.f, TORSO_THICKNESS/2, 0.f);
-                    gl.glRotatef(90, 1.f, 0.f, 0.f);
-
-                    chestColor.set(gl);
-
-                    if(stickFigure) {
-                        gl.glBegin(gl.GL_LINES);
-                            gl.glVertex3f(0.f, (TORSO_HEIGHT+SHOULDER_HEIGHT)/2, TORSO_THICKNESS/2);
-                            gl.glVertex3f(0.f, TORSO_HEIGHT/2, 0.f);
-                            gl.glVertex3f(0.f, TORSO_HEIGHT/2, 0.f);
-                            gl.glVertex3f(0.f, 0.f, 0.f);
-                            gl.glVertex3f(0.f, 0.f, 0.f);
-                            gl.glVertex3f(0.f, -TORSO_HEIGHT/2, 0.f);
-                            gl.glVertex3f(0.f, -TORSO_HEIGHT/2, 0.f);
-                            gl.glVertex3f(0.f, -TORSO_HEIGHT/2-TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC), TORSO_THICKNESS/2);
-                        gl.glEnd();
-                    } else {
-                        //glut.glutSolidCylinder(TORSO_HEIGHT/2, TORSO_THICKNESS, PRECISION, PRECISION2);
-                        drawCylinderFront(TORSO_HEIGHT/2, TORSO_THICKNESS, PRECISION, 0, 168, 420*id+252, 420*id+252+168);
+        /**
+         * @return The poses of a step, they are computed the first time a neck length is used
+         */
+        private float [] getPoses(int neck) {
+            if(neck >= poses.length) {
+                poses = Arrays.copyOf(poses, robots.getNeckCount());
+            }
+            float [] table = poses[neck];
+            if(table == null) {
+                table = new float[12 * PARTS * POSES];
+                float [] parts = new float[16 * PARTS];
+                for(int k = 0; k < POSES; k++) {
+                    computePose(2 * Math.PI * k / POSES, robots.neckLengths[neck], parts);
+                    for(int part = 0; part < PARTS; part++) {
+                        for(int column = 0; column < 4; column++) {
+                            System.arraycopy(parts, 16*part + 4*column, table, 12 * (PARTS * k + part) + 3*column, 3);
+                        }
                     }
-                gl.glPopMatrix();
+                }
+                poses[neck] = table;
+            }
+            return table;
+        }
 
-                gl.glPushMatrix();
-                    // Draw the hips
-                    gl.glPushMatrix();
-                        gl.glTranslatef(0.f, 0.f, -TORSO_HEIGHT/2-TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
-                        gl.glTranslatef(-TORSO_BOTTOM_WIDTH/2, 0.f, 0.f);
-                        gl.glRotatef(90, 0.f, 1.f, 0.f);
+        /**
+         * Computes where every part of the robot is, relative to the robot.
+         * "It works"
+         * @param t The angle in the step (0 - 2 pi)
+         * @param neckHeightModifier How long the neck is
+         * @param parts Receives the transformation of every part
+         */
+        private void computePose(double t, float neckHeightModifier, float [] parts) {
+            final float NECK_HEIGHT             = 1     *VAKJE  *neckHeightModifier;
 
-                        hipColor.set(gl);
-                        if(stickFigure) {
-                            gl.glBegin(gl.GL_LINES);
-                                gl.glVertex3f(0.f, 0.f, 0);
-                                gl.glVertex3f(0.f, 0.f, TORSO_BOTTOM_WIDTH);
-                            gl.glEnd();
-                        } else {
-                            //glut.glutSolidCylinder(TORSO_BOTTOM_HEIGHT/2, TORSO_BOTTOM_WIDTH, PRECISION, PRECISION2);
-                            drawCylinder(TORSO_BOTTOM_HEIGHT/2, TORSO_BOTTOM_WIDTH, PRECISION, 150, 250, 420*id, 420*id+100);
-                        }
-                    gl.glPopMatrix();
+            MatrixStack m = stack;
+            m.loadIdentity();
+            posedParts = 0;
 
-                    // Draw the legs
-                    gl.glTranslatef(0.f, 0.f, -TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
+            m.push();
+                // Move up till torso level
+                m.translate(0.f, 0.f, TORSO_RELATIVE_HEIGHT);
+
+                // The torso
+                m.push();
+                    m.translate(0.f, TORSO_THICKNESS/2, 0.f);
+                    m.rotate(90, 1.f, 0.f, 0.f);
+                    addPart(parts, TORSO_MESH, TORSO_HEIGHT/2, TORSO_HEIGHT/2, TORSO_THICKNESS);
+                m.pop();
+
+                m.push();
+                    // The hips
+                    m.push();
+                        m.translate(0.f, 0.f, -TORSO_HEIGHT/2-TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
+                        m.translate(-TORSO_BOTTOM_WIDTH/2, 0.f, 0.f);
+                        m.rotate(90, 0.f, 1.f, 0.f);
+                        addPart(parts, BODY_MESH, TORSO_BOTTOM_HEIGHT/2, TORSO_BOTTOM_HEIGHT/2, TORSO_BOTTOM_WIDTH);
+                    m.pop();
+
+                    // The legs
+                    m.translate(0.f, 0.f, -TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
                     for(int i = 0; i < 2; i++)
                     {
-                        gl.glPushMatrix();
-                            gl.glTranslatef(0.f, 0.f, -TORSO_HEIGHT/2);
+                        m.push();
+                            m.translate(0.f, 0.f, -TORSO_HEIGHT/2);
                             double r = 25 * Math.sin(t) * (i == 0 ? 1 : -1);
-                            gl.glRotatef((float)r, 1.f, 0.f, 0.f);
+                            m.rotate((float)r, 1.f, 0.f, 0.f);
 
                             // Mirror to the other side on the 2nd leg
                             if(i == 1) {
-                                gl.glScalef(-1.f, 1.f, 1.f);
+                                m.scale(-1.f, 1.f, 1.f);
                             }
 
-                            gl.glTranslatef(TORSO_BOTTOM_WIDTH/2-3*LEG_WIDTH/4,0.f,0.f);
+                            m.translate(TORSO_BOTTOM_WIDTH/2-3*LEG_WIDTH/4,0.f,0.f);
                             for(int j = 0; j < 2; j++)
                             {
-                                // Draw a  leg part
+                                // A leg part
                                 if(j==1){
-                                gl.glRotatef(-1.5f*(float)(r), 1.f, 0.f, 0.f);
-                                }
-                                
-                                gl.glPushMatrix();
-                                    gl.glTranslatef(0.f, 0.f, -LEG_PART_LENGTH/2);
-                                    gl.glScalef(LEG_WIDTH, LEG_HEIGHT, LEG_PART_LENGTH);
-
-                                    legPartColor[i][j].set(gl);
-
-                                    if(stickFigure) {
-                                        gl.glBegin(gl.GL_LINES);
-                                            gl.glVertex3f(0.f, 0.f, 0.f);
-                                            gl.glVertex3f(0.f, 0.f, 0.5f);
-                                            gl.glVertex3f(0.f, 0.f, 0.f);
-                                            gl.glVertex3f(0.f, 0.f, -0.5f);
-                                        gl.glEnd();
-                                    } else {
-                                        drawBox(gl, 1.0f, 0, 0+j*60, 60+j*60, id*420, id*420+252);
-                                    }
-                                gl.glPopMatrix();
-
-                                gl.glTranslatef(0.f, 0.f, -LEG_PART_LENGTH);
-
-                                // Draw a leg joint
-                                gl.glPushMatrix();
-                                    gl.glTranslatef(-KNEE_JOINT_WIDTH/2, 0.f, 0.f);
-                                    gl.glRotatef(90, 0.f, 1.f, 0.f);
-                                    legJointColor[i][j].set(gl);
-                                    if(stickFigure) {
-                                        gl.glBegin(gl.GL_LINES);
-                                            gl.glVertex3f(0.f, 0.f, 0.f);
-                                            gl.glVertex3f(0.f, 0.f, KNEE_JOINT_WIDTH);
-                                        gl.glEnd();
-                                    } else {
-                                        //glut.glutSolidCylinder(KNEE_JOINT_HEIGHT/2, KNEE_JOINT_WIDTH, PRECISION, PRECISION2);
-                                        drawCylinder(KNEE_JOINT_HEIGHT/2, KNEE_JOINT_WIDTH, PRECISION, 150, 250, 420*id, 420*id+100);
-                                    }
-                                gl.glPopMatrix();
-
-                                if(j == 0) {
-                                    gl.glRotatef((float)-Math.abs(r) * 1.2f, 1.f, 0.f, 0.f);
-                                }
-                            }
-
-                            // Draw a foot
-                            gl.glRotatef(90, 0.f, 0.f, 1.f);
-                            gl.glTranslatef(0.f, -KNEE_JOINT_WIDTH/2.5f, -KNEE_JOINT_HEIGHT/2);
-                            gl.glScalef(FEET_LENGTH, FEET_WIDTH, FEET_HEIGHT);
-
-                            footColor[i].set(gl);
-
-                            /* Feet look like this:
-                             * z=1  __ ==\
-                             *  \==--      \
-                             *  | \   ---    \
-                             *  |   \    ---   \
-                             *  |     \      --==\
-                             *  |       \   __
-                             *  =========/==
-                             *  O        x=1
-                             */
-
-                             // Draw a stick figure or a triangle strip depending on the mode
-                            gl.glEnable(gl.GL_TEXTURE_2D);
-                            torso.bind(gl);
-                            //gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, gl.GL_RGB, dimensions.w(), dimensions.h(), 0, gl.GL_RGB, gl.GL_UNSIGNED_BYTE, null);
-                            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
-                            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
-                            
-                            float textureX = 600;
-                            float textureX2 = 650;
-                            float textureY = id*420;
-                            float textureY2 = id*420 + 50;
-                            
-                            float deltaX = 720;
-                            float deltaY = 2100;
-                            
-                             gl.glBegin(stickFigure ? gl.GL_LINE_STRIP : gl.GL_TRIANGLE_STRIP);
-                                // Left side
-                                gl.glNormal3f(0.f, -1.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 0.f, 0.f);
-                                gl.glNormal3f((float)Math.sqrt(2), -1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 0.f, 0.f);
-                                gl.glNormal3f((float)Math.sqrt(2), -1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 0.f, 1.f);
-
-                                //Front quad
-                                gl.glNormal3f((float)Math.sqrt(2), 1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 1.f, 0.f);
-                                gl.glNormal3f((float)Math.sqrt(2)-1.f, 1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 1.f, 1.f);
-
-                                //Right side
-                                gl.glNormal3f(-1.f, 1.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 1.f, 0.f);
-
-                                //Back side
-                                gl.glNormal3f(-1.f, 0.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 0.f, 1.f);
-                                gl.glNormal3f(-1.f, 0.f, -1.f); gl.glTexCoord2f(textureX/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 0.f, 0.f);
-                                gl.glNormal3f(-1.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 1.f, 0.f);
-
-                                //Bottom side
-                                gl.glNormal3f(0.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 0.f, 0.f);
-                                gl.glNormal3f(0.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY2/deltaY); gl.glVertex3f(1.f, 1.f, 0.f);
-
-                                // Stick figure needs additional vertexes
-                                if(stickFigure) {
-                                    gl.glVertex3f(1.f, 0.f, 0.f);
-                                    gl.glVertex3f(1.f, 1.f, 0.f);
-                                    gl.glVertex3f(0.f, 1.f, 0.f);
-                                    gl.glVertex3f(0.f, 1.f, 1.f);
-                                    gl.glVertex3f(0.f, 0.f, 1.f);
+                                    m.rotate(-1.5f*(float)(r), 1.f, 0.f, 0.f);
                                 }
-                            gl.glEnd();
-                          gl.glDisable(gl.GL_TEXTURE_2D);
-                        gl.glPopMatrix();
-                    }
-                gl.glPopMatrix();
-
-                // Draw the shoulders
-                gl.glTranslatef(0.f, 0.f, TORSO_HEIGHT/2+SHOULDER_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
-                gl.glPushMatrix();
-                    gl.glTranslatef(-SHOULDER_WIDTH/2, 0.f, 0.f);
-                    gl.glRotatef(90, 0.f, 1.f, 0.f);
-
-                    shoulderColor.set(gl);
-
-                    if(stickFigure) {
-                        gl.glBegin(gl.GL_LINES);
-                            gl.glVertex3f(0.f, 0.f, 0.f);
-                            gl.glVertex3f(0.f, 0.f, SHOULDER_WIDTH);
-                        gl.glEnd();
-                    } else {
-                        //glut.glutSolidCylinder(SHOULDER_HEIGHT/2, SHOULDER_WIDTH, PRECISION, PRECISION2);
-                        drawCylinder(SHOULDER_HEIGHT/2, SHOULDER_WIDTH, PRECISION, 150, 250, 420*id, 420*id+100);
-                    }
-                gl.glPopMatrix();
 
-                //Draw the neck
-                gl.glPushMatrix();
-                    neckColor.set(gl);
+                                m.push();
+                                    m.translate(0.f, 0.f, -LEG_PART_LENGTH/2);
+                                    addPart(parts, LEG_MESH + j, LEG_WIDTH, LEG_HEIGHT, LEG_PART_LENGTH);
+                                m.pop();
 
-                    if(stickFigure) {
-                        gl.glBegin(gl.GL_LINES);
-                            gl.glVertex3f(0.f, 0.f, 0.f);
-                            gl.glVertex3f(0.f, 0.f, NECK_HEIGHT+SHOULDER_HEIGHT/2);
-                        gl.glEnd();
-                    } else {
-                        //glut.glutSolidCylinder(NECK_WIDTH/2 ,NECK_HEIGHT+SHOULDER_HEIGHT/2, PRECISION, PRECISION2);
-                        drawCylinder(NECK_WIDTH/2 ,NECK_HEIGHT+SHOULDER_HEIGHT/2, PRECISION, 150, 250, 420*id, 420*id+100);
-                    }
-                gl.glPopMatrix();
+                                m.translate(0.f, 0.f, -LEG_PART_LENGTH);
 
-                // Draw the head
-                gl.glPushMatrix();
-                    gl.glTranslatef(0.f, 0.f, NECK_HEIGHT+SHOULDER_HEIGHT/2);
+                                // A leg joint
+                                m.push();
+                                    m.translate(-KNEE_JOINT_WIDTH/2, 0.f, 0.f);
+                                    m.rotate(90, 0.f, 1.f, 0.f);
+                                    addPart(parts, BODY_MESH, SHOUlDER_JOINT_HEIGHT/2, SHOUlDER_JOINT_HEIGHT/2, KNEE_JOINT_WIDTH);
+                                m.pop();
 
-                    headColor.set(gl);
+                                if(j == 0) {
+                                    m.rotate((float)-Math.abs(r) * 1.2f, 1.f, 0.f, 0.f);
+                                }
+                            }
 
-                    if(stickFigure) {
-                        gl.glBegin(gl.GL_LINES);
-                            gl.glVertex3f(0.f, 0.f, 0.f);
-                            gl.glVertex3f(0.f, 0.f, HEAD_HEIGHT);
-                        gl.glEnd();
-                    } else {
-                        //glut.glutSolidCylinder(HEAD_WIDTH/2, HEAD_HEIGHT, PRECISION, PRECISION2);
-                        gl.glRotated(-90, 0, 0, 1);
-                        drawCylinder(HEAD_WIDTH/2, HEAD_HEIGHT, PRECISION, 108, 108+260, 420*id+147, 420*id+147+105);
+                            // A foot
+                            m.rotate(90, 0.f, 0.f, 1.f);
+                            m.translate(0.f, -KNEE_JOINT_WIDTH/2.5f, -KNEE_JOINT_HEIGHT/2);
+                            addPart(parts, FOOT_MESH, FEET_LENGTH, FEET_WIDTH, FEET_HEIGHT);
+                        m.pop();
                     }
-                gl.glPopMatrix();
-
-                // Draw the arms
+                m.pop();
+
+                // The shoulders
+                m.translate(0.f, 0.f, TORSO_HEIGHT/2+SHOULDER_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC));
+                m.push();
+                    m.translate(-SHOULDER_WIDTH/2, 0.f, 0.f);
+                    m.rotate(90, 0.f, 1.f, 0.f);
+                    addPart(parts, BODY_MESH, SHOULDER_HEIGHT/2, SHOULDER_HEIGHT/2, SHOULDER_WIDTH);
+                m.pop();
+
+                // The neck
+                addPart(parts, BODY_MESH, NECK_WIDTH/2, NECK_WIDTH/2, NECK_HEIGHT+SHOULDER_HEIGHT/2);
+
+                // The head
+                m.push();
+                    m.translate(0.f, 0.f, NECK_HEIGHT+SHOULDER_HEIGHT/2);
+                    m.rotate(-90, 0.f, 0.f, 1.f);
+                    addPart(parts, HEAD_MESH, HEAD_WIDTH/2, HEAD_WIDTH/2, HEAD_HEIGHT);
+                m.pop();
+
+                // The arms
                 for(int i = 0; i < 2; i++)
                 {
-                    gl.glPushMatrix();
-                        shoulderColor.set(gl);
-
+                    m.push();
                         double r = - 25 * Math.sin(t) * (i == 0 ? 1 : -1);//set angle of arm
-                        gl.glRotatef((float)r, 1.f, 0.f, 0.f);
-                        
+                        m.rotate((float)r, 1.f, 0.f, 0.f);
+
                         // Mirror the 2nd arm
                         if(i == 1) {
-                            gl.glScalef(-1.f, 1.f, 1.f);
+                            m.scale(-1.f, 1.f, 1.f);
                         }
 
-                        gl.glTranslatef(SHOULDER_WIDTH/2, 0.f, 0.f);
-
-                        // Draw the shoulder joint
-                        gl.glPushMatrix();
-                            gl.glRotatef(90, 0.f, 1.f, 0.f);
+                        m.translate(SHOULDER_WIDTH/2, 0.f, 0.f);
 
-                            if(stickFigure) {
-                                gl.glBegin(gl.GL_LINES);
-                                    gl.glVertex3f(0.f, 0.f, 0.f);
-                                    gl.glVertex3f(0.f, 0.f, SHOULDER_JOINT_WIDTH);
-                                gl.glEnd();
-                            } else {
-                                //glut.glutSolidCylinder(SHOUlDER_JOINT_HEIGHT/2, SHOULDER_JOINT_WIDTH, PRECISION, PRECISION2);
-                                drawCylinder(SHOUlDER_JOINT_HEIGHT/2, SHOULDER_JOINT_WIDTH, PRECISION, 150, 250, 420*id, 420*id+100);
-                            }
-                        gl.glPopMatrix();
+                        // The shoulder joint
+                        m.push();
+                            m.rotate(90, 0.f, 1.f, 0.f);
+                            addPart(parts, BODY_MESH, SHOUlDER_JOINT_HEIGHT/2, SHOUlDER_JOINT_HEIGHT/2, SHOULDER_JOINT_WIDTH);
+                        m.pop();
 
-                        gl.glTranslatef(SHOULDER_JOINT_WIDTH, 0.f, 0.f);
+                        m.translate(SHOULDER_JOINT_WIDTH, 0.f, 0.f);
 
-                        // Draw the shoulder joint joint end
-                        if(stickFigure) {
-                            gl.glBegin(gl.GL_LINES);
-                                gl.glVertex3f(0.f, 0.f, -SHOUlDER_JOINT_HEIGHT/3);
-                                gl.glVertex3f(0.f, 0.f, SHOUlDER_JOINT_HEIGHT/3);
-                            gl.glEnd();
-                        } else {
-                            glut.glutSolidSphere(SHOUlDER_JOINT_HEIGHT/3, PRECISION, PRECISION2);
-                        }
+                        // The shoulder joint joint end
+                        addPart(parts, SPHERE_MESH, SHOUlDER_JOINT_HEIGHT/3, SHOUlDER_JOINT_HEIGHT/3, SHOUlDER_JOINT_HEIGHT/3);
 
-                        gl.glTranslatef(-SHOULDER_JOINT_WIDTH/2, 0.f, 0.f);
+                        m.translate(-SHOULDER_JOINT_WIDTH/2, 0.f, 0.f);
 
-                        // Draw the actual arms
+                        // The actual arms
                         for(int j = 0; j < 2; j++)
                         {
-                            armPartColor[i][j].set(gl);
-
                             if(j==1){
-                                gl.glRotatef(20-(float)(0.25f*r), 1.f, 0.f, 0.f);//set angle of arm
+                                m.rotate(20-(float)(0.25f*r), 1.f, 0.f, 0.f);//set angle of arm
                             }
-                            // Draw the arm part
-                            gl.glPushMatrix();
-                                gl.glTranslatef(0.f, 0.f, -ARM_PART_LENGTH/2);
-                                gl.glScalef(ARM_WIDTH, ARM_HEIGHT, ARM_PART_LENGTH);
-
-                                
-                                if(stickFigure) {
-                                    gl.glBegin(gl.GL_LINES);
-                                        gl.glVertex3f(0.f, 0.f, -1.f);
-                                        gl.glVertex3f(0.f, 0.f, 1.f);
-                                    gl.glEnd();
-                                } else {
-                                    //glut.glutSolidCube(1.f);
-                                    drawBox(gl, 1.0f, 0, 344+j*54, 344+54+j*54, id*420+252, id*420+420);
-                                }
-                            gl.glPopMatrix();
+                            // The arm part
+                            m.push();
+                                m.translate(0.f, 0.f, -ARM_PART_LENGTH/2);
+                                addPart(parts, ARM_MESH + j, ARM_WIDTH, ARM_HEIGHT, ARM_PART_LENGTH);
+                            m.pop();
+
+                            m.translate(0.f, 0.f, -ARM_PART_LENGTH);
+
+                            // The arm joint
+                            m.push();
+                                m.translate(-ELBOW_JOINT_WIDTH/2, 0.f, 0.f);
+                                m.rotate(90, 0.f, 1.f, 0.f);
+                                addPart(parts, BODY_MESH, SHOUlDER_JOINT_HEIGHT/2, SHOUlDER_JOINT_HEIGHT/2, ELBOW_JOINT_WIDTH);
+                            m.pop();
+                        }
+                    m.pop();
+                }
+            m.pop();
+        }
 
-                            armJointColor[i][j].set(gl);
+        /**
+         * Stores the current transformation as the next part, scaled to the size of the part
+         */
+        private void addPart(float [] parts, int mesh, float scaleX, float scaleY, float scaleZ) {
+            partMeshes[posedParts] = mesh;
+            stack.get(parts, 16 * posedParts++, scaleX, scaleY, scaleZ);
+        }
 
-                            gl.glTranslatef(0.f, 0.f, -ARM_PART_LENGTH);
+        /**
+         * Draws a robot as a stick figure. Every part is drawn as lines in the
+         * unit size of its mesh, so the pose puts them in the right place.
+         * @param parts The pose of the robot
+         * @param texture The texture of the robot, used for the feet
+         */
+        public void drawStick(float [] parts, int texture) {
+            for(int part = 0; part < PARTS; part++) {
+                gl.glPushMatrix();
+                    gl.glMultMatrixf(parts, 16 * part);
 
-                            // Draw the arm joint
-                            gl.glPushMatrix();
-                                gl.glTranslatef(-ELBOW_JOINT_WIDTH/2, 0.f, 0.f);
-                                gl.glRotatef(90, 0.f, 1.f, 0.f);
+                    switch(partMeshes[part]) {
+                        case TORSO_MESH:
+                            gl.glBegin(gl.GL_LINES);
+                                gl.glVertex3f(0.f, (TORSO_HEIGHT+SHOULDER_HEIGHT)/TORSO_HEIGHT, 0.5f);
+                                gl.glVertex3f(0.f, 1.f, 0.f);
+                                gl.glVertex3f(0.f, 1.f, 0.f);
+                                gl.glVertex3f(0.f, 0.f, 0.f);
+                                gl.glVertex3f(0.f, 0.f, 0.f);
+                                gl.glVertex3f(0.f, -1.f, 0.f);
+                                gl.glVertex3f(0.f, -1.f, 0.f);
+                                gl.glVertex3f(0.f, -1.f-TORSO_BOTTOM_HEIGHT/(2+SHOULDER_OVERLAP_MAGIC)/(TORSO_HEIGHT/2), 0.5f);
+                            gl.glEnd();
+                            break;
+                        case FOOT_MESH:
+                            drawFootStick(texture);
+                            break;
+                        case LEG_MESH:
+                        case LEG_MESH + 1:
+                            gl.glBegin(gl.GL_LINES);
+                                gl.glVertex3f(0.f, 0.f, 0.f);
+                                gl.glVertex3f(0.f, 0.f, 0.5f);
+                                gl.glVertex3f(0.f, 0.f, 0.f);
+                                gl.glVertex3f(0.f, 0.f, -0.5f);
+                            gl.glEnd();
+                            break;
+                        case ARM_MESH:
+                        case ARM_MESH + 1:
+                        case SPHERE_MESH:
+                            gl.glBegin(gl.GL_LINES);
+                                gl.glVertex3f(0.f, 0.f, -1.f);
+                                gl.glVertex3f(0.f, 0.f, 1.f);
+                            gl.glEnd();
+                            break;
+                        default:
+                            // The cylinders, along their axis
+                            gl.glBegin(gl.GL_LINES);
+                                gl.glVertex3f(0.f, 0.f, 0.f);
+                                gl.glVertex3f(0.f, 0.f, 1.f);
+                            gl.glEnd();
+                            break;
+                    }
+                gl.glPopMatrix();
+            }
+        }
 
-                                if(stickFigure) {
-                                    gl.glBegin(gl.GL_LINES);
-                                        gl.glVertex3f(0.f, 0.f, 0.f);
-                                        gl.glVertex3f(0.f, 0.f, ELBOW_JOINT_WIDTH);
-                                    gl.glEnd();
-                                } else {
-                                    //glut.glutSolidCylinder(SHOUlDER_JOINT_HEIGHT/2, ELBOW_JOINT_WIDTH, PRECISION, PRECISION2);
-                                    drawCylinder(SHOUlDER_JOINT_HEIGHT/2, ELBOW_JOINT_WIDTH, PRECISION, 150, 250, 420*id, 420*id+100);
-                                }
-                            gl.glPopMatrix();
-                        }
-                    gl.glPopMatrix();
-                }
-            gl.glPopMatrix();
+        /**
+         * Draws a foot as lines
+         */
+        private void drawFootStick(int texture) {
+            /* Feet look like this:
+             * z=1  __ ==\
+             *  \==--      \
+             *  | \   ---    \
+             *  |   \    ---   \
+             *  |     \      --==\
+             *  |       \   __
+             *  =========/==
+             *  O        x=1
+             */
+            gl.glEnable(gl.GL_TEXTURE_2D);
+            torso.bind(gl);
+            //gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, gl.GL_RGB, dimensions.w(), dimensions.h(), 0, gl.GL_RGB, gl.GL_UNSIGNED_BYTE, null);
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
+
+            float textureX = 600;
+            float textureX2 = 650;
+            float textureY = texture*420;
+            float textureY2 = texture*420 + 50;
+
+            float deltaX = 720;
+            float deltaY = 2100;
+
+            gl.glBegin(gl.GL_LINE_STRIP);
+                // Left side
+                gl.glNormal3f(0.f, -1.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 0.f, 0.f);
+                gl.glNormal3f((float)Math.sqrt(2), -1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 0.f, 0.f);
+                gl.glNormal3f((float)Math.sqrt(2), -1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 0.f, 1.f);
+
+                //Front quad
+                gl.glNormal3f((float)Math.sqrt(2), 1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 1.f, 0.f);
+                gl.glNormal3f((float)Math.sqrt(2)-1.f, 1.f, (float)Math.sqrt(2)); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 1.f, 1.f);
+
+                //Right side
+                gl.glNormal3f(-1.f, 1.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 1.f, 0.f);
+
+                //Back side
+                gl.glNormal3f(-1.f, 0.f, 0.f); gl.glTexCoord2f(textureX/deltaX,textureY2/deltaY); gl.glVertex3f(0.f, 0.f, 1.f);
+                gl.glNormal3f(-1.f, 0.f, -1.f); gl.glTexCoord2f(textureX/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 0.f, 0.f);
+                gl.glNormal3f(-1.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(0.f, 1.f, 0.f);
+
+                //Bottom side
+                gl.glNormal3f(0.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY/deltaY); gl.glVertex3f(1.f, 0.f, 0.f);
+                gl.glNormal3f(0.f, 0.f, -1.f); gl.glTexCoord2f(textureX2/deltaX,textureY2/deltaY); gl.glVertex3f(1.f, 1.f, 0.f);
+
+                // Stick figure needs additional vertexes
+                gl.glVertex3f(1.f, 0.f, 0.f);
+                gl.glVertex3f(1.f, 1.f, 0.f);
+                gl.glVertex3f(0.f, 1.f, 0.f);
+                gl.glVertex3f(0.f, 1.f, 1.f);
+                gl.glVertex3f(0.f, 0.f, 1.f);
+            gl.glEnd();
+            gl.glDisable(gl.GL_TEXTURE_2D);
         }
     }
 
     /**
-     * Integral 2D vector used to store the dimensions of the screen.
+     * A stack of transformations like the one of OpenGL, kept on the cpu so
+     * the transformations can be read back. The matrices are column major.
      */
-    public class Dimensions {
+    private class MatrixStack {
+        /**
+         * The deepest the stack can go
+         */
+        private static final int DEPTH = 8;
 
         /**
-         * The actual value
+         * The matrices on the stack, 16 numbers each
          */
-        private int w, h;
+        private final double [] matrices = new double[16 * DEPTH];
 
         /**
-         * Initialize the class with -1
+         * The start of the top matrix
          */
-        public Dimensions() {
-            this(-1, -1);
-        }
+        private int top = 0;
 
         /**
-         * Create a new dimensions class and set the Width and Height
-         * @param w
-         * @param h
+         * Empties the stack, the top is the identity
          */
-        public Dimensions(int w, int h) {
-            set(w, h);
+        public void loadIdentity() {
+            top = 0;
+            for(int k = 0; k < 16; k++) {
+                matrices[k] = k % 5 == 0 ? 1 : 0;
+            }
+        }
+
+        public void push() {
+            System.arraycopy(matrices, top, matrices, top + 16, 16);
+            top += 16;
+        }
+
+        public void pop() {
+            top -= 16;
         }
 
         /**
-         * @return The width
+         * Multiplies the top with a translation, like glTranslate
          */
-        public int w() {
-            return w;
+        public void translate(double x, double y, double z) {
+            for(int k = 0; k < 4; k++) {
+                matrices[top + 12 + k] += x * matrices[top + k] + y * matrices[top + 4 + k] + z * matrices[top + 8 + k];
+            }
         }
 
         /**
-         * @return The height
+         * Multiplies the top with a scale, like glScale
          */
-        public int h() {
-            return h;
+        public void scale(double x, double y, double z) {
+            for(int k = 0; k < 4; k++) {
+                matrices[top + k]       *= x;
+                matrices[top + 4 + k]   *= y;
+                matrices[top + 8 + k]   *= z;
+            }
         }
 
         /**
-         * Set the width and the height.
-         * @param w
-         * @param h
+         * Multiplies the top with a rotation, like glRotate
+         * @param angle The angle in degrees
          */
-        public void set(int w, int h) {
-            this.w = w;
-            this.h = h;
+        public void rotate(double angle, double x, double y, double z) {
+            double length = Math.sqrt(x*x + y*y + z*z);
+            x /= length;
+            y /= length;
+            z /= length;
+
+            double c = Math.cos(Math.toRadians(angle)), s = Math.sin(Math.toRadians(angle));
+            double [][] r = {
+                { x*x*(1-c) + c,    y*x*(1-c) + z*s,    x*z*(1-c) - y*s },
+                { x*y*(1-c) - z*s,  y*y*(1-c) + c,      y*z*(1-c) + x*s },
+                { x*z*(1-c) + y*s,  y*z*(1-c) - x*s,    z*z*(1-c) + c   }
+            };
+
+            for(int k = 0; k < 4; k++) {
+                double a = matrices[top + k], b = matrices[top + 4 + k], d = matrices[top + 8 + k];
+                for(int column = 0; column < 3; column++) {
+                    matrices[top + 4*column + k] = a * r[column][0] + b * r[column][1] + d * r[column][2];
+                }
+            }
         }
 
         /**
-         * @return A string representation of this class
+         * Reads the top, with an extra scale
+         * @param out Receives the 16 numbers of the matrix
+         * @param offset Where the matrix starts in out
          */
-        public String toString() {
-            return "Dimensions{w:"+w+",h:"+h+"}";
+        public void get(float [] out, int offset, double scaleX, double scaleY, double scaleZ) {
+            for(int k = 0; k < 4; k++) {
+                out[offset + k]         = (float)(matrices[top + k] * scaleX);
+                out[offset + 4 + k]     = (float)(matrices[top + 4 + k] * scaleY);
+                out[offset + 8 + k]     = (float)(matrices[top + 8 + k] * scaleZ);
+                out[offset + 12 + k]    = (float)matrices[top + 12 + k];
+            }
+        }
+
+        /**
+         * Multiplies two matrices, out = a b
+         */
+        public void multiply(double [] a, float [] b, int bOffset, float [] out, int outOffset) {
+            for(int column = 0; column < 4; column++) {
+                for(int row = 0; row < 4; row++) {
+                    double sum = 0;
+                    for(int k = 0; k < 4; k++) {
+                        sum += a[4*k + row] * b[bOffset + 4*column + k];
+                    }
+                    out[outOffset + 4*column + row] = (float)sum;
+                }
+            }
         }
     }
 
     /**
-     * Framebuffer, a target to render to
+     * The robots in the race. Every property has its own array, indexed by
+     * robot, so all robots can be walked through without an object per robot.
      */
-    public class FrameBuffer {
+    private class RobotStore {
         /**
-         * The handle of the framebuffer
+         * The amount of lanes on the track
          */
-        private int handle = -1;
+        private static final int LANES = 4;
 
         /**
-         * The handle of the color buffer
+         * The amount of robots
          */
-        private int colorBufferHandle = -1;
+        private int count = 0;
 
         /**
-         * The handle of the depth buffer
+         * The time a robot takes for one lap
          */
-        private int deptBufferHandle = -1;
+        float [] speeds = new float[LANES];
 
         /**
-         * The dimensions of the buffers
+         * The lane of the robot, 0 is the inner lane
          */
-        private Dimensions dimensions = null;
+        int [] lanes = new int[LANES];
 
         /**
-         * Create a new empty frame buffer
+         * The material of the robot, an index in the materials
          */
-        FrameBuffer () {}
+        int [] materials = new int[LANES];
 
         /**
-         * Initialize from an already existing buffer
-         * @param handle The buffer handle. Set to 0 for the default framebuffer.
+         * How long the neck of the robot is
          */
-        FrameBuffer (int handle) {
-            this.handle = handle;
-        }
+        float [] neckModifiers = new float[LANES];
 
         /**
-         * Create the framebuffer
+         * The neck length of the robot, an index in the neck lengths
          */
-        public void create() {
-            // Create a framebuffer
-            {
-                int [] x = new int [1]; // Java is fun
-                gl.glGenFramebuffers(1, x, 0);
-                handle = x[0];
-            }
-
-            // Bind the framebuffer
-            bind();
+        int [] necks = new int[LANES];
 
-            // Create a color buffer
-            {
-                int [] x = new int [1];
-                gl.glGenTextures(1, x, 0);
-                colorBufferHandle = x[0];
-            }
+        /**
+         * The different neck lengths of the robots, so the poses can be
+         * kept per neck length
+         */
+        float [] neckLengths = new float[LANES];
 
-            // Bind the color buffer
-            bindColorBuffer();
+        /**
+         * The amount of different neck lengths
+         */
+        private int neckCount = 0;
 
-            // Make sure dimensions is set to a valid value
-            dimensions = dimensions != null ? dimensions : new Dimensions(1024, 768);
+        /**
+         * The part of a step the robot is ahead of others (0 - 1)
+         */
+        float [] phases = new float[LANES];
 
-            // Set the color buffer to an empty texture
-            gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, gl.GL_RGB, dimensions.w(), dimensions.h(), 0, gl.GL_RGB, gl.GL_UNSIGNED_BYTE, null);
+        /**
+         * The texture of the robot, the row in the robot texture
+         */
+        int [] textures = new int[LANES];
 
-            // Poor filtering. Needed !
-            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_NEAREST);
-            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MIN_FILTER, gl.GL_NEAREST);
+        /**
+         * The materials the robots can have
+         */
+        final Material [] allMaterials = Material.values();
 
-            // Create a depth buffer
-            {
-                int [] x = new int [1];
-                gl.glGenRenderbuffers(1, x, 0);
-                deptBufferHandle = x[0];
+        /**
+         * Adds a robot in the next lane
+         * @param material The material the robot is made of
+         * @param texture The texture of the robot
+         * @param speed The time the robot takes for one lap
+         * @param neckModifier How long the neck is, 1 is normal
+         * @return The index of the robot
+         */
+        public int add(Material material, int texture, float speed, float neckModifier) {
+            if(count == speeds.length) {
+                int capacity = 2 * count;
+                speeds          = Arrays.copyOf(speeds, capacity);
+                lanes           = Arrays.copyOf(lanes, capacity);
+                materials       = Arrays.copyOf(materials, capacity);
+                neckModifiers   = Arrays.copyOf(neckModifiers, capacity);
+                necks           = Arrays.copyOf(necks, capacity);
+                phases          = Arrays.copyOf(phases, capacity);
+                textures        = Arrays.copyOf(textures, capacity);
             }
 
-            // Bind the depth buffer
-            bindDepthBuffer();
-
-            // Set the buffer to an empty depth texture
-            gl.glRenderbufferStorage(gl.GL_RENDERBUFFER, gl.GL_DEPTH_COMPONENT, dimensions.w(), dimensions.h());
-            gl.glFramebufferRenderbuffer(gl.GL_FRAMEBUFFER, gl.GL_DEPTH_ATTACHMENT, gl.GL_RENDERBUFFER, deptBufferHandle);
-
-            // Set color buffer to primary storage
-            gl.glFramebufferTexture2D(gl.GL_FRAMEBUFFER, gl.GL_COLOR_ATTACHMENT0, gl.GL_TEXTURE_2D, colorBufferHandle, 0);
+            speeds[count]           = speed;
+            lanes[count]            = count % LANES;
+            materials[count]        = material.ordinal();
+            neckModifiers[count]    = neckModifier;
+            necks[count]            = findNeck(neckModifier);
+            phases[count]           = 0;
+            textures[count]         = texture;
+            return count++;
+        }
 
-            // Set the list of draw buffers.
-            int [] drawBuffers = new int[1];
-            drawBuffers[0] = gl.GL_COLOR_ATTACHMENT0;
-            gl.glDrawBuffers(1, drawBuffers, 0);
+        /**
+         * Adds a crowd of robots with random properties, spread over the lanes
+         * @param amount The amount of robots to add
+         * @param seed The seed of the random properties
+         */
+        public void addCrowd(int amount, long seed) {
+            Random random = new Random(seed);
+            Material [] crowdMaterials = { Material.GOLD, Material.SILVER, Material.WOOD, Material.ORANGE };
+            float [] crowdNecks = { 0.5f, 1.f, 2.f };
 
-            // Check if everything went well
-            if(gl.glCheckFramebufferStatus(gl.GL_FRAMEBUFFER) != gl.GL_FRAMEBUFFER_COMPLETE) {
-                throw new RuntimeException("Could not create camera buffer");
+            for(int i = 0; i < amount; i++) {
+                int robot = add(
+                    crowdMaterials[random.nextInt(crowdMaterials.length)],
+                    1 + random.nextInt(Robot.TEXTURES - 1),
+                    45 + 15 * random.nextFloat(),
+                    crowdNecks[random.nextInt(crowdNecks.length)]);
+                phases[robot] = random.nextFloat();
             }
         }
 
         /**
-         * Bind the framebuffer
+         * @return The index of a neck length in the neck lengths, it is added if it is new
          */
-        void bind() {
-            gl.glBindFramebuffer(gl.GL_FRAMEBUFFER, handle);
+        private int findNeck(float neckModifier) {
+            for(int neck = 0; neck < neckCount; neck++) {
+                if(neckLengths[neck] == neckModifier) {
+                    return neck;
+                }
+            }
+            if(neckCount == neckLengths.length) {
+                neckLengths = Arrays.copyOf(neckLengths, 2 * neckCount);
+            }
+            neckLengths[neckCount] = neckModifier;
+            return neckCount++;
         }
 
         /**
-         * Bind the color buffer as a texture
+         * @return The amount of robots
          */
-        void bindColorBuffer() {
-            gl.glBindTexture(gl.GL_TEXTURE_2D, colorBufferHandle);
+        public int getCount() {
+            return count;
         }
 
         /**
-         * Bind the depth buffer
+         * @return The amount of different neck lengths
          */
-        void bindDepthBuffer() {
-            gl.glBindRenderbuffer(gl.GL_RENDERBUFFER, deptBufferHandle);
+        public int getNeckCount() {
+            return neckCount;
         }
 
         /**
-         * Get the dimensions of the buffer
+         * @return The material of a robot
          */
-        Dimensions getDimensions() {
-            return dimensions == null ? new Dimensions(gs.w, gs.h) : dimensions;
+        public Material getMaterial(int robot) {
+            return allMaterials[materials[robot]];
         }
     }
 
     /**
-     * Implementation of a camera with a position and orientation.
+     * Draws all the robots of the robot store. The parts of all robots are
+     * collected per mesh, and every mesh is drawn with one instanced draw
+     * call per batch of parts, so the amount of calls does not grow with the
+     * amount of robots. Without instancing the same lists are drawn part by
+     * part, but still with every mesh bound only once.
+     *
+     * Every robot gets a level of detail from its size on the screen of the
+     * camera: round parts with 40, 16 or 8 pieces, only boxes, or a picture
+     * of the robot that always faces the camera. A robot only changes its
+     * level when its size is clearly past the limit, so it does not flicker
+     * between two levels.
      */
-    private class Camera {
+    private class RobotRenderer {
         /**
-         * The position of the camera.
+         * The most instances that are drawn at once
          */
-        public Vector eye = new Vector(3f, 6f, 5f);
+        private static final int MAX_BATCH = 64;
 
         /**
-         * The point to which the camera is looking.
+         * The uniform vectors that are kept free for the built in uniforms
          */
-        public Vector center = Vector.O;
+        private static final int RESERVED_UNIFORMS = 48;
 
         /**
-         * The up vector.
+         * The levels of detail that are not round, the levels before them have round parts
          */
-        public Vector up = Vector.Z;
+        private static final int BOX_DETAIL = 3;
+        private static final int IMPOSTOR_DETAIL = 4;
 
         /**
-         * The viewing mode the camera is in.
+         * How far the size of a robot has to be past a limit to change the level of detail
          */
-        private int mode = 0;
+        private static final float HYSTERESIS = 0.15f;
 
         /**
-         * The robot the camera is focussed on.
+         * The size of the texture with the pictures of the robots, and of every picture
          */
-        private int robot = 0;
+        private static final int ATLAS_SIZE = 1024;
+        private static final int CELL_WIDTH = 64;
+        private static final int CELL_HEIGHT = 2 * CELL_WIDTH;
 
         /**
-         * The fov of the camera.
-         * (only used on the non primary camera)
+         * The amount of pieces of the round parts, for every level with round parts
          */
-        public float fov = (float)Math.PI/2.f;
+        private final int [] detailSteps = { Robot.PRECISION, 16, 8 };
 
         /**
-         * The framebuffer of the camera
+         * The smallest height in pixels of a robot for every level of
+         * detail, a smaller robot uses the next level
          */
-        public FrameBuffer frameBuffer = null;
+        private final float [] detailSizes = { 160, 64, 24, 10 };
 
         /**
-         * The default viewing distance
+         * The shader program, 0 if instancing is not available
          */
-        private float viewingDistance = 12;
+        private int program = 0;
+
         /**
-         * The slowest robot
+         * The amount of instances in a batch
          */
-        private int robotFPV = 0;
+        private int batchSize = 0;
 
         /**
-         * The time the auto camera was selected.
+         * The uniforms of the shader
          */
-        private long startTime;
+        private int transformsLocation, materialsLocation, texturedLocation, textureLocation;
 
         /**
-         * Time in milliseconds the camera switches in auto mode
+         * The diffuse color and the specular color with shininess of every material
          */
-        private static final int AUTO_MODE_SWITCH_INTERVAL = 6000;
+        private final float [] materialData;
 
         /**
-         * @return The viewing distance of the camera, returns gs.vDist for the primary camera.
+         * The pose of the robot that is being added
          */
-        public float getViewingDistance() {
-            // This is why we don't use global state ..
-            return this == mainCamera ? gs.vDist : viewingDistance;
-        }
+        private final float [] pose = new float[16 * Robot.PARTS];
 
         /**
-         * Sets the viewing distance of the camera
-         * @param int distance
+         * The transformation of every instance, per level of detail, texture
+         * and mesh. The material of an instance is stored in the fourth row of
+         * the first column, which is always 0 for the transformations of the
+         * parts. The lists are made when they are first used.
          */
-        public void setViewingDistance(float distance) {
-            if(this == mainCamera) {
-                gs.vDist = distance;
-            }
-            viewingDistance = distance;
-        }
+        private final float [][] instances = new float[IMPOSTOR_DETAIL * Robot.TEXTURES * Robot.MESHES][];
+        private final int [] instanceCounts = new int[IMPOSTOR_DETAIL * Robot.TEXTURES * Robot.MESHES];
 
         /**
-         * @return the mode of the camera
+         * The meshes of every level of detail and texture
          */
-        public int getMode() {
-            return mode;
-        }
+        private final VBO [][][] meshes = new VBO[IMPOSTOR_DETAIL][Robot.TEXTURES][Robot.MESHES];
 
         /**
-         * Update the camera mode.
-         * @param mode
+         * The generation of the mesh cache the meshes were looked up in, they
+         * are looked up again when the cache has removed a mesh since then
          */
-        public void onChangeMode(int mode) {
-            // Manual mode
-            if (-1 == mode) {
-                // Does nothing
+        private final int [][] meshGenerations = new int[IMPOSTOR_DETAIL][Robot.TEXTURES];
 
-            // Helicopter mode
-            } else if (1 == mode) {
-                // Set viewing distance to a sane value
-                setViewingDistance(10);
+        /**
+         * Room for the transformation of a single part
+         */
+        private final float [] transform = new float[16];
 
-                if(this == mainCamera) {
-                    // Randomize the vWidth a bit.
-                    gs.vWidth = 10+(int)(Math.random()*10);
-                }
+        /**
+         * For the transformations on the cpu
+         */
+        private final MatrixStack matrices = new MatrixStack();
 
-            // Motor cycle mode
-            } else if (2 == mode) {
-                // Set viewing distance to a sane value
-                setViewingDistance(5);
+        /**
+         * The placement of a robot that stands in the origin
+         */
+        private final double [] identity = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
 
-                if(this == mainCamera) {
-                    // Randomize the vWidth a bit.
-                    gs.vWidth = 10+(int)(Math.random()*10);
-                }
+        /**
+         * Looks at the front of a robot, with the robot upright
+         */
+        private final float [] impostorView = { -1, 0, 0, 0, 0, 0, 1, 0, 0, 1, 0, 0, 0, 0, 0, 1 };
 
-            // First person mode
-            } else if (3 == mode) {
-                if(this == mainCamera) {
-                    //Randomize the vWidth a bit.
-                    gs.vWidth = 15+(int)(Math.random()*5);
-                }
+        /**
+         * The pictures of the robots, made when they are first needed
+         */
+        private FrameBuffer atlas = null;
 
-                // Focus on the slowest robot
-                for(int i = 0; i < robots.length ; i++) {
-                    float speed = robots[i].getSpeed();
-                    if(speed>=robots[robotFPV].getSpeed()){
-                        robotFPV = i;
-                    }
-                }
+        /**
+         * The cell in the atlas of every robot look, see getImpostorKey
+         */
+        private final HashMap<Long, Integer> impostorCells = new HashMap<Long, Integer>();
 
-            // Auto mode
-            } else if (4 == mode) {
-                // Set the viewing distance to a sanve value
-                setViewingDistance(12);
+        /**
+         * The cell in the atlas of every robot, -1 if the atlas was full, or
+         * UNKNOWN_CELL if the robot was not drawn as a picture yet. A robot
+         * always looks the same, so its cell is only looked up once.
+         */
+        private int [] robotCells = new int[0];
+        private static final int UNKNOWN_CELL = -2;
 
-                // Initialize the timer
-                startTime = System.currentTimeMillis();
+        /**
+         * The quads of the pictures, filled every frame
+         */
+        private final VBO billboards = new VBO(new VertexDefinition(new VertexDefinitionPart [] {
+            VertexDefinitionPart.POSITION_3D,
+            VertexDefinitionPart.TEXTCOORD_2D
+        }));
+        private FloatBuffer billboardData = null;
+        private int billboardCount = 0;
+
+        public RobotRenderer() {
+            Material [] all = Material.values();
+            materialData = new float[8 * all.length];
+            for(int k = 0; k < all.length; k++) {
+                System.arraycopy(all[k].diffuse, 0, materialData, 8*k, 4);
+                System.arraycopy(all[k].specular, 0, materialData, 8*k + 4, 3);
+                materialData[8*k + 7] = all[k].getShine();
+            }
+        }
 
-                // Find the slowest robot
-                for(int i = 0; i < robots.length ; i++) {
-                    float speed = robots[i].getSpeed();
+        /**
+         * Creates the shader, if instancing is supported
+         */
+        public void create() {
+            if(!gl.isExtensionAvailable("GL_ARB_draw_instanced") || !gl.isFunctionAvailable("glDrawArraysInstanced")) {
+                System.out.println("Instancing is not available, robots are drawn one part at a time");
+                return;
+            }
 
-                    if(speed>=robots[robotFPV].getSpeed()) {
-                        robotFPV = i;
-                    }
-                }
+            // The instances have to fit in the uniforms next to the materials and built in uniforms
+            int [] components = new int[1];
+            gl.glGetIntegerv(gl.GL_MAX_VERTEX_UNIFORM_COMPONENTS, components, 0);
+            int materialCount = materialData.length / 8;
+            batchSize = Math.min(MAX_BATCH, (components[0] / 4 - 2 * materialCount - RESERVED_UNIFORMS) / 4);
+            if(batchSize < 1) {
+                System.out.println("Too few uniforms for instancing, robots are drawn one part at a time");
+                return;
+            }
 
-            // Default mode
-            } else {
-                // Set to a sane value
-                setViewingDistance(25);
+            String vertexSource =
+                "#version 120\n" +
+                "#extension GL_ARB_draw_instanced : require\n" +
+                "uniform mat4 transforms[" + batchSize + "];\n" +
+                "uniform vec4 materials[" + 2 * materialCount + "];\n" +
+                "varying vec4 color;\n" +
+                "void main() {\n" +
+                "    mat4 transform = transforms[gl_InstanceIDARB];\n" +
+                "    int material = int(transform[0][3]);\n" +
+                "    transform[0][3] = 0.0;\n" +
+                "    vec4 diffuse = materials[2 * material];\n" +
+                "    vec4 specular = materials[2 * material + 1];\n" +
+                // The inverse transpose is made from the cross products of the columns,
+                // the determinant only changes the length, except for the sign
+                "    mat3 m = mat3(transform);\n" +
+                "    vec3 normal = mat3(cross(m[1], m[2]), cross(m[2], m[0]), cross(m[0], m[1])) * gl_Normal;\n" +
+                "    normal = normalize(gl_NormalMatrix * normal * sign(dot(m[0], cross(m[1], m[2]))));\n" +
+                "    gl_Position = gl_ModelViewProjectionMatrix * (transform * gl_Vertex);\n" +
+                "    gl_TexCoord[0] = gl_MultiTexCoord0;\n" +
+                // The fixed function lighting, the material color is the ambient and diffuse color
+                "    vec3 lit = gl_LightModel.ambient.rgb * diffuse.rgb;\n" +
+                "    for(int i = 0; i < 2; i++) {\n" +
+                "        float d = dot(normal, normalize(gl_LightSource[i].position.xyz));\n" +
+                "        lit += gl_LightSource[i].ambient.rgb * diffuse.rgb;\n" +
+                "        if(d > 0.0) {\n" +
+                "            float h = max(dot(normal, normalize(gl_LightSource[i].halfVector.xyz)), 0.0);\n" +
+                "            lit += d * gl_LightSource[i].diffuse.rgb * diffuse.rgb;\n" +
+                "            lit += (specular.w > 0.0 ? pow(h, specular.w) : 1.0) * gl_LightSource[i].specular.rgb * specular.rgb;\n" +
+                "        }\n" +
+                "    }\n" +
+                "    color = vec4(lit, diffuse.a);\n" +
+                "}\n";
+
+            String fragmentSource =
+                "#version 120\n" +
+                "uniform sampler2D robotTexture;\n" +
+                "uniform bool textured;\n" +
+                "varying vec4 color;\n" +
+                "void main() {\n" +
+                "    gl_FragColor = textured ? color * texture2D(robotTexture, gl_TexCoord[0].st) : color;\n" +
+                "}\n";
+
+            int vertexShader = compileShader(gl.GL_VERTEX_SHADER, vertexSource);
+            int fragmentShader = compileShader(gl.GL_FRAGMENT_SHADER, fragmentSource);
+            if(vertexShader == 0 || fragmentShader == 0) {
+                return;
             }
 
-            // Randomly select a robot
-            robot = (int)(Math.random()*robots.length);
+            int linked = gl.glCreateProgram();
+            gl.glAttachShader(linked, vertexShader);
+            gl.glAttachShader(linked, fragmentShader);
+            gl.glLinkProgram(linked);
+
+            int [] status = new int[1];
+            gl.glGetProgramiv(linked, gl.GL_LINK_STATUS, status, 0);
+            if(status[0] == 0) {
+                System.out.println("The robot shader does not link, robots are drawn one part at a time");
+                gl.glDeleteProgram(linked);
+                return;
+            }
 
-            // Actually change the mode
-            this.mode = mode;
+            program = linked;
+            transformsLocation  = gl.glGetUniformLocation(program, "transforms");
+            materialsLocation   = gl.glGetUniformLocation(program, "materials");
+            texturedLocation    = gl.glGetUniformLocation(program, "textured");
+            textureLocation     = gl.glGetUniformLocation(program, "robotTexture");
         }
 
         /**
-         * @return The field of view of the camera
+         * @return The compiled shader, or 0 if it does not compile
          */
-        public float getFov() {
-            return fov;
-        }
+        private int compileShader(int type, String source) {
+            int shader = gl.glCreateShader(type);
+            gl.glShaderSource(shader, 1, new String [] { source }, null, 0);
+            gl.glCompileShader(shader);
 
+            int [] status = new int[1];
+            gl.glGetShaderiv(shader, gl.GL_COMPILE_STATUS, status, 0);
+            if(status[0] == 0) {
+                System.out.println("The robot shader does not compile, robots are drawn one part at a time");
+                gl.glDeleteShader(shader);
+                return 0;
+            }
+            return shader;
+        }
 
         /**
-         * Updates the camera viewpoint and direction based on the selected
-         * camera mode.
+         * Draws all robots, as seen by a camera
+         * @param cam The camera, it keeps the levels of detail of its robots
          */
-        public void update(float theta, float phi) {
-            float vDist = getViewingDistance();
+        public void draw(Camera cam) {
+            if(cam.robotDetails.length != robots.getCount()) {
+                cam.robotDetails = new int[robots.getCount()];
+                Arrays.fill(cam.robotDetails, -1);
+            }
+            if(robotCells.length != robots.getCount()) {
+                robotCells = new int[robots.getCount()];
+                Arrays.fill(robotCells, UNKNOWN_CELL);
+            }
 
-            // Calculate the eye position
-            eye = new Vector (
-                vDist * Math.cos(phi) * Math.cos(theta) + center.x(),
-                vDist * Math.cos(phi) * Math.sin(theta) + center.y(),
-                vDist * Math.sin(phi) + center.z()
-            );
+            // Choose the levels of detail first, the pictures that are missing are made on the way
+            for(int i = 0; i < robots.getCount(); i++) {
+                int detail = selectDetail(cam, i);
+                if(detail == IMPOSTOR_DETAIL && findImpostor(cam, i) < 0) {
+                    detail = BOX_DETAIL;
+                }
+                cam.robotDetails[i] = detail;
+            }
 
-            // Helicopter mode
-            if (1 == mode) {
-                setHelicopterMode();
+            // Collect the parts of all robots per mesh, and the pictures
+            clear();
+            if(billboardData == null || billboardData.capacity() < 20 * robots.getCount()) {
+                billboardData = ByteBuffer.allocateDirect(20 * robots.getCount() * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+            billboardData.clear();
+            billboardCount = 0;
+            for(int i = 0; i < robots.getCount(); i++) {
+                int detail = cam.robotDetails[i];
+                if(detail == IMPOSTOR_DETAIL) {
+                    addBillboard(cam, i, robotCells[i]);
+                } else {
+                    robot.pose(getRobotParameter(i), robots.phases[i], robots.necks[i], pose);
+                    add(robots.textures[i], robots.materials[i], detail, getRobotMatrix(i), pose);
+                }
+            }
 
-            // Motor cycle mode
-            } else if (2 == mode) {
-                setMotorCycleMode();
+            flush();
+            drawBillboards();
+        }
 
-            // First person mode
-            } else if (3 == mode) {
-                setFirstPersonMode();
+        /**
+         * Chooses the level of detail of a robot from its height on the
+         * screen, starting from the level it had the last time
+         * @return The level of detail
+         */
+        private int selectDetail(Camera cam, int i) {
+            double dx = getRobotPosition(i, 0) - cam.eye.x();
+            double dy = getRobotPosition(i, 1) - cam.eye.y();
+            double dz = getRobotPosition(i, 2) - cam.eye.z();
+            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double size = robot.getHeight(robots.neckModifiers[i]) * cam.projectionScale * cam.detail / distance;
 
-            // Auto mode
-            } else if (4 == mode) {
-                // Automatically swithc camera mode
-                if(System.currentTimeMillis() - startTime < AUTO_MODE_SWITCH_INTERVAL){
-                    setHelicopterMode();
-                }
-                else if(System.currentTimeMillis() - startTime < 2*AUTO_MODE_SWITCH_INTERVAL){
-                    setMotorCycleMode();
-                }
-                else if(System.currentTimeMillis() - startTime < 3*AUTO_MODE_SWITCH_INTERVAL){
-                    setFirstPersonMode();
-                }
-                else{
-                    startTime = System.currentTimeMillis();//go back to first perspective
-                    setHelicopterMode();
+            int detail = cam.robotDetails[i];
+            if(detail < 0) {
+                detail = 0;
+                while(detail < IMPOSTOR_DETAIL && size < detailSizes[detail]) {
+                    detail++;
                 }
+                return detail;
+            }
 
-            // Default mode
-            } else {
-                // Only usable by the main camera
-                assert(this == mainCamera);
-
-                // Use the center defined in the global state
-                center = gs.cnt;
+            while(detail > 0 && size > detailSizes[detail - 1] * (1 + HYSTERESIS)) {
+                detail--;
             }
+            while(detail < IMPOSTOR_DETAIL && size < detailSizes[detail] * (1 - HYSTERESIS)) {
+                detail++;
+            }
+            return detail;
         }
 
         /**
-         * Computes {@code eye}, {@code center}, and {@code up}, based on the
-         * helicopter mode.
+         * Empties the instance lists
          */
-        private void setHelicopterMode() {
-            float t = gs.tAnim/robots[robot].getSpeed();//get the speed of the selected robot, and calculate its actual time
-            Vector position = raceTrack.getPoint(t);//find the position
-            Vector tangent = raceTrack.getTangent(t);//find the current tangent
-            position = position.add(tangent.cross(Vector.Z).normalized().scale(0.5f+robot));//recalculate the position, considering the number of the robot.
-            
-            center = position;//set the eye position
-            eye = center.add(up.scale(10)).add(Vector.X.normalized());//eye position is above the robot.
+        private void clear() {
+            Arrays.fill(instanceCounts, 0);
         }
 
         /**
-         * Computes {@code eye}, {@code center}, and {@code up}, based on the
-         * motorcycle mode.
+         * @return The instance list of a mesh
          */
-        private void setMotorCycleMode() {
-            float t = gs.tAnim/robots[robot].getSpeed();//get the speed of the selected robot, and calculate its actual time
-            Vector position = raceTrack.getPoint(t);//find the position
-            Vector tangent = raceTrack.getTangent(t);//find the current tangent
-            position = position.add(tangent.cross(Vector.Z).normalized().scale(0.5f+robot));//recalculate the position, considering the number of the robot.
-                    
-            center = position.add(Vector.Z.scale(1.5));  //center is just above the track, on the robot position     
-            eye = center.add(tangent.cross(Vector.Z).normalized().scale(-1.75*(robot+1)));//set eye position to be on the inner side of the track.
+        private int getGroup(int detail, int texture, int mesh) {
+            return Robot.MESHES * (Robot.TEXTURES * detail + texture) + mesh;
         }
 
         /**
-         * Computes {@code eye}, {@code center}, and {@code up}, based on the
-         * first person mode.
+         * Adds the parts of a robot to the instance lists
+         * @param texture The texture of the robot
+         * @param material The index of the material of the robot
+         * @param detail The level of detail, one with meshes
+         * @param placement The transformation that puts the robot on the track
+         * @param parts The pose of the robot
          */
-        private void setFirstPersonMode() {
-            float t = gs.tAnim/robots[robotFPV].getSpeed();//this time, use the slowest robot
-            Vector position = raceTrack.getPoint(t);
-            Vector tangent = raceTrack.getTangent(t);
-            position = position.add(tangent.cross(Vector.Z).normalized().scale(0.5f+robotFPV));
-            
-            eye = position.add(Vector.Z.scale(2));//eye position is on top of the head        
-            center = eye.add(tangent.normalized().scale(0.5));//eye is on the head, just in front of the robot.
+        private void add(int texture, int material, int detail, double [] placement, float [] parts) {
+            for(int part = 0; part < Robot.PARTS; part++) {
+                int mesh = robot.getPartMesh(part);
+                if(detail == BOX_DETAIL && !robot.isInProxy(mesh)) {
+                    continue;
+                }
+
+                int group = getGroup(detail, texture, mesh);
+                if(instances[group] == null) {
+                    instances[group] = new float[16 * MAX_BATCH];
+                }
+                int count = instanceCounts[group]++;
+                if(16 * (count + 1) > instances[group].length) {
+                    instances[group] = Arrays.copyOf(instances[group], 2 * instances[group].length);
+                }
+
+                float [] data = instances[group];
+                int at = 16 * count;
+                matrices.multiply(placement, parts, 16 * part, data, at);
+
+                // The box around a unit cylinder is twice as wide, and starts half way
+                if(detail == BOX_DETAIL && robot.isRound(mesh)) {
+                    for(int row = 0; row < 3; row++) {
+                        data[at + 12 + row] += 0.5f * data[at + 8 + row];
+                        data[at + row] *= 2;
+                        data[at + 4 + row] *= 2;
+                    }
+                }
+                data[at + 3] = material;
+            }
         }
-    }
 
-    /**
-     * An interface for basic curves.
-     */
-    public interface CurveInterface {
         /**
-         * @param t Parameter {@code 0 <= t <= 1}
-         * @return The location of the curve at {@code t}
+         * Draws everything in the instance lists
          */
-        public Vector getPoint(double t);
+        private void flush() {
+            // All parts use the same texture, it only has to be bound once
+            gl.glEnable(gl.GL_TEXTURE_2D);
+            torso.bind(gl);
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
+
+            if(program != 0) {
+                gl.glUseProgram(program);
+                gl.glUniform4fv(materialsLocation, materialData.length / 4, materialData, 0);
+                gl.glUniform1i(textureLocation, 0);
+            }
 
-        /**
-         * @param t Parameter {@code 0 <= t <= 1}
-         * @return The tangent of the curve at {@code t}
-         */
-        public Vector getTangent(double t);
-    }
+            for(int detail = 0; detail < IMPOSTOR_DETAIL; detail++) {
+                for(int texture = 0; texture < Robot.TEXTURES; texture++) {
+                    boolean found = false;
+                    for(int mesh = 0; mesh < Robot.MESHES; mesh++) {
+                        found |= instanceCounts[getGroup(detail, texture, mesh)] > 0;
+                    }
+                    if(!found) {
+                        continue;
+                    }
 
-    /**
-     * An interface for curves that can be modified.
-     */
-    public interface TransformableCurveInterface extends CurveInterface {
-        /**
-         * Scale the curve accordign to the vector
-         * @param scale
-         */
-        public CurveInterface scale(Vector scale);
+                    // Take the generation before the lookup, so a mesh that is
+                    // removed by the lookup itself is looked up again next time
+                    int generation = meshCache.getGeneration();
+                    if(meshes[detail][texture][Robot.LEG_MESH] == null || meshGenerations[detail][texture] != generation) {
+                        if(detail == BOX_DETAIL) {
+                            robot.findProxyMeshes(texture, meshes[detail][texture]);
+                        } else {
+                            robot.findMeshes(texture, detailSteps[detail], meshes[detail][texture]);
+                        }
+                        meshGenerations[detail][texture] = generation;
+                    }
+                    for(int mesh = 0; mesh < Robot.MESHES; mesh++) {
+                        int group = getGroup(detail, texture, mesh);
+                        if(instanceCounts[group] == 0) {
+                            continue;
+                        }
 
-        /**
-         * Translate the curve according to the vector
-         */
-        public CurveInterface translate(Vector transformation);
-    }
+                        VBO part = meshes[detail][texture][mesh];
+                        part.bind();
+                        part.enable();
 
-    /**
-     * A simple oval shape.
-     * This shape is used in the default race track.
-     */
-    public class OvalCurve implements CurveInterface {
-        /**
-         * The radius in the x and y direction
-         */
-        protected double x, y;
+                        // The sphere has no texture
+                        boolean textured = mesh != Robot.SPHERE_MESH;
+                        if(program != 0) {
+                            gl.glUniform1i(texturedLocation, textured ? 1 : 0);
+                            drawInstanced(part, robot.getMeshMode(mesh), instances[group], instanceCounts[group]);
+                        } else {
+                            if(!textured) {
+                                gl.glDisable(gl.GL_TEXTURE_2D);
+                            }
+                            drawSeparately(part, robot.getMeshMode(mesh), instances[group], instanceCounts[group]);
+                            if(!textured) {
+                                gl.glEnable(gl.GL_TEXTURE_2D);
+                            }
+                        }
+                        part.disable();
+                    }
+                }
+            }
 
-        /**
-         * Initialize the curve from an x and an y radius.
-         * @param x The x radius.
-         * @param y The y radius.
-         */
-        public OvalCurve(double x, double y) {
-            this.x = x;
-            this.y = y;
+            if(program != 0) {
+                gl.glUseProgram(0);
+            }
+            gl.glDisable(gl.GL_TEXTURE_2D);
         }
 
         /**
-         * Initialize the oval curve with the default values.
+         * Draws instances of a mesh with the shader, a batch at a time
          */
-        public OvalCurve() {
-            this(10, 14);
+        private void drawInstanced(VBO part, int mode, float [] data, int count) {
+            for(int from = 0; from < count; from += batchSize) {
+                int n = Math.min(batchSize, count - from);
+                gl.glUniformMatrix4fv(transformsLocation, n, false, data, 16 * from);
+                part.drawInstanced(mode, n);
+            }
         }
 
         /**
-         * {@inheritdoc}
+         * Draws instances of a mesh one at a time, with the fixed function pipeline
          */
-        public Vector getPoint(double t) {
-            return new Vector(
-                x * Math.cos(2 * Math.PI * t),
-                y * Math.sin(2 * Math.PI * t),
-                1
-            );
+        private void drawSeparately(VBO part, int mode, float [] data, int count) {
+            int material = -1;
+            for(int k = 0; k < count; k++) {
+                System.arraycopy(data, 16 * k, transform, 0, 16);
+                if((int)transform[3] != material) {
+                    material = (int)transform[3];
+                    robots.allMaterials[material].set(gl);
+                }
+                transform[3] = 0;
+
+                gl.glPushMatrix();
+                    gl.glMultMatrixf(transform, 0);
+                    part.draw(mode);
+                gl.glPopMatrix();
+            }
         }
 
         /**
-         * {@inheritdoc}
+         * @return The key of how a robot looks: its texture, material and neck
          */
-        public Vector getTangent(double t) {
-            return new Vector(
-                x * -2 * Math.PI * Math.sin(2 * Math.PI * t),
-                y *  2 * Math.PI * Math.cos(2 * Math.PI * t),
-                0
-            );
+        private long getImpostorKey(int i) {
+            return ((long)Float.floatToIntBits(robots.neckModifiers[i]) << 32) | (robots.textures[i] << 8) | robots.materials[i];
         }
-    }
 
-    public class BezierCurve implements TransformableCurveInterface {
         /**
-         * The control points of the curve
+         * Finds the picture of a robot, and makes it if there is none yet
+         * @return The cell of the picture in the atlas, -1 if the atlas is full
          */
-        private Vector [] controlPoints;
+        private int findImpostor(Camera cam, int i) {
+            if(robotCells[i] == UNKNOWN_CELL) {
+                robotCells[i] = lookUpImpostor(cam, i);
+            }
+            return robotCells[i];
+        }
 
         /**
-         * Initialize the curve from controlpoints
+         * Finds the picture of how a robot looks, other robots may look the same
+         * @return The cell of the picture in the atlas, -1 if the atlas is full
          */
-        public BezierCurve(Vector [] controlPoints) {
-            assert(controlPoints != null);
-            this.controlPoints = controlPoints;
+        private int lookUpImpostor(Camera cam, int i) {
+            Integer cell = impostorCells.get(getImpostorKey(i));
+            if(cell != null) {
+                return cell;
+            }
+
+            int cells = (ATLAS_SIZE / CELL_WIDTH) * (ATLAS_SIZE / CELL_HEIGHT);
+            if(impostorCells.size() >= cells) {
+                return -1;
+            }
+
+            cell = impostorCells.size();
+            bakeImpostor(cam, i, cell);
+            impostorCells.put(getImpostorKey(i), cell);
+            return cell;
         }
 
         /**
-         * Finds the Vector at parameter t according to the specified points.
-         * When derative is true, the derative vector is calculated instead of the point.
-         * @param t The parameter
-         * @param points The control points / calculated points
-         * @param derative Whether to calculate the derivative
+         * Draws a robot standing still into a cell of the atlas, seen from the front
          */
-        protected Vector B(double t, Vector [] points, boolean derative) {
-            // The new set of points is one less
-            Vector [] newPoints = new Vector[points.length-1];
+        private void bakeImpostor(Camera cam, int i, int cell) {
+            if(atlas == null) {
+                atlas = new FrameBuffer(new Dimensions(ATLAS_SIZE, ATLAS_SIZE), gl.GL_RGBA);
+                atlas.create();
 
-            // Calculate the deltas, then scale the deltas according to t to obtain a new set of points
-            for(int i = 1; i < points.length ; i ++) {
-                newPoints[i-1] = points[i-1].add(
-                    points[i]
-                        .subtract(points[i-1])
-                        .scale(t)
-                );
+                // The pictures are shown smaller than they are
+                atlas.bindColorBuffer();
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_LINEAR);
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MIN_FILTER, gl.GL_LINEAR);
             }
+            atlas.bind();
+
+            int x = CELL_WIDTH * (cell % (ATLAS_SIZE / CELL_WIDTH));
+            int y = CELL_HEIGHT * (cell / (ATLAS_SIZE / CELL_WIDTH));
+            float height = robot.getHeight(robots.neckModifiers[i]);
+
+            gl.glPushAttrib(gl.GL_VIEWPORT_BIT | gl.GL_SCISSOR_BIT | gl.GL_COLOR_BUFFER_BIT);
+                // Only the cell is cleared to transparent
+                gl.glViewport(x, y, CELL_WIDTH, CELL_HEIGHT);
+                gl.glEnable(gl.GL_SCISSOR_TEST);
+                gl.glScissor(x, y, CELL_WIDTH, CELL_HEIGHT);
+                gl.glClearColor(0, 0, 0, 0);
+                gl.glClear(gl.GL_COLOR_BUFFER_BIT | gl.GL_DEPTH_BUFFER_BIT);
+                gl.glDisable(gl.GL_BLEND);
+
+                gl.glMatrixMode(gl.GL_PROJECTION);
+                gl.glPushMatrix();
+                gl.glLoadIdentity();
+                gl.glOrtho(-height/4, height/4, 0, height, -1, 1);
 
-            // The last two points are the derivative, return those instead if requirested
-            if(derative && newPoints.length == 2) {
-                return newPoints[1].subtract(newPoints[0]).normalized();
+                gl.glMatrixMode(gl.GL_MODELVIEW);
+                gl.glPushMatrix();
+                gl.glLoadMatrixf(impostorView, 0);
 
-            // Return the answer when there is only one point left
-            } else if(newPoints.length == 1) {
-                return newPoints[0];
+                clear();
+                robot.pose(0, 0, robots.necks[i], pose);
+                add(robots.textures[i], robots.materials[i], 0, identity, pose);
+                flush();
 
-            // Recursively call to obtain the point
-            } else {
-                return B(t, newPoints, derative);
-            }
-        }
+                gl.glPopMatrix();
+                gl.glMatrixMode(gl.GL_PROJECTION);
+                gl.glPopMatrix();
+                gl.glMatrixMode(gl.GL_MODELVIEW);
+            gl.glPopAttrib();
 
-        /**
-         * {@inheritdoc}
-         */
-        @Override
-        public Vector getPoint(double t) {
-            return B(t, controlPoints, false);
+            cam.frameBuffer.bind();
         }
 
         /**
-         * {@inheritdoc}
-         */
-        @Override
-        public Vector getTangent(double t) {
-            return B(t, controlPoints, true);
-        };
-
-        /**
-         * {@inheritdoc}
+         * Adds the quad of the picture of a robot, it stands on the track and turns to the camera
          */
-        @Override
-        public BezierCurve translate(Vector delta) {
-            Vector [] newPoints = new Vector[controlPoints.length];
+        private void addBillboard(Camera cam, int i, int cell) {
+            double x = getRobotPosition(i, 0), y = getRobotPosition(i, 1), z = getRobotPosition(i, 2);
+            double upX = robotUps[3*i], upY = robotUps[3*i+1], upZ = robotUps[3*i+2];
 
-            for(int i = 0; i < controlPoints.length ; i ++) {
-                newPoints[i] = controlPoints[i].add(delta);
+            // To the right of the camera, across the way to the robot and its up direction
+            double dx = x - cam.eye.x(), dy = y - cam.eye.y(), dz = z - cam.eye.z();
+            double rightX = dy * upZ - dz * upY;
+            double rightY = dz * upX - dx * upZ;
+            double rightZ = dx * upY - dy * upX;
+            double length = Math.sqrt(rightX * rightX + rightY * rightY + rightZ * rightZ);
+            if(length == 0) {
+                return;
             }
 
-            return new BezierCurve(newPoints);
+            float height = robot.getHeight(robots.neckModifiers[i]);
+            double scale = height / 4 / length;
+            rightX *= scale;
+            rightY *= scale;
+            rightZ *= scale;
+            upX *= height;
+            upY *= height;
+            upZ *= height;
+
+            float u1 = (float)(CELL_WIDTH * (cell % (ATLAS_SIZE / CELL_WIDTH))) / ATLAS_SIZE;
+            float v1 = (float)(CELL_HEIGHT * (cell / (ATLAS_SIZE / CELL_WIDTH))) / ATLAS_SIZE;
+            float u2 = u1 + (float)CELL_WIDTH / ATLAS_SIZE;
+            float v2 = v1 + (float)CELL_HEIGHT / ATLAS_SIZE;
+
+            putCorner(x - rightX, y - rightY, z - rightZ, u1, v1);
+            putCorner(x + rightX, y + rightY, z + rightZ, u2, v1);
+            putCorner(x + rightX + upX, y + rightY + upY, z + rightZ + upZ, u2, v2);
+            putCorner(x - rightX + upX, y - rightY + upY, z - rightZ + upZ, u1, v2);
+            billboardCount++;
         }
 
         /**
-         * {@inheritdoc}
+         * Adds a corner of a quad to the billboard data
          */
-        @Override
-        public BezierCurve scale(Vector scale) {
-            Vector [] newPoints = new Vector[controlPoints.length];
-
-            for(int i = 0; i < controlPoints.length ; i ++) {
-                newPoints[i] = new Vector(
-                    controlPoints[i].x() * scale.x(),
-                    controlPoints[i].y() * scale.y(),
-                    controlPoints[i].z() * scale.z()
-                );
-            }
-
-            return new BezierCurve(newPoints);
+        private void putCorner(double x, double y, double z, float u, float v) {
+            billboardData.put((float)x).put((float)y).put((float)z).put(u).put(v);
         }
 
         /**
-         * Reverse the order of control points.
-         * Effectively changes the direction.
+         * Draws the pictures of the robots, without light as it is in the pictures
          */
-        public BezierCurve reverse() {
-            Vector [] newPoints = new Vector[controlPoints.length];
-
-            for(int i = 0; i < controlPoints.length ; i ++) {
-                newPoints[i] = controlPoints[controlPoints.length - 1 - i];
+        private void drawBillboards() {
+            if(billboardCount == 0) {
+                return;
             }
 
-            return new BezierCurve(newPoints);
+            billboardData.flip();
+            billboards.open();
+            billboards.allocate(billboardData.remaining(), 4 * billboardCount, gl.GL_STREAM_DRAW);
+            billboards.uploadRange(billboardData, 0, billboardData.remaining());
+
+            gl.glPushAttrib(gl.GL_ENABLE_BIT | gl.GL_COLOR_BUFFER_BIT);
+                gl.glDisable(gl.GL_LIGHTING);
+                gl.glEnable(gl.GL_ALPHA_TEST);
+                gl.glAlphaFunc(gl.GL_GREATER, 0.5f);
+                gl.glEnable(gl.GL_TEXTURE_2D);
+                atlas.bindColorBuffer();
+                gl.glColor3f(1, 1, 1);
+
+                billboards.bind();
+                billboards.enable();
+                billboards.draw(gl.GL_QUADS);
+                billboards.disable();
+            gl.glPopAttrib();
         }
     }
 
     /**
-     * A curve that consists of multiple curve segments.
+     * Integral 2D vector used to store the dimensions of the screen.
      */
-    public class MultiSegmentCurve implements TransformableCurveInterface {
+    public class Dimensions {
+
         /**
-         * The curves this curve consists of
+         * The actual value
          */
-        protected CurveInterface [] curves;
+        private int w, h;
 
         /**
-         * Initialize the curve with a set of sub-curves
+         * Initialize the class with -1
          */
-        public MultiSegmentCurve(CurveInterface [] curves) {
-            this.curves = curves;
+        public Dimensions() {
+            this(-1, -1);
         }
 
         /**
-         * Information about a segment
+         * Create a new dimensions class and set the Width and Height
+         * @param w
+         * @param h
          */
-        protected class SegmentInformation {
-            /**
-             * The curve that this information is about
-             */
-            public final CurveInterface curve;
-
-            /**
-             * The scaled parameter (0 <= x <= 1)
-             */
-            public final double localParameter;
-
-            /**
-             * Initialize the segment information from a curve and local parameter.
-             * @param curve
-             * @param localParameter
-             */
-            SegmentInformation(CurveInterface curve, double localParameter) {
-                this.curve = curve;
-                this.localParameter = localParameter;
-            }
+        public Dimensions(int w, int h) {
+            set(w, h);
         }
 
         /**
-         * Finds the segment information from a global parameter
-         * @param t Parameter
-         * @return The local parameter and the curve it applies to
+         * @return The width
          */
-        protected SegmentInformation findSegment(double t) {
-            return new SegmentInformation(
-                // Wow Such math,
-                // So unreadable
-                // Much useful comments
+        public int w() {
+            return w;
+        }
 
-                // Find the curve the parameter applies to
-                curves[(int)Math.max(0, Math.ceil(t * curves.length)-1)],
+        /**
+         * @return The height
+         */
+        public int h() {
+            return h;
+        }
+
+        /**
+         * Set the width and the height.
+         * @param w
+         * @param h
+         */
+        public void set(int w, int h) {
+            this.w = w;
+            this.h = h;
+        }
+
+        /**
+         * @return A string representation of this class
+         */
+        public String toString() {
+            return "Dimensions{w:"+w+",h:"+h+"}";
+        }
+    }
+
+    /**
+     * Framebuffer, a target to render to
+     */
+    public class FrameBuffer {
+        /**
+         * The handle of the framebuffer
+         */
+        private int handle = -1;
+
+        /**
+         * The handle of the color buffer
+         */
+        private int colorBufferHandle = -1;
+
+        /**
+         * The handle of the depth buffer
+         */
+        private int deptBufferHandle = -1;
+
+        /**
+         * The dimensions of the buffers
+         */
+        private Dimensions dimensions = null;
+
+        /**
+         * The format of the color buffer
+         */
+        private int format = GL.GL_RGB;
+
+        /**
+         * Create a new empty frame buffer
+         */
+        FrameBuffer () {}
+
+        /**
+         * Create a new empty frame buffer
+         * @param dimensions The size of the buffers
+         * @param format The format of the color buffer, like GL_RGBA
+         */
+        FrameBuffer (Dimensions dimensions, int format) {
+            this.dimensions = dimensions;
+            this.format = format;
+        }
+
+        /**
+         * Initialize from an already existing buffer
+         * @param handle The buffer handle. Set to 0 for the default framebuffer.
+         */
+        FrameBuffer (int handle) {
+            this.handle = handle;
+        }
+
+        /**
+         * Create the framebuffer
+         */
+        public void create() {
+            // Create a framebuffer
+            {
+                int [] x = new int [1]; // Java is fun
+                gl.glGenFramebuffers(1, x, 0);
+                handle = x[0];
+            }
+
+            // Bind the framebuffer
+            bind();
+
+            // Create a color buffer
+            {
+                int [] x = new int [1];
+                gl.glGenTextures(1, x, 0);
+                colorBufferHandle = x[0];
+            }
+
+            // Bind the color buffer
+            bindColorBuffer();
+
+            // Make sure dimensions is set to a valid value
+            dimensions = dimensions != null ? dimensions : new Dimensions(1024, 768);
+
+            // Set the color buffer to an empty texture
+            gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, format, dimensions.w(), dimensions.h(), 0, format, gl.GL_UNSIGNED_BYTE, null);
+
+            // Poor filtering. Needed !
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_NEAREST);
+            gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MIN_FILTER, gl.GL_NEAREST);
+
+            // Create a depth buffer
+            {
+                int [] x = new int [1];
+                gl.glGenRenderbuffers(1, x, 0);
+                deptBufferHandle = x[0];
+            }
+
+            // Bind the depth buffer
+            bindDepthBuffer();
+
+            // Set the buffer to an empty depth texture
+            gl.glRenderbufferStorage(gl.GL_RENDERBUFFER, gl.GL_DEPTH_COMPONENT, dimensions.w(), dimensions.h());
+            gl.glFramebufferRenderbuffer(gl.GL_FRAMEBUFFER, gl.GL_DEPTH_ATTACHMENT, gl.GL_RENDERBUFFER, deptBufferHandle);
+
+            // Set color buffer to primary storage
+            gl.glFramebufferTexture2D(gl.GL_FRAMEBUFFER, gl.GL_COLOR_ATTACHMENT0, gl.GL_TEXTURE_2D, colorBufferHandle, 0);
+
+            // Set the list of draw buffers.
+            int [] drawBuffers = new int[1];
+            drawBuffers[0] = gl.GL_COLOR_ATTACHMENT0;
+            gl.glDrawBuffers(1, drawBuffers, 0);
+
+            // Check if everything went well
+            if(gl.glCheckFramebufferStatus(gl.GL_FRAMEBUFFER) != gl.GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("Could not create camera buffer");
+            }
+        }
+
+        /**
+         * Bind the framebuffer
+         */
+        void bind() {
+            gl.glBindFramebuffer(gl.GL_FRAMEBUFFER, handle);
+        }
+
+        /**
+         * Bind the color buffer as a texture
+         */
+        void bindColorBuffer() {
+            gl.glBindTexture(gl.GL_TEXTURE_2D, colorBufferHandle);
+        }
+
+        /**
+         * Bind the depth buffer
+         */
+        void bindDepthBuffer() {
+            gl.glBindRenderbuffer(gl.GL_RENDERBUFFER, deptBufferHandle);
+        }
+
+        /**
+         * Get the dimensions of the buffer
+         */
+        Dimensions getDimensions() {
+            return dimensions == null ? new Dimensions(gs.w, gs.h) : dimensions;
+        }
+    }
+
+    /**
+     * Implementation of a camera with a position and orientation.
+     */
+    private class Camera {
+        /**
+         * The position of the camera.
+         */
+        public Vector eye = new Vector(3f, 6f, 5f);
+
+        /**
+         * The point to which the camera is looking.
+         */
+        public Vector center = Vector.O;
+
+        /**
+         * The up vector.
+         */
+        public Vector up = Vector.Z;
+
+        /**
+         * The viewing mode the camera is in.
+         */
+        private int mode = 0;
+
+        /**
+         * The robot the camera is focussed on.
+         */
+        private int robot = 0;
+
+        /**
+         * The fov of the camera.
+         * (only used on the non primary camera)
+         */
+        public float fov = (float)Math.PI/2.f;
+
+        /**
+         * The framebuffer of the camera
+         */
+        public FrameBuffer frameBuffer = null;
+
+        /**
+         * The height in pixels of something of size 1 at distance 1, set with the view
+         */
+        public double projectionScale = 1;
+
+        /**
+         * How much detail the robots get, 1 is normal. The robots are drawn
+         * as if they are this much larger on the screen than they are.
+         */
+        public float detail = 1;
+
+        /**
+         * The level of detail every robot had the last time it was drawn by
+         * this camera, or -1 if it was never drawn
+         */
+        public int [] robotDetails = new int[0];
+
+        /**
+         * The default viewing distance
+         */
+        private float viewingDistance = 12;
+        /**
+         * The slowest robot
+         */
+        private int robotFPV = 0;
+
+        /**
+         * The time the auto camera was selected.
+         */
+        private long startTime;
+
+        /**
+         * Time in milliseconds the camera switches in auto mode
+         */
+        private static final int AUTO_MODE_SWITCH_INTERVAL = 6000;
+
+        /**
+         * @return The viewing distance of the camera, returns gs.vDist for the primary camera.
+         */
+        public float getViewingDistance() {
+            // This is why we don't use global state ..
+            return this == mainCamera ? gs.vDist : viewingDistance;
+        }
+
+        /**
+         * Sets the viewing distance of the camera
+         * @param int distance
+         */
+        public void setViewingDistance(float distance) {
+            if(this == mainCamera) {
+                gs.vDist = distance;
+            }
+            viewingDistance = distance;
+        }
+
+        /**
+         * @return the mode of the camera
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        /**
+         * Update the camera mode.
+         * @param mode
+         */
+        public void onChangeMode(int mode) {
+            // Manual mode
+            if (-1 == mode) {
+                // Does nothing
+
+            // Helicopter mode
+            } else if (1 == mode) {
+                // Set viewing distance to a sane value
+                setViewingDistance(10);
+
+                if(this == mainCamera) {
+                    // Randomize the vWidth a bit.
+                    gs.vWidth = 10+(int)(Math.random()*10);
+                }
+
+            // Motor cycle mode
+            } else if (2 == mode) {
+                // Set viewing distance to a sane value
+                setViewingDistance(5);
+
+                if(this == mainCamera) {
+                    // Randomize the vWidth a bit.
+                    gs.vWidth = 10+(int)(Math.random()*10);
+                }
+
+            // First person mode
+            } else if (3 == mode) {
+                if(this == mainCamera) {
+                    //Randomize the vWidth a bit.
+                    gs.vWidth = 15+(int)(Math.random()*5);
+                }
+
+                // Focus on the slowest robot
+                for(int i = 0; i < robots.getCount() ; i++) {
+                    float speed = robots.speeds[i];
+                    if(speed>=robots.speeds[robotFPV]){
+                        robotFPV = i;
+                    }
+                }
+
+            // Auto mode
+            } else if (4 == mode) {
+                // Set the viewing distance to a sanve value
+                setViewingDistance(12);
+
+                // Initialize the timer
+                startTime = System.currentTimeMillis();
+
+                // Find the slowest robot
+                for(int i = 0; i < robots.getCount() ; i++) {
+                    float speed = robots.speeds[i];
+
+                    if(speed>=robots.speeds[robotFPV]) {
+                        robotFPV = i;
+                    }
+                }
+
+            // Default mode
+            } else {
+                // Set to a sane value
+                setViewingDistance(25);
+            }
+
+            // Randomly select a robot
+            robot = (int)(Math.random()*robots.getCount());
+
+            // Actually change the mode
+            this.mode = mode;
+        }
+
+        /**
+         * @return The field of view of the camera
+         */
+        public float getFov() {
+            return fov;
+        }
+
+
+        /**
+         * Updates the camera viewpoint and direction based on the selected
+         * camera mode.
+         */
+        public void update(float theta, float phi) {
+            float vDist = getViewingDistance();
+
+            // Calculate the eye position
+            eye = new Vector (
+                vDist * Math.cos(phi) * Math.cos(theta) + center.x(),
+                vDist * Math.cos(phi) * Math.sin(theta) + center.y(),
+                vDist * Math.sin(phi) + center.z()
+            );
+
+            // Helicopter mode
+            if (1 == mode) {
+                setHelicopterMode();
+
+            // Motor cycle mode
+            } else if (2 == mode) {
+                setMotorCycleMode();
+
+            // First person mode
+            } else if (3 == mode) {
+                setFirstPersonMode();
+
+            // Auto mode
+            } else if (4 == mode) {
+                // Automatically swithc camera mode
+                if(System.currentTimeMillis() - startTime < AUTO_MODE_SWITCH_INTERVAL){
+                    setHelicopterMode();
+                }
+                else if(System.currentTimeMillis() - startTime < 2*AUTO_MODE_SWITCH_INTERVAL){
+                    setMotorCycleMode();
+                }
+                else if(System.currentTimeMillis() - startTime < 3*AUTO_MODE_SWITCH_INTERVAL){
+                    setFirstPersonMode();
+                }
+                else{
+                    startTime = System.currentTimeMillis();//go back to first perspective
+                    setHelicopterMode();
+                }
+
+            // Default mode
+            } else {
+                // Only usable by the main camera
+                assert(this == mainCamera);
+
+                // Use the center defined in the global state
+                center = gs.cnt;
+            }
+        }
+
+        /**
+         * Computes {@code eye}, {@code center}, and {@code up}, based on the
+         * helicopter mode.
+         */
+        private void setHelicopterMode() {
+            Vector position = getRobotPosition(robot);//find the position of the selected robot, in its lane
+            
+            center = position;//set the eye position
+            eye = center.add(up.scale(10)).add(Vector.X.normalized());//eye position is above the robot.
+        }
+
+        /**
+         * Computes {@code eye}, {@code center}, and {@code up}, based on the
+         * motorcycle mode.
+         */
+        private void setMotorCycleMode() {
+            Vector position = getRobotPosition(robot);//find the position of the selected robot, in its lane
+            Vector lateral = getRobotLateral(robot);//find the way to the outside of the track
+                    
+            center = position.add(Vector.Z.scale(1.5));  //center is just above the track, on the robot position     
+            eye = center.add(lateral.scale(-1.75*(robots.lanes[robot]+1)));//set eye position to be on the inner side of the track.
+        }
+
+        /**
+         * Computes {@code eye}, {@code center}, and {@code up}, based on the
+         * first person mode.
+         */
+        private void setFirstPersonMode() {
+            //this time, use the slowest robot
+            Vector position = getRobotPosition(robotFPV);
+            Vector tangent = getRobotTangent(robotFPV);
+            
+            eye = position.add(Vector.Z.scale(2));//eye position is on top of the head        
+            center = eye.add(tangent.normalized().scale(0.5));//eye is on the head, just in front of the robot.
+        }
+    }
+
+    /**
+     * An interface for basic curves.
+     */
+    public interface CurveInterface {
+        /**
+         * @param t Parameter {@code 0 <= t <= 1}
+         * @return The location of the curve at {@code t}
+         */
+        public Vector getPoint(double t);
+
+        /**
+         * @param t Parameter {@code 0 <= t <= 1}
+         * @return The tangent of the curve at {@code t}
+         */
+        public Vector getTangent(double t);
+
+        /**
+         * Calculates the point and tangent at one parameter, without allocating.
+         * The tangent is not normalized.
+         * @param t Parameter {@code 0 <= t <= 1}
+         * @param points Receives x, y and z of the point at 3 * index
+         * @param tangents Receives x, y and z of the tangent at 3 * index
+         * @param index The place in the arrays to write to
+         */
+        public void evaluate(double t, double [] points, double [] tangents, int index);
+
+        /**
+         * Calculates the points and tangents at many parameters in one go.
+         * The tangents are not normalized.
+         * @param ts The parameters, {@code 0 <= t <= 1}
+         * @param points Receives the points, x y and z after each other
+         * @param tangents Receives the tangents, x y and z after each other
+         */
+        public void evaluate(double [] ts, double [] points, double [] tangents);
+    }
+
+    /**
+     * An interface for curves that can be modified.
+     */
+    public interface TransformableCurveInterface extends CurveInterface {
+        /**
+         * Scale the curve accordign to the vector
+         * @param scale
+         */
+        public CurveInterface scale(Vector scale);
+
+        /**
+         * Translate the curve according to the vector
+         */
+        public CurveInterface translate(Vector transformation);
+    }
+
+    /**
+     * A simple oval shape.
+     * This shape is used in the default race track.
+     */
+    public class OvalCurve implements CurveInterface {
+        /**
+         * The radius in the x and y direction
+         */
+        protected double x, y;
+
+        /**
+         * Initialize the curve from an x and an y radius.
+         * @param x The x radius.
+         * @param y The y radius.
+         */
+        public OvalCurve(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Initialize the oval curve with the default values.
+         */
+        public OvalCurve() {
+            this(10, 14);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        public Vector getPoint(double t) {
+            return new Vector(
+                x * Math.cos(2 * Math.PI * t),
+                y * Math.sin(2 * Math.PI * t),
+                1
+            );
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        public Vector getTangent(double t) {
+            return new Vector(
+                x * -2 * Math.PI * Math.sin(2 * Math.PI * t),
+                y *  2 * Math.PI * Math.cos(2 * Math.PI * t),
+                0
+            );
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        public void evaluate(double t, double [] points, double [] tangents, int index) {
+            double cos = Math.cos(2 * Math.PI * t);
+            double sin = Math.sin(2 * Math.PI * t);
+
+            points[3*index]     = x * cos;
+            points[3*index+1]   = y * sin;
+            points[3*index+2]   = 1;
+            tangents[3*index]   = x * -2 * Math.PI * sin;
+            tangents[3*index+1] = y *  2 * Math.PI * cos;
+            tangents[3*index+2] = 0;
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        public void evaluate(double [] ts, double [] points, double [] tangents) {
+            for(int i = 0; i < ts.length; i++) {
+                evaluate(ts[i], points, tangents, i);
+            }
+        }
+    }
+
+    public class BezierCurve implements TransformableCurveInterface {
+        /**
+         * The control points of the curve
+         */
+        private Vector [] controlPoints;
+
+        /**
+         * The degree of the curve
+         */
+        private final int degree;
+
+        /**
+         * The curve as a polynomial in t, x y and z of the coefficient of
+         * t^k are at 3k, 3k+1 and 3k+2.
+         */
+        private final double [] coefficients;
+
+        /**
+         * Initialize the curve from controlpoints
+         */
+        public BezierCurve(Vector [] controlPoints) {
+            assert(controlPoints != null);
+            this.controlPoints = controlPoints;
+            this.degree = controlPoints.length - 1;
+            this.coefficients = new double[3 * (degree + 1)];
+
+            /**
+             * Bernstein to power basis:
+             * a_k = C(n, k) * sum_i (-1)^(k-i) C(k, i) P_i
+             */
+            for(int k = 0; k <= degree; k++) {
+                double x = 0, y = 0, z = 0;
+                for(int i = 0; i <= k; i++) {
+                    double factor = binomial(k, i) * ((k - i) % 2 == 0 ? 1 : -1);
+                    x += factor * controlPoints[i].x();
+                    y += factor * controlPoints[i].y();
+                    z += factor * controlPoints[i].z();
+                }
+                double factor = binomial(degree, k);
+                coefficients[3*k]   = factor * x;
+                coefficients[3*k+1] = factor * y;
+                coefficients[3*k+2] = factor * z;
+            }
+        }
+
+        /**
+         * @return n over k
+         */
+        private double binomial(int n, int k) {
+            double result = 1;
+            for(int i = 1; i <= k; i++) {
+                result = result * (n - k + i) / i;
+            }
+            return result;
+        }
+
+        /**
+         * {@inheritdoc}
+         * The tangent is the derivative of the curve.
+         */
+        @Override
+        public void evaluate(double t, double [] points, double [] tangents, int index) {
+            double [] a = coefficients;
+            int offset = 3 * index;
+
+            if(degree == 3) {
+                // Cubic curves are the most common, no loops needed
+                double t2 = t * t;
+                points[offset]   = ((a[9]  * t + a[6]) * t + a[3]) * t + a[0];
+                points[offset+1] = ((a[10] * t + a[7]) * t + a[4]) * t + a[1];
+                points[offset+2] = ((a[11] * t + a[8]) * t + a[5]) * t + a[2];
+                tangents[offset]   = 3 * a[9]  * t2 + 2 * a[6] * t + a[3];
+                tangents[offset+1] = 3 * a[10] * t2 + 2 * a[7] * t + a[4];
+                tangents[offset+2] = 3 * a[11] * t2 + 2 * a[8] * t + a[5];
+                return;
+            }
+
+            // Horner's scheme, the derivative is built up along with the point
+            double x = a[3*degree], y = a[3*degree+1], z = a[3*degree+2];
+            double dx = 0, dy = 0, dz = 0;
+            for(int k = degree - 1; k >= 0; k--) {
+                dx = dx * t + x;
+                dy = dy * t + y;
+                dz = dz * t + z;
+                x = x * t + a[3*k];
+                y = y * t + a[3*k+1];
+                z = z * t + a[3*k+2];
+            }
+
+            points[offset]   = x;
+            points[offset+1] = y;
+            points[offset+2] = z;
+            tangents[offset]   = dx;
+            tangents[offset+1] = dy;
+            tangents[offset+2] = dz;
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double [] ts, double [] points, double [] tangents) {
+            for(int i = 0; i < ts.length; i++) {
+                evaluate(ts[i], points, tangents, i);
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getPoint(double t) {
+            double [] a = coefficients;
+            double x = a[3*degree], y = a[3*degree+1], z = a[3*degree+2];
+            for(int k = degree - 1; k >= 0; k--) {
+                x = x * t + a[3*k];
+                y = y * t + a[3*k+1];
+                z = z * t + a[3*k+2];
+            }
+            return new Vector(x, y, z);
+        }
+
+        /**
+         * @param t Parameter {@code 0 <= t <= 1}
+         * @return The derivative of the curve at {@code t}, not normalized
+         */
+        public Vector getDerivative(double t) {
+            double [] a = coefficients;
+            double x = degree * a[3*degree], y = degree * a[3*degree+1], z = degree * a[3*degree+2];
+            for(int k = degree - 1; k >= 1; k--) {
+                x = x * t + k * a[3*k];
+                y = y * t + k * a[3*k+1];
+                z = z * t + k * a[3*k+2];
+            }
+            return new Vector(x, y, z);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getTangent(double t) {
+            return getDerivative(t).normalized();
+        };
+
+        /**
+         * The most cubic segments a curve is split into
+         */
+        private static final int MAX_CUBIC_SEGMENTS = 1024;
+
+        /**
+         * Approximates the curve with cubic segments of equal parameter length.
+         * The amount of segments is doubled until the curve is followed within
+         * the tolerance, or until there are MAX_CUBIC_SEGMENTS of them, then the
+         * closest split that was tried is used. Every segment is the cubic Hermite curve through
+         * the points and derivatives at its ends, so the track stays smooth
+         * and keeps its parameterization.
+         * @param tolerance The largest allowed distance to this curve
+         * @return A curve made of cubic segments
+         */
+        public MultiSegmentCurve toCubicSegments(double tolerance) {
+            // Test points within every segment
+            final int checks = 8;
+
+            CurveInterface [] best = null;
+            double bestError = Double.POSITIVE_INFINITY;
+
+            for(int count = 1; ; count *= 2) {
+                CurveInterface [] segments = new CurveInterface[count];
+                double error = 0;
+
+                for(int i = 0; i < count; i++) {
+                    double t0 = (double)i / count, t1 = (double)(i + 1) / count;
+                    Vector start = getPoint(t0), end = getPoint(t1);
+
+                    // Bezier handles from the derivatives, scaled to the segment
+                    BezierCurve segment = new BezierCurve(new Vector[] {
+                        start,
+                        start.add(getDerivative(t0).scale((t1 - t0) / 3)),
+                        end.subtract(getDerivative(t1).scale((t1 - t0) / 3)),
+                        end
+                    });
+                    segments[i] = segment;
+
+                    for(int j = 1; j < checks; j++) {
+                        double u = (double)j / checks;
+                        error = Math.max(error,
+                            segment.getPoint(u).subtract(getPoint(t0 + u * (t1 - t0))).length());
+                    }
+                }
+
+                if(error <= tolerance || degree <= 3) {
+                    return new MultiSegmentCurve(segments);
+                }
+
+                if(error < bestError) {
+                    best = segments;
+                    bestError = error;
+                }
+                if(count >= MAX_CUBIC_SEGMENTS) {
+                    return new MultiSegmentCurve(best);
+                }
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public BezierCurve translate(Vector delta) {
+            Vector [] newPoints = new Vector[controlPoints.length];
+
+            for(int i = 0; i < controlPoints.length ; i ++) {
+                newPoints[i] = controlPoints[i].add(delta);
+            }
+
+            return new BezierCurve(newPoints);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public BezierCurve scale(Vector scale) {
+            Vector [] newPoints = new Vector[controlPoints.length];
+
+            for(int i = 0; i < controlPoints.length ; i ++) {
+                newPoints[i] = new Vector(
+                    controlPoints[i].x() * scale.x(),
+                    controlPoints[i].y() * scale.y(),
+                    controlPoints[i].z() * scale.z()
+                );
+            }
+
+            return new BezierCurve(newPoints);
+        }
+
+        /**
+         * Reverse the order of control points.
+         * Effectively changes the direction.
+         */
+        public BezierCurve reverse() {
+            Vector [] newPoints = new Vector[controlPoints.length];
+
+            for(int i = 0; i < controlPoints.length ; i ++) {
+                newPoints[i] = controlPoints[controlPoints.length - 1 - i];
+            }
+
+            return new BezierCurve(newPoints);
+        }
+    }
+
+    /**
+     * A curve that consists of multiple curve segments.
+     */
+    public class MultiSegmentCurve implements TransformableCurveInterface {
+        /**
+         * The curves this curve consists of
+         */
+        protected CurveInterface [] curves;
+
+        /**
+         * Initialize the curve with a set of sub-curves
+         */
+        public MultiSegmentCurve(CurveInterface [] curves) {
+            this.curves = curves;
+        }
+
+        /**
+         * Information about a segment
+         */
+        protected class SegmentInformation {
+            /**
+             * The curve that this information is about
+             */
+            public final CurveInterface curve;
+
+            /**
+             * The scaled parameter (0 <= x <= 1)
+             */
+            public final double localParameter;
+
+            /**
+             * Initialize the segment information from a curve and local parameter.
+             * @param curve
+             * @param localParameter
+             */
+            SegmentInformation(CurveInterface curve, double localParameter) {
+                this.curve = curve;
+                this.localParameter = localParameter;
+            }
+        }
+
+        /**
+         * Finds the segment information from a global parameter
+         * @param t Parameter
+         * @return The local parameter and the curve it applies to
+         */
+        protected SegmentInformation findSegment(double t) {
+            // Find the curve the parameter applies to, a parameter on the
+            // border between two curves belongs to the second one
+            int index = Math.max(0, Math.min(curves.length - 1, (int)Math.floor(t * curves.length)));
+
+            // Find the local parameter
+            return new SegmentInformation(curves[index], t * curves.length - index);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getPoint(double t) {
+            SegmentInformation segment = findSegment(t);
+            return segment.curve.getPoint(segment.localParameter);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getTangent(double t) {
+            SegmentInformation segment = findSegment(t);
+            return segment.curve.getTangent(segment.localParameter);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double t, double [] points, double [] tangents, int index) {
+            // The same as findSegment, without the allocation
+            int segment = Math.max(0, Math.min(curves.length - 1, (int)Math.floor(t * curves.length)));
+            curves[segment].evaluate(t * curves.length - segment, points, tangents, index);
+
+            // The segment runs curves.length times as fast as this curve
+            for(int k = 0; k < 3; k++) {
+                tangents[3*index+k] *= curves.length;
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double [] ts, double [] points, double [] tangents) {
+            for(int i = 0; i < ts.length; i++) {
+                evaluate(ts[i], points, tangents, i);
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public MultiSegmentCurve scale(Vector scale) {
+            CurveInterface [] newCurves = new CurveInterface[curves.length];
+
+            for(int i = 0; i < curves.length ; i ++) {
+                newCurves[i] = ((TransformableCurveInterface)curves[i]).scale(scale);
+            }
+
+            return new MultiSegmentCurve(newCurves);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public MultiSegmentCurve translate(Vector translation) {
+            CurveInterface [] newCurves = new CurveInterface[curves.length];
+
+            for(int i = 0; i < curves.length ; i ++) {
+                newCurves[i] = ((TransformableCurveInterface)curves[i]).translate(translation);
+            }
+
+            return new MultiSegmentCurve(newCurves);
+        }
+    }
+
+    /**
+     * A closed curve through or along a set of points, made of cubic segments.
+     * Every segment only depends on four of the points.
+     */
+    public abstract class UniformCubicSpline implements TransformableCurveInterface {
+        /**
+         * The points of the spline
+         */
+        protected Vector [] points;
+
+        /**
+         * Initialize the spline from its points, the last point connects to the first
+         */
+        public UniformCubicSpline(Vector [] points) {
+            assert(points != null && points.length >= 4);
+            this.points = points;
+        }
+
+        /**
+         * @return The basis matrix, row k holds the weights of the four
+         * points for u^(3-k)
+         */
+        protected abstract double [][] getBasis();
+
+        /**
+         * @return A spline of the same kind through other points
+         */
+        protected abstract UniformCubicSpline create(Vector [] points);
+
+        /**
+         * Calculates the point or derivative of a segment
+         * @param t Parameter
+         * @param derivative Whether to calculate the derivative
+         */
+        protected Vector evaluate(double t, boolean derivative) {
+            int n = points.length;
+            int segment = Math.max(0, Math.min(n - 1, (int)Math.floor(t * n)));
+            double u = t * n - segment;
+
+            // The powers of u, or their derivatives
+            double u3 = derivative ? 3 * u * u : u * u * u;
+            double u2 = derivative ? 2 * u     : u * u;
+            double u1 = derivative ? 1         : u;
+            double u0 = derivative ? 0         : 1;
+
+            double [][] basis = getBasis();
+            double x = 0, y = 0, z = 0;
+            for(int i = 0; i < 4; i++) {
+                double weight = u3 * basis[0][i] + u2 * basis[1][i] + u1 * basis[2][i] + u0 * basis[3][i];
+
+                Vector point = points[(segment + i - 1 + n) % n];
+                x += weight * point.x();
+                y += weight * point.y();
+                z += weight * point.z();
+            }
+
+            // The segment parameter runs n times as fast as t
+            if(derivative) {
+                return new Vector(x * n, y * n, z * n);
+            }
+            return new Vector(x, y, z);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getPoint(double t) {
+            return evaluate(t, false);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getTangent(double t) {
+            return evaluate(t, true).normalized();
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double t, double [] points, double [] tangents, int index) {
+            int n = this.points.length;
+            int segment = Math.max(0, Math.min(n - 1, (int)Math.floor(t * n)));
+            double u = t * n - segment;
+
+            double [][] basis = getBasis();
+            double x = 0, y = 0, z = 0, dx = 0, dy = 0, dz = 0;
+            for(int i = 0; i < 4; i++) {
+                double weight = ((basis[0][i] * u + basis[1][i]) * u + basis[2][i]) * u + basis[3][i];
+                double slope = (3 * basis[0][i] * u + 2 * basis[1][i]) * u + basis[2][i];
+
+                Vector point = this.points[(segment + i - 1 + n) % n];
+                x += weight * point.x();
+                y += weight * point.y();
+                z += weight * point.z();
+                dx += slope * point.x();
+                dy += slope * point.y();
+                dz += slope * point.z();
+            }
+
+            points[3*index]     = x;
+            points[3*index+1]   = y;
+            points[3*index+2]   = z;
+            tangents[3*index]   = dx * n;
+            tangents[3*index+1] = dy * n;
+            tangents[3*index+2] = dz * n;
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double [] ts, double [] points, double [] tangents) {
+            for(int i = 0; i < ts.length; i++) {
+                evaluate(ts[i], points, tangents, i);
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public UniformCubicSpline scale(Vector scale) {
+            Vector [] newPoints = new Vector[points.length];
+
+            for(int i = 0; i < points.length ; i ++) {
+                newPoints[i] = new Vector(
+                    points[i].x() * scale.x(),
+                    points[i].y() * scale.y(),
+                    points[i].z() * scale.z()
+                );
+            }
+
+            return create(newPoints);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public UniformCubicSpline translate(Vector translation) {
+            Vector [] newPoints = new Vector[points.length];
+
+            for(int i = 0; i < points.length ; i ++) {
+                newPoints[i] = points[i].add(translation);
+            }
+
+            return create(newPoints);
+        }
+    }
+
+    /**
+     * A closed Catmull-Rom spline, it goes through all of its points.
+     */
+    public class CatmullRomCurve extends UniformCubicSpline {
+        private final double [][] BASIS = {
+            { -0.5,  1.5, -1.5,  0.5 },
+            {  1.0, -2.5,  2.0, -0.5 },
+            { -0.5,  0.0,  0.5,  0.0 },
+            {  0.0,  1.0,  0.0,  0.0 },
+        };
+
+        public CatmullRomCurve(Vector [] points) {
+            super(points);
+        }
+
+        @Override
+        protected double [][] getBasis() {
+            return BASIS;
+        }
+
+        @Override
+        protected CatmullRomCurve create(Vector [] points) {
+            return new CatmullRomCurve(points);
+        }
+    }
+
+    /**
+     * A closed uniform cubic B-spline, it follows its points without going
+     * through them and is smooth up to the second derivative.
+     */
+    public class UniformBSplineCurve extends UniformCubicSpline {
+        private final double [][] BASIS = {
+            { -1 / 6.0,  3 / 6.0, -3 / 6.0, 1 / 6.0 },
+            {  3 / 6.0, -6 / 6.0,  3 / 6.0, 0       },
+            { -3 / 6.0,  0,        3 / 6.0, 0       },
+            {  1 / 6.0,  4 / 6.0,  1 / 6.0, 0       },
+        };
+
+        public UniformBSplineCurve(Vector [] points) {
+            super(points);
+        }
+
+        @Override
+        protected double [][] getBasis() {
+            return BASIS;
+        }
+
+        @Override
+        protected UniformBSplineCurve create(Vector [] points) {
+            return new UniformBSplineCurve(points);
+        }
+    }
+
+    /**
+     * Any curve flattened into cubic segments, stored in one array.
+     * Bezier curves of degree three or less and uniform cubic splines are
+     * copied exactly, other curves are followed by cubic Hermite segments
+     * within a tolerance. All segments are evaluated by the same code,
+     * without going through the curves it was made from.
+     */
+    public class CompiledCurve implements TransformableCurveInterface {
+        /**
+         * The test points within a Hermite segment, and the amount of times
+         * a segment can be halved to meet the tolerance
+         */
+        private static final int CHECKS = 16;
+        private static final int MAX_DEPTH = 20;
+
+        /**
+         * The amount of segments
+         */
+        private final int segments;
+
+        /**
+         * The parameters where the segments start, the last one is 1
+         */
+        private final double [] starts;
+
+        /**
+         * Every segment as a cubic in its own parameter, 12 values per
+         * segment: x y and z of the coefficients of u^0 up to u^3
+         */
+        private final double [] coefficients;
+
+        /**
+         * If the segments all have the same length, so the segment of a
+         * parameter can be found without searching
+         */
+        private final boolean uniform;
+
+        /**
+         * Room for the segments while compiling
+         */
+        private double [] startList = new double[16];
+        private double [] coefficientList = new double[16 * 12];
+        private int count = 0;
+        private double tolerance;
+
+        /**
+         * Compiles a curve
+         * @param curve The curve to flatten
+         * @param tolerance How far the segments may be off curves that can
+         * not be copied exactly
+         */
+        public CompiledCurve(CurveInterface curve, double tolerance) {
+            this.tolerance = tolerance;
+            add(curve, 0, 1);
+
+            segments = count;
+            starts = Arrays.copyOf(startList, segments + 1);
+            starts[segments] = 1;
+            coefficients = Arrays.copyOf(coefficientList, 12 * segments);
+            uniform = isUniform(starts);
+            startList = null;
+            coefficientList = null;
+        }
+
+        /**
+         * Initialize the curve from segments that are already compiled
+         */
+        private CompiledCurve(double [] starts, double [] coefficients) {
+            this.segments = starts.length - 1;
+            this.starts = starts;
+            this.coefficients = coefficients;
+            this.uniform = isUniform(starts);
+        }
+
+        private boolean isUniform(double [] starts) {
+            for(int i = 0; i <= segments; i++) {
+                if(Math.abs(starts[i] - (double)i / segments) > 1e-12) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds the segments of a curve, its parameters 0 to 1 are mapped to from up to to
+         */
+        private void add(CurveInterface curve, double from, double to) {
+            if(curve instanceof CompiledCurve) {
+                CompiledCurve compiled = (CompiledCurve)curve;
+                for(int i = 0; i < compiled.segments; i++) {
+                    addSegment(from + compiled.starts[i] * (to - from), compiled.coefficients, 12 * i);
+                }
+            } else if(curve instanceof MultiSegmentCurve) {
+                CurveInterface [] curves = ((MultiSegmentCurve)curve).curves;
+                for(int i = 0; i < curves.length; i++) {
+                    add(curves[i],
+                        from + (to - from) * i / curves.length,
+                        from + (to - from) * (i + 1) / curves.length);
+                }
+            } else if(curve instanceof BezierCurve && ((BezierCurve)curve).degree <= 3) {
+                // Already a polynomial, lower degrees get zeros
+                BezierCurve bezier = (BezierCurve)curve;
+                double [] segment = new double[12];
+                System.arraycopy(bezier.coefficients, 0, segment, 0, bezier.coefficients.length);
+                addSegment(from, segment, 0);
+            } else if(curve instanceof UniformCubicSpline) {
+                addSpline((UniformCubicSpline)curve, from, to);
+            } else {
+                addHermite(curve, 0, 1, from, to, 0);
+            }
+        }
+
+        /**
+         * Adds the segments of a spline, they are cubics already
+         */
+        private void addSpline(UniformCubicSpline spline, double from, double to) {
+            Vector [] points = spline.points;
+            double [][] basis = spline.getBasis();
+            int n = points.length;
+
+            for(int k = 0; k < n; k++) {
+                double [] segment = new double[12];
+                for(int i = 0; i < 4; i++) {
+                    Vector point = points[(k + i - 1 + n) % n];
+
+                    // Row 3 - p of the basis holds the weights for u^p
+                    for(int power = 0; power < 4; power++) {
+                        double weight = basis[3 - power][i];
+                        segment[3*power]   += weight * point.x();
+                        segment[3*power+1] += weight * point.y();
+                        segment[3*power+2] += weight * point.z();
+                    }
+                }
+                addSegment(from + (to - from) * k / n, segment, 0);
+            }
+        }
+
+        /**
+         * Adds the part a to b of a curve as cubic Hermite segments, halving
+         * it until it follows the curve within the tolerance
+         */
+        private void addHermite(CurveInterface curve, double a, double b, double from, double to, int depth) {
+            double [] ends = new double[6];
+            double [] derivatives = new double[6];
+            curve.evaluate(a, ends, derivatives, 0);
+            curve.evaluate(b, ends, derivatives, 1);
+
+            // The derivatives in the parameter of the segment
+            double [] segment = new double[12];
+            for(int k = 0; k < 3; k++) {
+                double p0 = ends[k], p1 = ends[3+k];
+                double m0 = derivatives[k] * (b - a), m1 = derivatives[3+k] * (b - a);
+                segment[k]     = p0;
+                segment[3+k]   = m0;
+                segment[6+k]   = -3 * p0 - 2 * m0 + 3 * p1 - m1;
+                segment[9+k]   = 2 * p0 + m0 - 2 * p1 + m1;
+            }
+
+            double error = 0;
+            double [] point = new double[3];
+            double [] unused = new double[3];
+            for(int j = 1; j < CHECKS; j++) {
+                double u = (double)j / CHECKS;
+                curve.evaluate(a + u * (b - a), point, unused, 0);
+                for(int k = 0; k < 3; k++) {
+                    double value = ((segment[9+k] * u + segment[6+k]) * u + segment[3+k]) * u + segment[k];
+                    error = Math.max(error, Math.abs(value - point[k]));
+                }
+            }
+
+            if(error > tolerance && depth < MAX_DEPTH) {
+                double m = (a + b) / 2, middle = (from + to) / 2;
+                addHermite(curve, a, m, from, middle, depth + 1);
+                addHermite(curve, m, b, middle, to, depth + 1);
+            } else {
+                addSegment(from, segment, 0);
+            }
+        }
+
+        /**
+         * Adds one segment, segments are added in order
+         */
+        private void addSegment(double start, double [] segment, int offset) {
+            if(count + 1 >= startList.length) {
+                startList = Arrays.copyOf(startList, 2 * startList.length);
+                coefficientList = Arrays.copyOf(coefficientList, 2 * coefficientList.length);
+            }
+            startList[count] = start;
+            System.arraycopy(segment, offset, coefficientList, 12 * count, 12);
+            count++;
+        }
+
+        /**
+         * @return The segment the parameter lies in, a parameter on the
+         * border between two segments belongs to the second one
+         */
+        private int findSegment(double t) {
+            if(uniform) {
+                return Math.max(0, Math.min(segments - 1, (int)Math.floor(t * segments)));
+            }
+
+            int low = 0, high = segments - 1;
+            while(low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if(starts[middle] <= t) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * {@inheritdoc}
+         * The tangent is the derivative of the curve.
+         */
+        @Override
+        public void evaluate(double t, double [] points, double [] tangents, int index) {
+            int segment = findSegment(t);
+            double length = starts[segment + 1] - starts[segment];
+            double u = (t - starts[segment]) / length;
+            double [] a = coefficients;
+            int c = 12 * segment, offset = 3 * index;
+
+            points[offset]   = ((a[c+9]  * u + a[c+6]) * u + a[c+3]) * u + a[c];
+            points[offset+1] = ((a[c+10] * u + a[c+7]) * u + a[c+4]) * u + a[c+1];
+            points[offset+2] = ((a[c+11] * u + a[c+8]) * u + a[c+5]) * u + a[c+2];
+            tangents[offset]   = ((3 * a[c+9]  * u + 2 * a[c+6]) * u + a[c+3]) / length;
+            tangents[offset+1] = ((3 * a[c+10] * u + 2 * a[c+7]) * u + a[c+4]) / length;
+            tangents[offset+2] = ((3 * a[c+11] * u + 2 * a[c+8]) * u + a[c+5]) / length;
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public void evaluate(double [] ts, double [] points, double [] tangents) {
+            for(int i = 0; i < ts.length; i++) {
+                evaluate(ts[i], points, tangents, i);
+            }
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getPoint(double t) {
+            double [] point = new double[3];
+            evaluate(t, point, new double[3], 0);
+            return new Vector(point[0], point[1], point[2]);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public Vector getTangent(double t) {
+            double [] tangent = new double[3];
+            evaluate(t, new double[3], tangent, 0);
+            return new Vector(tangent[0], tangent[1], tangent[2]).normalized();
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public CompiledCurve scale(Vector scale) {
+            double [] newCoefficients = coefficients.clone();
+            for(int i = 0; i < newCoefficients.length; i += 3) {
+                newCoefficients[i]   *= scale.x();
+                newCoefficients[i+1] *= scale.y();
+                newCoefficients[i+2] *= scale.z();
+            }
+            return new CompiledCurve(starts, newCoefficients);
+        }
+
+        /**
+         * {@inheritdoc}
+         */
+        @Override
+        public CompiledCurve translate(Vector translation) {
+            // Only the constant of every segment moves
+            double [] newCoefficients = coefficients.clone();
+            for(int i = 0; i < newCoefficients.length; i += 12) {
+                newCoefficients[i]   += translation.x();
+                newCoefficients[i+1] += translation.y();
+                newCoefficients[i+2] += translation.z();
+            }
+            return new CompiledCurve(starts, newCoefficients);
+        }
+    }
+
+    /**
+     * Implementation of a race track that is made from Bezier segments.
+     */
+    private class RaceTrack {
+        /**
+         * The width of the track
+         */
+        private static final float WIDTH = 4;
+
+        /**
+         * How far off the track a point still collides with it
+         */
+        private static final float COLLISION_MARGIN = 0.2f;
+
+        /**
+         * How far the edges of the track may be off the straight pieces it is
+         * drawn and tested with
+         */
+        private static final double TESSELLATION_TOLERANCE = 0.01;
+
+        /**
+         * How much the track may turn over one piece, in radians
+         */
+        private static final double MAX_TURN = 5 * Math.PI / 180;
+
+        /**
+         * The longest a piece may be, so the colors of the sides stay smooth
+         */
+        private static final double MAX_PIECE_LENGTH = 8;
+
+        /**
+         * How far high degree tracks may be off after turning them into cubic segments
+         */
+        private static final double CUBIC_TOLERANCE = 0.001;
+
+        /**
+         * The current track that is in use
+         */
+        protected volatile CurveInterface currentCurve;
+
+        /**
+         * All the available curves
+         */
+        protected CurveInterface [] curves = new CurveInterface[] {
+            // 0: default
+            new OvalCurve(),
+
+            // 1: O-track
+            new BezierCurve(new Vector[] {
+                new Vector( 0,	 10,    1),
+                new Vector( 5.5, 10,    1),
+
+                new Vector( 10,  5.5,   1),
+                new Vector( 10,  0,     1),
+                new Vector( 10, -5.5,   1),
+
+                new Vector( 5.5,-10,    1),
+                new Vector( 0,  -10,    1),
+                new Vector(-5.5,-10,    1),
+
+                new Vector(-10, -5.5,   1),
+                new Vector(-10,  0,     1),
+                new Vector(-10, 5.5,    1),
+
+                new Vector(-5.5, 10,    1),
+                new Vector( 0,   10,    1),
+            }).toCubicSegments(CUBIC_TOLERANCE),
+
+            // 1: L-track
+            new MultiSegmentCurve(new  CurveInterface[] {
+                new BezierCurve(new Vector [] {
+                    new Vector(     0,     10,  1),
+                    new Vector(     0,     12,  1),
+                    new Vector(     2,     12,  1),
+                    new Vector(     2,     10,  1),
+                }),
+                new BezierCurve(new Vector [] {
+                    new Vector(     2,     10,  1),
+                    new Vector(     2,      0,  1),
+                    new Vector(     0,      2,  1),
+                    new Vector(     5,      2,  1),
+                }),
+                new BezierCurve(new Vector [] {
+                    new Vector(     5,      2,  1),
+                    new Vector(     7,      2,  1),
+                    new Vector(     7,      0,  1),
+                    new Vector(     5,      0,  1),
+                }),
+                new BezierCurve(new Vector [] {
+                    new Vector(     5,      0,  1),
+                    new Vector(    -2,      0,  1),
+                    new Vector(     0,     -2,  1),
+                    new Vector(     0,     10,  1),
+                }),
+            }).scale(new Vector(4, 4, 1)).translate(new Vector(-15, -20, 1)),
+
+            // 2: C-track
+            new MultiSegmentCurve(new CurveInterface[] {
+                new BezierCurve(new Vector[] {
+                    new Vector( 0,      0,      1),
+                    new Vector(15,      0,      1),
+                    new Vector(15,     10,      1),
+                    new Vector( 0,     10,      1),
+                }),
+                new BezierCurve(new Vector[] {
+                    new Vector( 0,     10,      1),
+                    new Vector(-30,     10,     1),
+                    new Vector(-30,     40,     1),
+                    new Vector( 0,     40,      1),
+
+                }),
+                new BezierCurve(new Vector[] {
+                    new Vector( 0,     40,      1),
+                    new Vector(15,     40,      1),
+                    new Vector(15,     50,      1),
+                    new Vector( 0,     50,      1),
+                }),
+                new BezierCurve(new Vector[] {
+                    new Vector( 0,     50,      1),
+                    new Vector(-50,    50,      1),
+                    new Vector(-50,     0,      1),
+                    new Vector( 0,      0,      1),
+
+                }),
+            }).translate(new Vector(0, -25, 0)).scale(new Vector(0.5, 0.5, 0.5)),
+
+            // 3: Custom track
+            new MultiSegmentCurve(new CurveInterface[] {
+                new BezierCurve(new Vector [] {
+                    new Vector (0,      0,  0),
+                    new Vector (-10,   20,  5),
+                    new Vector (20,     0,  5),
+                    new Vector (0,      0, 10)
+                }),
+                new BezierCurve(new Vector [] {
+                    new Vector (0,      0, 10),
+                    new Vector (-20,    0,  5),
+                    new Vector (10,   -20,  5),
+                    new Vector (0,      0,  0),
+                }),
+            }).scale(new Vector(2, 2, .5)),
+        };
+
+        /**
+         * Initializes the race track, sets the default curve to 0.
+         */
+        public RaceTrack() {
+            // Flatten every track, so they are all evaluated the same way
+            for(int i = 0; i < curves.length; i++) {
+                curves[i] = new CompiledCurve(curves[i], CUBIC_TOLERANCE);
+            }
+            setCurrentCurve(curves[0]);
+        }
+
+        /**
+         * Sets the current track.
+         * @param curve The curve to set it to
+         */
+        protected void setCurrentCurve(CurveInterface curve) {
+            currentCurve = curve;
+        }
+
+        public void setCurrentCurve(int curve) {
+            setCurrentCurve(curves[curve]);
+        }
 
-                // Find the local parameter
-                (t * curves.length) % 1
-            );
+        /**
+         * @return The integral representation of the curve. -1 When it is not set to a valid value.
+         */
+        public int getCurrentCurve() {
+            for(int i = 0; i < curves.length; i ++) {
+                if(currentCurve == curves[i]) {
+                    return i;
+                }
+            }
+
+            return -1;
         }
 
+        // Fps dependant color switching variable
+        float x = 0;
+
         /**
-         * {@inheritdoc}
+         * Definition of the vertex layout of the track, and of the colors
+         */
+        private final VertexDefinition meshDefinition = new VertexDefinition(new VertexDefinitionPart [] {
+            VertexDefinitionPart.POSITION_3D,
+            VertexDefinitionPart.NORMAL,
+            VertexDefinitionPart.TEXTCOORD_2D
+        });
+        private final VertexDefinition colorDefinition = new VertexDefinition(new VertexDefinitionPart [] {
+            VertexDefinitionPart.COLOR_3D
+        });
+
+        /**
+         * The curve the mesh was built for, and the parameters of its pieces
+         */
+        private CurveInterface drawnCurve = null;
+        private double [] drawParameters;
+
+        /**
+         * The mesh of the track: the top, bottom, outside and inside
+         */
+        private final VBO [] sides = {
+            new VBO(meshDefinition),
+            new VBO(meshDefinition),
+            new VBO(meshDefinition),
+            new VBO(meshDefinition)
+        };
+
+        /**
+         * The colors of the sides, updated every frame
+         */
+        private final VBO colors = new VBO(colorDefinition);
+        private FloatBuffer colorData;
+
+        /**
+         * Draws this track.
+         */
+        public void draw() {
+            x+=0.2;
+            
+            // The mesh only changes with the track
+            if(drawnCurve != currentCurve) {
+                buildMesh();
+                drawnCurve = currentCurve;
+            }
+
+            // The colors of the sides cycle, they are the only thing that changes
+            colorData.clear();
+            for(int k = 0; k < drawParameters.length; k++) {
+                double i = drawParameters[k];
+                float   r = (float)(Math.sin(i*2*Math.PI+x)/2+.5),
+                        g = (float)(Math.sin(i*4*Math.PI+x)/2+.5),
+                        b = (float)(Math.sin(i*8*Math.PI+x)/2+.5);
+
+                // The same color for both points of the piece
+                colorData.put(r).put(g).put(b);
+                colorData.put(r).put(g).put(b);
+            }
+            colorData.flip();
+            colors.uploadRange(colorData, 0, colorData.remaining());
+
+            // Enable textures
+            gl.glEnable(gl.GL_TEXTURE_2D);
+                // Draw the top, the texture scrolls with fps-dependant time
+                track.bind(gl);
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
+
+                gl.glMatrixMode(gl.GL_TEXTURE);
+                gl.glPushMatrix();
+                gl.glTranslatef(0, -(x % 1), 0);
+
+                gl.glColor3f(1, 1, 1);
+                sides[0].bind();
+                sides[0].enable();
+                sides[0].draw(gl.GL_TRIANGLE_STRIP);
+                sides[0].disable();
+
+                gl.glPopMatrix();
+                gl.glMatrixMode(gl.GL_MODELVIEW);
+
+                // Draw the other sides with their colors
+                brick.bind(gl);
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
+                gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
+
+                for(int j = 1; j < 4; j++) {
+                    sides[j].bind();
+                    sides[j].enable();
+                    colors.bind();
+                    colors.enable();
+
+                    sides[j].draw(gl.GL_TRIANGLE_STRIP);
+
+                    colors.disable();
+                    sides[j].disable();
+                }
+            gl.glDisable(gl.GL_TEXTURE_2D);
+        }
+
+        /**
+         * Builds the mesh of the current track, every side is a triangle strip
+         */
+        private void buildMesh() {
+            // Many points in the bends, few on the straight parts.
+            // The last point is the first one again, so the ends meet.
+            drawParameters = getTessellation(currentCurve).fractions.clone();
+            int count = drawParameters.length;
+
+            double [] points = new double[3 * count];
+            double [] tangents = new double[3 * count];
+            double [] laterals = new double[3 * count];
+            double [] ups = new double[3 * count];
+            evaluate(drawParameters, points, tangents, laterals, ups);
+
+            // Loop through the sides
+            for(int j = 0; j < 4; j++) {
+                VBOBuilder builder = sides[j].getVBOBuilder(2 * count);
+
+                // Divide the track up in small peices
+                for(int k = 0; k < count; k++) {
+                    double i = drawParameters[k];
+
+                    // Find the location on the track, the way to the outside and the way up
+                    float   px = (float)points[3*k],   py = (float)points[3*k+1],   pz = (float)points[3*k+2];
+                    float   ox = (float)(laterals[3*k] * WIDTH),
+                            oy = (float)(laterals[3*k+1] * WIDTH),
+                            oz = (float)(laterals[3*k+2] * WIDTH);
+                    float   ux = (float)ups[3*k],      uy = (float)ups[3*k+1],      uz = (float)ups[3*k+2];
+
+                    // Modify the point depending on the side
+                    float ax = px, ay = py, az = pz;
+                    if(j == 1) {
+                        ax -= ux;
+                        ay -= uy;
+                        az -= uz;
+                    } else if (j == 2) {
+                        ax += ox;
+                        ay += oy;
+                        az += oz;
+                    }
+
+                    // Find the other point
+                    float bx = ax, by = ay, bz = az;
+                    if(j == 2 || j == 3) {
+                        bx -= ux;
+                        by -= uy;
+                        bz -= uz;
+                    } else {
+                        bx += ox;
+                        by += oy;
+                        bz += oz;
+                    }
+
+                    // Up for the top, down for the bottom, outwards for the sides
+                    float nx, ny, nz;
+                    if(j < 2) {
+                        float sign = j == 0 ? 1 : -1;
+                        nx = ux * sign;
+                        ny = uy * sign;
+                        nz = uz * sign;
+                    } else {
+                        float sign = j == 2 ? 1 : -1;
+                        nx = ox / WIDTH * sign;
+                        ny = oy / WIDTH * sign;
+                        nz = oz / WIDTH * sign;
+                    }
+
+                    // Calculate textcoord, the top scrolls with the texture matrix
+                    float texcoordy = j == 0 ? (float)(i * 100) : (float)(i * 1000);
+
+                    builder.addPosition(ax, ay, az);
+                    builder.addNormal(nx, ny, nz);
+                    builder.addTexCoord(0.f, texcoordy);
+                    builder.endVertex();
+
+                    builder.addPosition(bx, by, bz);
+                    builder.addNormal(nx, ny, nz);
+                    builder.addTexCoord(j == 0 ? 1.f : 5.f, texcoordy);
+                    builder.endVertex();
+                }
+
+                sides[j].open();
+                sides[j].upload(builder);
+            }
+
+            // Room for the colors of one side, they are the same for all sides
+            colorData = ByteBuffer.allocateDirect(2 * count * 3 * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            colors.open();
+            colors.allocate(2 * count * 3, 2 * count);
+        }
+
+        /**
+         * @param t Parameter, the fraction of the length of the track
+         * @param initalPosition The coordinate of the top of the track
+         * @return The coordinate of the bottom of the track
+         */
+        Vector getLower(double t, Vector initialPosition) {
+            double [] up = new double[3];
+            getFrames(currentCurve).lookup(t, null, null, up, 0);
+            return initialPosition.subtract(new Vector(up[0], up[1], up[2]));
+        }
+        
+        /**
+         * @param t Parameter, the fraction of the length of the track
+         * @param initalPosition The position of the inside of the track
+         * @return The position of the outside of the track
+         */
+        Vector getOuter(double t, Vector initialPosition) {
+            return getOuter(currentCurve, toCurveParameter(t), initialPosition);
+        }
+
+        /**
+         * @param curve The curve to use instead of the current curve
+         * @param t Parameter of the curve itself
+         * @param initalPosition The position of the inside of the track
+         * @return The position of the outside of the track
+         */
+        Vector getOuter(CurveInterface curve, double t, Vector initialPosition) {
+            // Add the way to the outside to the inital position
+            return initialPosition.add(getLateral(curve, t).scale(WIDTH));
+        }
+
+        /**
+         * @param curve The curve to use instead of the current curve
+         * @param t Parameter of the curve itself
+         * @return The normalized direction from the inside to the outside of the track
+         */
+        Vector getLateral(CurveInterface curve, double t) {
+            double [] lateral = new double[3];
+            getFrames(curve).lookup(getArcLength(curve).toFraction(normalizeParam(t)), null, lateral, null, 0);
+            return new Vector(lateral[0], lateral[1], lateral[2]);
+        }
+
+        /**
+         * @param t A non normalized track parameter
+         * @return A normalized track parameter
+         */
+        double normalizeParam(double t) {
+            while(t < 0) t++;
+            return t % 1;
+        }
+        /**
+         * @param t Parameter, the fraction of the length of the track
+         * @return The position of the curve at 0 <= {@code t} <= 1.
          */
-        @Override
         public Vector getPoint(double t) {
-            SegmentInformation segment = findSegment(t);
-            return segment.curve.getPoint(segment.localParameter);
+            return currentCurve.getPoint(toCurveParameter(t));
         }
 
         /**
-         * {@inheritdoc}
+         * @param t Parameter, the fraction of the length of the track
+         * @return the normalized horizontal tangent of the curve at 0 <= {@code t} <= 1.
          */
-        @Override
         public Vector getTangent(double t) {
-            SegmentInformation segment = findSegment(t);
-            return segment.curve.getTangent(segment.localParameter);
+            return getTangent(currentCurve, toCurveParameter(t));
         }
 
         /**
-         * {@inheritdoc}
+         * Calculates the points and frames of the current track at many
+         * parameters in one go. Every array holds x y and z after each other.
+         * @param ts The parameters, fractions of the length of the track
+         * @param points Receives the points
+         * @param tangents Receives the directions of the track
+         * @param laterals Receives the directions from the inside to the outside
+         * @param ups Receives the directions up from the track
          */
-        @Override
-        public MultiSegmentCurve scale(Vector scale) {
-            CurveInterface [] newCurves = new CurveInterface[curves.length];
+        public void evaluate(double [] ts, double [] points, double [] tangents, double [] laterals, double [] ups) {
+            CurveInterface curve = currentCurve;
+            ArcLengthTable table = getArcLength(curve);
+            FrameTable frames = getFrames(curve);
+
+            for(int i = 0; i < ts.length; i++) {
+                double t = normalizeParam(ts[i]);
+                curve.evaluate(table.toParameter(t), points, tangents, i);
+                frames.lookup(t, tangents, laterals, ups, i);
+            }
+        }
+
+        /**
+         * @return The length of the current track
+         */
+        public double getLength() {
+            return getArcLength(currentCurve).getLength();
+        }
+
+        /**
+         * @param t A fraction of the length of the current track, not normalized
+         * @return The parameter of the curve at that distance
+         */
+        double toCurveParameter(double t) {
+            return getArcLength(currentCurve).toParameter(normalizeParam(t));
+        }
+
+        /**
+         * The arc length tables of every curve that was used so far
+         */
+        private final ConcurrentHashMap<CurveInterface, ArcLengthTable> arcLengths = new ConcurrentHashMap<CurveInterface, ArcLengthTable>();
+
+        /**
+         * @return The arc length table of a curve, it is built at the first call
+         */
+        private ArcLengthTable getArcLength(CurveInterface curve) {
+            ArcLengthTable table = arcLengths.get(curve);
+            if(table == null) {
+                // Built without holding a lock, so the render thread does not wait
+                // for a worker that builds the table of another curve. When two
+                // threads build the same table, the first one to be published is kept.
+                ArcLengthTable built = new ArcLengthTable(curve);
+                table = arcLengths.putIfAbsent(curve, built);
+                if(table == null) {
+                    table = built;
+                }
+            }
+            return table;
+        }
+
+        /**
+         * The distance along a curve at evenly spread parameters.
+         * Used to move along the curve at a constant speed, curves do not
+         * do that by themselves.
+         */
+        private class ArcLengthTable {
+            /**
+             * The amount of pieces the curve is measured in
+             */
+            private static final int SAMPLES = 2048;
+
+            /**
+             * The distance from the start at parameter i / SAMPLES, as a
+             * fraction of the total length
+             */
+            private final double [] fractions = new double[SAMPLES + 1];
+
+            /**
+             * The total length of the curve
+             */
+            private final double length;
+
+            public ArcLengthTable(CurveInterface curve) {
+                double total = 0;
+                Vector previous = curve.getPoint(0);
+                for(int i = 1; i <= SAMPLES; i++) {
+                    Vector point = curve.getPoint(((double)i / SAMPLES) % 1);
+                    total += point.subtract(previous).length();
+                    fractions[i] = total;
+                    previous = point;
+                }
+
+                length = total;
+                for(int i = 1; i <= SAMPLES; i++) {
+                    fractions[i] /= total;
+                }
+                fractions[SAMPLES] = 1;
+            }
+
+            public double getLength() {
+                return length;
+            }
+
+            /**
+             * @param fraction A fraction of the length, 0 to 1
+             * @return The parameter of the curve at that distance
+             */
+            public double toParameter(double fraction) {
+                // Binary search for the piece that holds the distance
+                int low = 0, high = SAMPLES;
+                while(high - low > 1) {
+                    int middle = (low + high) / 2;
+                    if(fractions[middle] <= fraction) {
+                        low = middle;
+                    } else {
+                        high = middle;
+                    }
+                }
+
+                double size = fractions[high] - fractions[low];
+                double f = size > 0 ? (fraction - fractions[low]) / size : 0;
+                return (low + f) / SAMPLES;
+            }
+
+            /**
+             * @param parameter A parameter of the curve, 0 to 1
+             * @return The fraction of the length at that parameter
+             */
+            public double toFraction(double parameter) {
+                int i = Math.min(SAMPLES - 1, (int)(parameter * SAMPLES));
+                double f = parameter * SAMPLES - i;
+                return fractions[i] * (1 - f) + fractions[i+1] * f;
+            }
+        }
+
+        /**
+         * @param curve The curve to use instead of the current curve
+         * @param t Parameter of the curve itself
+         * @return the normalized horizontal tangent of the curve at 0 <= {@code t} <= 1.
+         */
+        Vector getTangent(CurveInterface curve, double t) {
+            Vector tangent = curve.getTangent(normalizeParam(t)).normalized();
+            return new Vector(tangent.x(), tangent.y(), 0);
+        }
+        
+        /**
+         * Collision of the track with the terrain
+         */
+        public class TrackCollision {
+            public final boolean isCollision;
+            public final double collisionPosition;
+
+            public TrackCollision(boolean isCollision, double collisionPosition) {
+                this.isCollision = isCollision;
+                this.collisionPosition = collisionPosition;
+            }
+
+            public TrackCollision(boolean isCollision) {
+                this(false, 0);
+                assert(!isCollision);
+            }
+        };
+
+        /**
+         * The point on the track closest to a position, seen from above
+         */
+        public class TrackPosition {
+            /**
+             * The parameter of the closest point, as a fraction of the length of the track
+             */
+            public final double parameter;
+
+            /**
+             * The distance from the curve towards the outside of the track,
+             * seen from above, negative on the inside.
+             */
+            public final double lateralOffset;
+
+            /**
+             * The distance to the curve
+             */
+            public final double distance;
+
+            /**
+             * The width of the track seen from above. On a banked track
+             * this is less than WIDTH.
+             */
+            public final double width;
+
+            public TrackPosition(double parameter, double lateralOffset, double distance, double width) {
+                this.parameter = parameter;
+                this.lateralOffset = lateralOffset;
+                this.distance = distance;
+                this.width = width;
+            }
+        }
+
+        /**
+         * @return The point on the current track that is closest to (x, y)
+         */
+        public TrackPosition nearestParameter(double x, double y) {
+            return nearestParameter(currentCurve, x, y);
+        }
+
+        /**
+         * @param curve The curve to use instead of the current curve
+         * @return The point on the curve that is closest to (x, y)
+         */
+        public TrackPosition nearestParameter(CurveInterface curve, double x, double y) {
+            TrackPosition position = getIndex(curve).nearest(curve, x, y);
+
+            // Report the parameter the same way getPoint takes it
+            return new TrackPosition(
+                getArcLength(curve).toFraction(position.parameter),
+                position.lateralOffset,
+                position.distance,
+                position.width);
+        }
+
+        /**
+         * The frames of every curve that was used so far
+         */
+        private final ConcurrentHashMap<CurveInterface, FrameTable> frameTables = new ConcurrentHashMap<CurveInterface, FrameTable>();
+
+        /**
+         * @return The frames of a curve, they are computed at the first call
+         */
+        private FrameTable getFrames(CurveInterface curve) {
+            FrameTable frames = frameTables.get(curve);
+            if(frames == null) {
+                FrameTable built = new FrameTable(curve);
+                frames = frameTables.putIfAbsent(curve, built);
+                if(frames == null) {
+                    frames = built;
+                }
+            }
+            return frames;
+        }
+
+        /**
+         * The direction, the way to the outside and the way up of the track,
+         * at points spread evenly over its length.
+         * The frames twist as little as possible along the curve. They are
+         * carried from point to point by two reflections, and the twist that
+         * is left when the track is closed is spread over the whole track.
+         * A flat track keeps the outside horizontal, a track that goes up
+         * and down gets banked where it has to.
+         */
+        private class FrameTable {
+            /**
+             * The amount of pieces the curve is split into
+             */
+            private static final int SAMPLES = 1024;
+
+            /**
+             * The directions at fraction i / SAMPLES, x y and z after each other
+             */
+            private final double [] tangents = new double[3 * (SAMPLES + 1)];
+            private final double [] laterals = new double[3 * (SAMPLES + 1)];
+
+            public FrameTable(CurveInterface curve) {
+                ArcLengthTable table = getArcLength(curve);
+                double [] points = new double[3 * (SAMPLES + 1)];
+                for(int i = 0; i <= SAMPLES; i++) {
+                    curve.evaluate(table.toParameter((double)i / SAMPLES) % 1, points, tangents, i);
+                    normalize(tangents, i);
+                }
+
+                // Start with the outside horizontal, in the direction of tangent x Z
+                laterals[0] = tangents[1];
+                laterals[1] = -tangents[0];
+                laterals[2] = 0;
+                normalize(laterals, 0);
+
+                // Double reflection, first in the plane between the points,
+                // then in the plane between the reflected and the next direction
+                for(int i = 0; i < SAMPLES; i++) {
+                    int a = 3 * i, b = 3 * (i + 1);
+                    double [] v1 = {
+                        points[b] - points[a], points[b+1] - points[a+1], points[b+2] - points[a+2]
+                    };
+                    double c1 = dot(v1, 0, v1, 0);
+                    double [] lateral = { laterals[a], laterals[a+1], laterals[a+2] };
+                    double [] tangent = { tangents[a], tangents[a+1], tangents[a+2] };
+                    if(c1 > 0) {
+                        reflect(lateral, v1, 2 * dot(v1, 0, lateral, 0) / c1);
+                        reflect(tangent, v1, 2 * dot(v1, 0, tangent, 0) / c1);
+                    }
+
+                    double [] v2 = {
+                        tangents[b] - tangent[0], tangents[b+1] - tangent[1], tangents[b+2] - tangent[2]
+                    };
+                    double c2 = dot(v2, 0, v2, 0);
+                    if(c2 > 0) {
+                        reflect(lateral, v2, 2 * dot(v2, 0, lateral, 0) / c2);
+                    }
+
+                    System.arraycopy(lateral, 0, laterals, b, 3);
+                    normalize(laterals, i + 1);
+                }
+
+                // The angle the frame is off after going around once
+                double [] end = { laterals[3*SAMPLES], laterals[3*SAMPLES+1], laterals[3*SAMPLES+2] };
+                double [] cross = cross(end, 0, laterals, 0);
+                double angle = Math.atan2(dot(cross, 0, tangents, 0), dot(end, 0, laterals, 0));
+
+                // Turn every frame a part of that angle, around its direction
+                for(int i = 1; i <= SAMPLES; i++) {
+                    double turn = angle * i / SAMPLES;
+                    double [] turned = cross(tangents, 3 * i, laterals, 3 * i);
+                    for(int k = 0; k < 3; k++) {
+                        laterals[3*i+k] = laterals[3*i+k] * Math.cos(turn) + turned[k] * Math.sin(turn);
+                    }
+                    normalize(laterals, i);
+                }
+            }
+
+            /**
+             * Interpolates the frame at a fraction of the length of the curve.
+             * Every output is optional, and is stored at 3 * index.
+             * @param t The fraction of the length
+             * @param tangent Receives the direction of the curve
+             * @param lateral Receives the way to the outside of the track
+             * @param up Receives the way up from the track
+             */
+            public void lookup(double t, double [] tangent, double [] lateral, double [] up, int index) {
+                int i = Math.max(0, Math.min(SAMPLES - 1, (int)(t * SAMPLES)));
+                double f = t * SAMPLES - i;
+
+                double dx = tangents[3*i]   * (1 - f) + tangents[3*i+3] * f;
+                double dy = tangents[3*i+1] * (1 - f) + tangents[3*i+4] * f;
+                double dz = tangents[3*i+2] * (1 - f) + tangents[3*i+5] * f;
+                double ox = laterals[3*i]   * (1 - f) + laterals[3*i+3] * f;
+                double oy = laterals[3*i+1] * (1 - f) + laterals[3*i+4] * f;
+                double oz = laterals[3*i+2] * (1 - f) + laterals[3*i+5] * f;
+
+                // Locals instead of arrays, this runs for every robot every frame
+                double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                dx /= length;
+                dy /= length;
+                dz /= length;
+
+                // Keep the outside perpendicular to the direction
+                double along = ox * dx + oy * dy + oz * dz;
+                ox -= along * dx;
+                oy -= along * dy;
+                oz -= along * dz;
+                length = Math.sqrt(ox * ox + oy * oy + oz * oz);
+                ox /= length;
+                oy /= length;
+                oz /= length;
+
+                int j = 3 * index;
+                if(tangent != null) {
+                    tangent[j] = dx;
+                    tangent[j+1] = dy;
+                    tangent[j+2] = dz;
+                }
+                if(lateral != null) {
+                    lateral[j] = ox;
+                    lateral[j+1] = oy;
+                    lateral[j+2] = oz;
+                }
+                if(up != null) {
+                    up[j]   = oy * dz - oz * dy;
+                    up[j+1] = oz * dx - ox * dz;
+                    up[j+2] = ox * dy - oy * dx;
+                }
+            }
 
-            for(int i = 0; i < curves.length ; i ++) {
-                newCurves[i] = ((TransformableCurveInterface)curves[i]).scale(scale);
+            private void reflect(double [] vector, double [] normal, double factor) {
+                for(int k = 0; k < 3; k++) {
+                    vector[k] -= factor * normal[k];
+                }
             }
 
-            return new MultiSegmentCurve(newCurves);
+            private double dot(double [] a, int i, double [] b, int j) {
+                return a[i] * b[j] + a[i+1] * b[j+1] + a[i+2] * b[j+2];
+            }
+
+            private double [] cross(double [] a, int i, double [] b, int j) {
+                return new double [] {
+                    a[i+1] * b[j+2] - a[i+2] * b[j+1],
+                    a[i+2] * b[j]   - a[i]   * b[j+2],
+                    a[i]   * b[j+1] - a[i+1] * b[j]
+                };
+            }
+
+            private void normalize(double [] vector, int index) {
+                int i = 3 * index;
+                double length = Math.sqrt(vector[i] * vector[i] + vector[i+1] * vector[i+1] + vector[i+2] * vector[i+2]);
+                vector[i] /= length;
+                vector[i+1] /= length;
+                vector[i+2] /= length;
+            }
         }
 
         /**
-         * {@inheritdoc}
+         * The tessellations of every curve that was used so far
          */
-        @Override
-        public MultiSegmentCurve translate(Vector translation) {
-            CurveInterface [] newCurves = new CurveInterface[curves.length];
+        private final ConcurrentHashMap<CurveInterface, Tessellation> tessellations = new ConcurrentHashMap<CurveInterface, Tessellation>();
 
-            for(int i = 0; i < curves.length ; i ++) {
-                newCurves[i] = ((TransformableCurveInterface)curves[i]).translate(translation);
+        /**
+         * @return The tessellation of a curve, it is built at the first call
+         */
+        private Tessellation getTessellation(CurveInterface curve) {
+            Tessellation tessellation = tessellations.get(curve);
+            if(tessellation == null) {
+                Tessellation built = new Tessellation(curve, TESSELLATION_TOLERANCE);
+                tessellation = tessellations.putIfAbsent(curve, built);
+                if(tessellation == null) {
+                    tessellation = built;
+                }
             }
-
-            return new MultiSegmentCurve(newCurves);
+            return tessellation;
         }
-    }
 
-    /**
-     * Implementation of a race track that is made from Bezier segments.
-     */
-    private class RaceTrack {
         /**
-         * The current track that is in use
+         * The curve split into pieces that can be drawn as straight lines.
+         * A piece is halved until the middle of both edges of the track lies
+         * within the tolerance of the line between its ends, and the track
+         * turns less than MAX_TURN over it. Straight parts end up with few
+         * pieces, sharp bends with many.
          */
-        protected CurveInterface currentCurve;
+        private class Tessellation {
+            /**
+             * The amount of pieces to start with, so no bend is skipped
+             */
+            private static final int INITIAL_PIECES = 16;
 
-        /**
-         * All the available curves
-         */
-        protected CurveInterface [] curves = new CurveInterface[] {
-            // 0: default
-            new OvalCurve(),
+            /**
+             * The amount of times a piece can be halved
+             */
+            private static final int MAX_DEPTH = 16;
 
-            // 1: O-track
-            new BezierCurve(new Vector[] {
-                new Vector( 0,	 10,    1),
-                new Vector( 5.5, 10,    1),
+            /**
+             * The curve parameters of the ends of the pieces, from 0 up to and including 1
+             */
+            public final double [] parameters;
 
-                new Vector( 10,  5.5,   1),
-                new Vector( 10,  0,     1),
-                new Vector( 10, -5.5,   1),
+            /**
+             * The same points as a fraction of the length of the curve
+             */
+            public final double [] fractions;
 
-                new Vector( 5.5,-10,    1),
-                new Vector( 0,  -10,    1),
-                new Vector(-5.5,-10,    1),
+            private final CurveInterface curve;
+            private final ArcLengthTable table;
+            private final FrameTable frames;
+            private final double tolerance;
+            private final double minTurnCos = Math.cos(MAX_TURN);
 
-                new Vector(-10, -5.5,   1),
-                new Vector(-10,  0,     1),
-                new Vector(-10, 5.5,    1),
+            /**
+             * Room for the points that are kept, it grows when it is full
+             */
+            private double [] kept = new double[2 * INITIAL_PIECES];
 
-                new Vector(-5.5, 10,    1),
-                new Vector( 0,   10,    1),
-            }),
+            /**
+             * The amount of points that are kept
+             */
+            private int keptCount = 0;
 
-            // 1: L-track
-            new MultiSegmentCurve(new  CurveInterface[] {
-                new BezierCurve(new Vector [] {
-                    new Vector(     0,     10,  1),
-                    new Vector(     0,     12,  1),
-                    new Vector(     2,     12,  1),
-                    new Vector(     2,     10,  1),
-                }),
-                new BezierCurve(new Vector [] {
-                    new Vector(     2,     10,  1),
-                    new Vector(     2,      0,  1),
-                    new Vector(     0,      2,  1),
-                    new Vector(     5,      2,  1),
-                }),
-                new BezierCurve(new Vector [] {
-                    new Vector(     5,      2,  1),
-                    new Vector(     7,      2,  1),
-                    new Vector(     7,      0,  1),
-                    new Vector(     5,      0,  1),
-                }),
-                new BezierCurve(new Vector [] {
-                    new Vector(     5,      0,  1),
-                    new Vector(    -2,      0,  1),
-                    new Vector(     0,     -2,  1),
-                    new Vector(     0,     10,  1),
-                }),
-            }).scale(new Vector(4, 4, 1)).translate(new Vector(-15, -20, 1)),
+            /**
+             * @param tolerance How far the edges of the track may be off the pieces
+             */
+            public Tessellation(CurveInterface curve, double tolerance) {
+                this.curve = curve;
+                this.tolerance = tolerance;
+                table = getArcLength(curve);
+                frames = getFrames(curve);
+
+                double [] start = sample(0);
+                keep(0);
+                for(int i = 0; i < INITIAL_PIECES; i++) {
+                    double end = (double)(i + 1) / INITIAL_PIECES;
+                    double [] next = sample(end);
+                    split((double)i / INITIAL_PIECES, start, end, next, 0);
+                    start = next;
+                }
 
-            // 2: C-track
-            new MultiSegmentCurve(new CurveInterface[] {
-                new BezierCurve(new Vector[] {
-                    new Vector( 0,      0,      1),
-                    new Vector(15,      0,      1),
-                    new Vector(15,     10,      1),
-                    new Vector( 0,     10,      1),
-                }),
-                new BezierCurve(new Vector[] {
-                    new Vector( 0,     10,      1),
-                    new Vector(-30,     10,     1),
-                    new Vector(-30,     40,     1),
-                    new Vector( 0,     40,      1),
+                parameters = Arrays.copyOf(kept, keptCount);
+                fractions = new double[keptCount];
+                for(int i = 0; i < parameters.length; i++) {
+                    fractions[i] = table.toFraction(parameters[i]);
+                }
+            }
 
-                }),
-                new BezierCurve(new Vector[] {
-                    new Vector( 0,     40,      1),
-                    new Vector(15,     40,      1),
-                    new Vector(15,     50,      1),
-                    new Vector( 0,     50,      1),
-                }),
-                new BezierCurve(new Vector[] {
-                    new Vector( 0,     50,      1),
-                    new Vector(-50,    50,      1),
-                    new Vector(-50,     0,      1),
-                    new Vector( 0,      0,      1),
+            /**
+             * Adds a point to the points that are kept
+             */
+            private void keep(double t) {
+                if(keptCount == kept.length) {
+                    kept = Arrays.copyOf(kept, 2 * keptCount);
+                }
+                kept[keptCount++] = t;
+            }
 
-                }),
-            }).translate(new Vector(0, -25, 0)).scale(new Vector(0.5, 0.5, 0.5)),
+            /**
+             * Keeps the end of the piece from a to b, after keeping the
+             * ends of its halves if it is not flat enough
+             */
+            private void split(double a, double [] sa, double b, double [] sb, int depth) {
+                double m = (a + b) / 2;
+                double [] sm = sample(m);
+
+                if(depth < MAX_DEPTH && !isFlat(sa, sm, sb)) {
+                    split(a, sa, m, sm, depth + 1);
+                    split(m, sm, b, sb, depth + 1);
+                } else {
+                    keep(b);
+                }
+            }
 
-            // 3: Custom track
-            new MultiSegmentCurve(new CurveInterface[] {
-                new BezierCurve(new Vector [] {
-                    new Vector (0,      0,  0),
-                    new Vector (-10,   20,  5),
-                    new Vector (20,     0,  5),
-                    new Vector (0,      0, 10)
-                }),
-                new BezierCurve(new Vector [] {
-                    new Vector (0,      0, 10),
-                    new Vector (-20,    0,  5),
-                    new Vector (10,   -20,  5),
-                    new Vector (0,      0,  0),
-                }),
-            }).scale(new Vector(2, 2, .5)),
-        };
+            /**
+             * @return If the piece between a and b can be drawn as a straight line
+             */
+            private boolean isFlat(double [] a, double [] m, double [] b) {
+                // The track should not turn too much
+                if(a[3] * b[3] + a[4] * b[4] + a[5] * b[5] < minTurnCos) {
+                    return false;
+                }
 
-        /**
-         * Initializes the race track, sets the default curve to 0.
-         */
-        public RaceTrack() {
-            setCurrentCurve(curves[0]);
+                // Nor be too long
+                double dx = b[0] - a[0], dy = b[1] - a[1], dz = b[2] - a[2];
+                if(dx*dx + dy*dy + dz*dz > MAX_PIECE_LENGTH * MAX_PIECE_LENGTH) {
+                    return false;
+                }
+
+                // Both the inside and the outside should be close to the chord
+                for(double side = 0; side <= WIDTH; side += WIDTH) {
+                    if(chordError(
+                            a[0] + a[6] * side, a[1] + a[7] * side, a[2] + a[8] * side,
+                            m[0] + m[6] * side, m[1] + m[7] * side, m[2] + m[8] * side,
+                            b[0] + b[6] * side, b[1] + b[7] * side, b[2] + b[8] * side) > tolerance) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * @return The distance from m to the line piece from a to b
+             */
+            private double chordError(double ax, double ay, double az,
+                    double mx, double my, double mz, double bx, double by, double bz) {
+                double dx = bx - ax, dy = by - ay, dz = bz - az;
+                double px = mx - ax, py = my - ay, pz = mz - az;
+                double lengthSquared = dx*dx + dy*dy + dz*dz;
+                double f = lengthSquared > 0 ? (px*dx + py*dy + pz*dz) / lengthSquared : 0;
+                f = Math.max(0, Math.min(1, f));
+                double ex = px - f*dx, ey = py - f*dy, ez = pz - f*dz;
+                return Math.sqrt(ex*ex + ey*ey + ez*ez);
+            }
+
+            /**
+             * @return The point, the normalized direction of the curve and the
+             * way to the outside at t, as x y z, dx dy dz, lx ly lz
+             */
+            private double [] sample(double t) {
+                double [] sample = new double[9];
+                double [] tangent = new double[3];
+                curve.evaluate(t % 1, sample, tangent, 0);
+
+                double length = Math.sqrt(tangent[0]*tangent[0] + tangent[1]*tangent[1] + tangent[2]*tangent[2]);
+                sample[3] = tangent[0] / length;
+                sample[4] = tangent[1] / length;
+                sample[5] = tangent[2] / length;
+
+                double [] lateral = new double[3];
+                frames.lookup(table.toFraction(t % 1), null, lateral, null, 0);
+                System.arraycopy(lateral, 0, sample, 6, 3);
+                return sample;
+            }
         }
 
         /**
-         * Sets the current track, clears the collision cache.
-         * @param curve The curve to set it to
+         * The spatial index of every curve that was used so far
          */
-        protected void setCurrentCurve(CurveInterface curve) {
-            currentCurve = curve;
-            cachedCollisions = null;
-        }
-
-        public void setCurrentCurve(int curve) {
-            setCurrentCurve(curves[curve]);
-        }
+        private final ConcurrentHashMap<CurveInterface, TrackIndex> indices = new ConcurrentHashMap<CurveInterface, TrackIndex>();
 
         /**
-         * @return The integral representation of the curve. -1 When it is not set to a valid value.
+         * @return The index of a curve, it is built at the first call
          */
-        public int getCurrentCurve() {
-            for(int i = 0; i < curves.length; i ++) {
-                if(currentCurve == curves[i]) {
-                    return i;
+        private TrackIndex getIndex(CurveInterface curve) {
+            TrackIndex index = indices.get(curve);
+            if(index == null) {
+                TrackIndex built = new TrackIndex(curve);
+                index = indices.putIfAbsent(curve, built);
+                if(index == null) {
+                    index = built;
                 }
             }
-
-            return -1;
+            return index;
         }
 
-        // Fps dependant color switching variable
-        float x = 0;
-
         /**
-         * Draws this track.
+         * The curve as line pieces, sorted into a uniform grid of cells.
+         * Only the cells near a position are searched for the closest piece.
          */
-        public void draw() {
-            x+=0.2;
-            
-            final double STEP = 0.01;
+        private class TrackIndex {
+            /**
+             * The size of a cell of the grid
+             */
+            private static final double CELL_SIZE = 2;
 
-            // Enable textures
-            gl.glEnable(gl.GL_TEXTURE_2D);
-                // Loop through the sides
-                for(int j = 0; j < 4; j++) {
-                    // Bind the right texture
-                    if(j == 0) {
-                        track.bind(gl);
-                    } else {
-                        brick.bind(gl);
+            /**
+             * The most Newton steps to refine the closest point with, and the
+             * distance along the curve at which they stop early
+             */
+            private static final int NEWTON_STEPS = 8;
+            private static final double NEWTON_TOLERANCE = 1e-6;
+
+            /**
+             * The amount of line pieces
+             */
+            private final int segments;
+
+            /**
+             * The ends of the line pieces and their curve parameters, segments + 1 of them
+             */
+            private final double [] xs, ys, ts;
+
+            /**
+             * The lower corner and amount of cells of the grid
+             */
+            private final double minX, minY;
+            private final int nx, ny;
+
+            /**
+             * The pieces in cell i are cellSegments[cellStart[i]] up to cellSegments[cellStart[i+1]]
+             */
+            private final int [] cellStart;
+            private final int [] cellSegments;
+
+            public TrackIndex(CurveInterface curve) {
+                double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+                double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+                ts = getTessellation(curve).parameters;
+                segments = ts.length - 1;
+                xs = new double[segments + 1];
+                ys = new double[segments + 1];
+                for(int i = 0; i <= segments; i++) {
+                    Vector point = curve.getPoint(ts[i] % 1);
+                    xs[i] = point.x();
+                    ys[i] = point.y();
+                    x0 = Math.min(x0, xs[i]); x1 = Math.max(x1, xs[i]);
+                    y0 = Math.min(y0, ys[i]); y1 = Math.max(y1, ys[i]);
+                }
+
+                minX = x0;
+                minY = y0;
+                nx = (int)((x1 - x0) / CELL_SIZE) + 1;
+                ny = (int)((y1 - y0) / CELL_SIZE) + 1;
+
+                // Count the pieces of every cell first, then fill them in
+                cellStart = new int[nx * ny + 1];
+                for(int i = 0; i < segments; i++) {
+                    int cx0 = cellX(Math.min(xs[i], xs[i+1])), cx1 = cellX(Math.max(xs[i], xs[i+1]));
+                    int cy0 = cellY(Math.min(ys[i], ys[i+1])), cy1 = cellY(Math.max(ys[i], ys[i+1]));
+                    for(int cy = cy0; cy <= cy1; cy++) {
+                        for(int cx = cx0; cx <= cx1; cx++) {
+                            cellStart[cy * nx + cx + 1]++;
+                        }
                     }
+                }
+                for(int c = 0; c < nx * ny; c++) {
+                    cellStart[c+1] += cellStart[c];
+                }
 
-                    // Set correct settings
-                    gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
-                    gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
-
-                    // Draw a side of the track
-                    gl.glBegin(gl.GL_TRIANGLE_STRIP);
-                        // Divide the track up in small peices
-                        // -3*STEP to make the ends less noticable
-                        for(double i = -3*STEP; i <= 1; i += STEP) {
-                            // Find the location on the track
-                            Vector initialPoint = getPoint(i),
-                                    point = initialPoint;
-
-                            // Modify the point depending on the side
-                            if(j == 1) {
-                                point = getLower(point);
-                            } else if (j == 2) {
-                                point = getOuter(i, point);
-                            }
+                cellSegments = new int[cellStart[nx * ny]];
+                int [] fill = cellStart.clone();
+                for(int i = 0; i < segments; i++) {
+                    int cx0 = cellX(Math.min(xs[i], xs[i+1])), cx1 = cellX(Math.max(xs[i], xs[i+1]));
+                    int cy0 = cellY(Math.min(ys[i], ys[i+1])), cy1 = cellY(Math.max(ys[i], ys[i+1]));
+                    for(int cy = cy0; cy <= cy1; cy++) {
+                        for(int cx = cx0; cx <= cx1; cx++) {
+                            cellSegments[fill[cy * nx + cx]++] = i;
+                        }
+                    }
+                }
+            }
 
-                            // Calculate textcoord, top depends on fps-dependant time
-                            float texcoordy = j == 0 ? (float)(i * 100) - x : (float)(i * 1000);
-
-                            // Set the color for all sides but the top
-                            if(j != 0) gl.glColor3d(
-                                    Math.sin(i*2*Math.PI+x)/2+.5,
-                                    Math.sin(i*4*Math.PI+x)/2+.5,
-                                    Math.sin(i*8*Math.PI+x)/2+.5);
-
-                            // Set normals
-                            if(i==0) {
-                                gl.glNormal3f(0.f, 0.f, 1.f);
-                            } else if(i == 1) {
-                                gl.glNormal3f(0.f, 0.f, -1.f);
-                            } else {
-                                // Calculate the normals from the derivative
-                                Vector outsideDirection = point.subtract(initialPoint);
-                                if(i == 3) {
-                                    outsideDirection.scale(-1);
-                                }
-                                gl.glNormal3d(outsideDirection.x(), outsideDirection.y(), outsideDirection.z());
-                            }
+            private int cellX(double x) {
+                return Math.max(0, Math.min(nx-1, (int)((x - minX) / CELL_SIZE)));
+            }
+
+            private int cellY(double y) {
+                return Math.max(0, Math.min(ny-1, (int)((y - minY) / CELL_SIZE)));
+            }
 
-                            // Set the coordinates for the texture
-                            gl.glTexCoord2f(0.f, texcoordy);
-
-                            // Draw the first point
-                            gl.glVertex3d(point.x(), point.y(), point.z());
-
-                            // Find the other point
-                            Vector outerPoint = (j == 2 || j == 3) ? getLower(point) : getOuter(i, point);
-
-                            // Set the correct normal
-                            if(i==0) {
-                                gl.glNormal3f(0.f, 0.f, 1.f);
-                            } else if(i == 1) {
-                                gl.glNormal3f(0.f, 0.f, -1.f);
-                            } else if(i == 2) {
-                                // Calculate the normal
-                                Vector outsideDirection = point.subtract(initialPoint);
-                                if(i == 3) {
-                                    outsideDirection.scale(-1);
+            /**
+             * @return The closest point on the curve
+             */
+            public TrackPosition nearest(CurveInterface curve, double x, double y) {
+                // The rings around the cell of the position, clamped to the grid.
+                // A cell in ring k+1 is at least k cells away, so the search can
+                // stop as soon as the best piece is closer than that.
+                int cx = cellX(x), cy = cellY(y);
+                int bestSegment = -1;
+                double bestFraction = 0;
+                double bestDistance = Double.MAX_VALUE;
+
+                for(int k = 0; k <= Math.max(nx, ny); k++) {
+                    for(int gy = cy - k; gy <= cy + k; gy++) {
+                        if(gy < 0 || gy >= ny) continue;
+                        boolean edgeRow = gy == cy - k || gy == cy + k;
+                        for(int gx = cx - k; gx <= cx + k; gx += edgeRow ? 1 : 2 * k) {
+                            if(gx >= 0 && gx < nx) {
+                                int cell = gy * nx + gx;
+                                for(int j = cellStart[cell]; j < cellStart[cell+1]; j++) {
+                                    int i = cellSegments[j];
+                                    double dx = xs[i+1] - xs[i], dy = ys[i+1] - ys[i];
+                                    double lengthSquared = dx*dx + dy*dy;
+                                    double f = lengthSquared > 0 ? ((x - xs[i])*dx + (y - ys[i])*dy) / lengthSquared : 0;
+                                    f = Math.max(0, Math.min(1, f));
+                                    double ex = x - xs[i] - f*dx, ey = y - ys[i] - f*dy;
+                                    double distance = ex*ex + ey*ey;
+                                    if(distance < bestDistance) {
+                                        bestDistance = distance;
+                                        bestSegment = i;
+                                        bestFraction = f;
+                                    }
                                 }
-                                gl.glNormal3d(outsideDirection.x(), outsideDirection.y(), outsideDirection.z());
                             }
+                            if(k == 0) break;
+                        }
+                    }
 
-                            // Set the correct textcoord
-                            gl.glTexCoord2f(j == 0 ? 1.f : 5.f, texcoordy);
+                    if(bestSegment != -1 && Math.sqrt(bestDistance) <= k * CELL_SIZE) {
+                        break;
+                    }
+                }
 
-                            // Draw the point
-                            gl.glVertex3d(outerPoint.x(), outerPoint.y(), outerPoint.z());
-                        }
-                    gl.glEnd();
+                // Refine on the curve itself. The first step estimates the speed
+                // of the curve from the length of the piece, the next ones use the
+                // change of the distance along the curve. That change is slower or
+                // faster than the speed when the position is far from a bend.
+                double span = ts[bestSegment+1] - ts[bestSegment];
+                double t = ts[bestSegment] + bestFraction * span;
+                double dx = xs[bestSegment+1] - xs[bestSegment], dy = ys[bestSegment+1] - ys[bestSegment];
+                double speed = Math.sqrt(dx*dx + dy*dy) / span;
+
+                double refined = t;
+                double previous = t, previousAlong = 0;
+                for(int step = 0; step < NEWTON_STEPS && speed > 0; step++) {
+                    double along = along(curve, refined, x, y);
+                    if(Math.abs(along) < NEWTON_TOLERANCE) {
+                        break;
+                    }
+
+                    double rate = speed;
+                    if(step > 0 && along != previousAlong) {
+                        rate = (previousAlong - along) / (refined - previous);
+                    }
+                    if(rate <= 0) {
+                        break;
+                    }
+
+                    previous = refined;
+                    previousAlong = along;
+                    refined += along / rate;
                 }
-            gl.glDisable(gl.GL_TEXTURE_2D);
+                refined = normalizeParam(refined);
+
+                // Keep the piece if the steps went the wrong way
+                TrackPosition position = positionAt(curve, refined, x, y);
+                TrackPosition unrefined = positionAt(curve, normalizeParam(t), x, y);
+                return unrefined.distance < position.distance ? unrefined : position;
+            }
+
+            /**
+             * @return How far (x, y) lies along the curve from the point at parameter t
+             */
+            private double along(CurveInterface curve, double t, double x, double y) {
+                Vector point = curve.getPoint(normalizeParam(t));
+                Vector tangent = getTangent(curve, t).normalized();
+                return (x - point.x()) * tangent.x() + (y - point.y()) * tangent.y();
+            }
+
+            /**
+             * @return The position of (x, y) relative to the curve at parameter t
+             */
+            private TrackPosition positionAt(CurveInterface curve, double t, double x, double y) {
+                Vector point = curve.getPoint(t);
+                Vector outside = getLateral(curve, t);
+                double ex = x - point.x(), ey = y - point.y();
+
+                // How far towards the outside the point is, seen from above.
+                // On a banked track the outside is nearer than WIDTH from above.
+                double length = Math.sqrt(outside.x() * outside.x() + outside.y() * outside.y());
+                double lateral = (ex * outside.x() + ey * outside.y()) / length;
+                return new TrackPosition(t, lateral, Math.sqrt(ex*ex + ey*ey), WIDTH * length);
+            }
         }
 
-        /**
-         * @param initalPosition The coordinate of the top of the track
-         * @return The coordinate of the bottom of the track
-         */
-        Vector getLower(Vector initialPosition) {
-            return new Vector(initialPosition.x(), initialPosition.y(), initialPosition.z()-1);
+        public TrackCollision findCollision(float x, float y){
+            return findCollision(currentCurve, x, y);
         }
-        
+
         /**
-         * @param t Parameter
-         * @param initalPosition The position of the inside of the track
-         * @return The position of the outside of the track
+         * @param curve The curve to use instead of the current curve
          */
-        Vector getOuter(double t, Vector initialPosition) {
-            Vector tangent = getTangent(t);
-
-            // Assume the track is always flat
-            Vector upVector = Vector.Z;//initialPosition.cross(tangent);
+        public TrackCollision findCollision(CurveInterface curve, float x, float y){
+            TrackPosition position = nearestParameter(curve, x, y);
 
-            // Calculate the direction
-            Vector directionVector = tangent.cross(upVector)
-                                            .normalized()
-                                            .scale(4);
+            // On the track when between the inside and outside, with some margin
+            double along = Math.sqrt(Math.max(0,
+                position.distance * position.distance - position.lateralOffset * position.lateralOffset));
+            if( position.lateralOffset >= -COLLISION_MARGIN &&
+                position.lateralOffset <= position.width + COLLISION_MARGIN &&
+                along <= COLLISION_MARGIN) {
+                return new TrackCollision(true, position.parameter);
+            }
 
-            // Add it to the inital position
-            return initialPosition.add(directionVector);
+            // Return no collision
+            return new TrackCollision(false);
         }
 
         /**
-         * @param t A non normalized track parameter
-         * @return A normalized track parameter
+         * Change the height of the terain at a certain point
          */
-        double normalizeParam(double t) {
-            while(t < 0) t++;
-            return t % 1;
+        public float changeHeight(float x, float y, float height){
+            return changeHeight(currentCurve, x, y, height);
         }
+
         /**
-         * @param t Parameter
-         * @return The position of the curve at 0 <= {@code t} <= 1.
+         * @param curve The curve to use instead of the current curve
          */
-        public Vector getPoint(double t) {
-            return currentCurve.getPoint(normalizeParam(t));
+        public float changeHeight(CurveInterface curve, float x, float y, float height){
+            if(height > 0.5f){
+                if(isOnTrack(curve, x, y)) {
+                    height = 0.5f;
+                }
+            }
+            return height;
         }
 
         /**
-         * @param t Parameter
-         * @return the normalized horizontal tangent of the curve at 0 <= {@code t} <= 1.
+         * @return If a point is on the track, or close to it. Only x and y are
+         * taken into account.
          */
-        public Vector getTangent(double t) {
-            Vector tangent = currentCurve.getTangent(normalizeParam(t)).normalized();
-            return new Vector(tangent.x(), tangent.y(), 0);
+        public boolean isOnTrack(CurveInterface curve, float x, float y) {
+            TrackMask mask = getMask(curve);
+            if(mask.contains(x, y)) {
+                return mask.distance(x, y) <= COLLISION_MARGIN;
+            }
+
+            // Outside of the mask, fall back to the slow check
+            return findCollision(curve, x, y).isCollision;
         }
-        
+
         /**
-         * Collision of the track with the terrain
+         * The masks of every curve that was used so far
          */
-        public class TrackCollision {
-            public final boolean isCollision;
-            public final double collisionPosition;
-
-            public TrackCollision(boolean isCollision, double collisionPosition) {
-                this.isCollision = isCollision;
-                this.collisionPosition = collisionPosition;
-            }
+        private final ConcurrentHashMap<CurveInterface, TrackMask> masks = new ConcurrentHashMap<CurveInterface, TrackMask>();
 
-            public TrackCollision(boolean isCollision) {
-                this(false, 0);
-                assert(!isCollision);
+        /**
+         * @return The mask of a curve, it is built at the first call
+         */
+        private TrackMask getMask(CurveInterface curve) {
+            TrackMask mask = masks.get(curve);
+            if(mask == null) {
+                // Rasterizing takes long, it is done without a lock like the other tables
+                TrackMask built = new TrackMask(curve);
+                mask = masks.putIfAbsent(curve, built);
+                if(mask == null) {
+                    mask = built;
+                }
             }
-        };
+            return mask;
+        }
 
         /**
-         * Cache entry of collisions
+         * The distance to the track on a grid, so the distance at a point
+         * can be looked up without going over the whole track.
+         * The track is seen from above, heights are ignored.
          */
-        private class CollisionPoint {
-            public final double parameter;
-            public final Vector inner, outer;
+        private class TrackMask {
+            /**
+             * The mask covers the terrain, which goes from -75 to 75
+             */
+            private static final float EXTENT = 76;
 
-            CollisionPoint(double parameter, Vector inner, Vector outer) {
-                this.parameter = parameter;
-                this.inner = inner;
-                this.outer = outer;
-            }
-        }
+            /**
+             * The size of a cell, the same as the finest terrain grid
+             */
+            private static final float CELL_SIZE = 0.25f;
 
-        ArrayList<CollisionPoint> cachedCollisions = null;
-        public TrackCollision findCollision(float x, float y){
-            // Cache bezier, prebuild all collisions at first call
-            if(cachedCollisions == null) {
-                cachedCollisions = new ArrayList<CollisionPoint>();
+            /**
+             * Half the width of the track
+             */
+            private static final float HALF_WIDTH = WIDTH / 2;
 
-                // Brute force 'all' positions
-                for(double t = 0; t < 1; t += 0.01) {
-                    Vector point = currentCurve.getPoint(t);
-                    cachedCollisions.add(new CollisionPoint(t, point, getOuter(t, point)));
-                }
-            }
+            /**
+             * Distances further than this are not computed exactly
+             */
+            private static final float MAX_DISTANCE = 2;
+
+            /**
+             * The amount of grid points in each direction
+             */
+            private final int size = (int)Math.ceil(2 * EXTENT / CELL_SIZE) + 1;
+
+            /**
+             * The distance from every grid point to the edge of the track, row by row.
+             * It is negative on the track.
+             */
+            private final float [] distances = new float[size * size];
 
-            // Brute force, compare with cache
-            Vector initialVector = new Vector(x, y, 1);
+            /**
+             * Rasterize the track
+             */
+            public TrackMask(CurveInterface curve) {
+                Arrays.fill(distances, MAX_DISTANCE);
+
+                // The middle of the track lies halfway between the inside and the outside
+                double [] ts = getTessellation(curve).parameters;
+                int samples = ts.length - 1;
+                double [] xs = new double[samples + 1];
+                double [] ys = new double[samples + 1];
+                for(int i = 0; i <= samples; i++) {
+                    double t = ts[i];
+                    Vector point = curve.getPoint(t % 1);
+                    Vector middle = point.add(getOuter(curve, t, point).subtract(point).scale(0.5));
+                    xs[i] = middle.x();
+                    ys[i] = middle.y();
+                }
 
-            for(CollisionPoint point : cachedCollisions) {
-                if( initialVector.subtract(point.inner).length() <= 4.2 &&
-                    initialVector.subtract(point.outer).length() <= 4.2) {
-                    return new TrackCollision(true, point.parameter);
+                // Every line piece only changes the grid points close to it
+                double reach = HALF_WIDTH + MAX_DISTANCE;
+                for(int i = 0; i < samples; i++) {
+                    double ax = xs[i], ay = ys[i];
+                    double dx = xs[i+1] - ax, dy = ys[i+1] - ay;
+                    double lengthSquared = dx*dx + dy*dy;
+
+                    int ix0 = Math.max(0,      (int)Math.floor((Math.min(ax, ax+dx) - reach + EXTENT) / CELL_SIZE));
+                    int ix1 = Math.min(size-1, (int)Math.ceil ((Math.max(ax, ax+dx) + reach + EXTENT) / CELL_SIZE));
+                    int iy0 = Math.max(0,      (int)Math.floor((Math.min(ay, ay+dy) - reach + EXTENT) / CELL_SIZE));
+                    int iy1 = Math.min(size-1, (int)Math.ceil ((Math.max(ay, ay+dy) + reach + EXTENT) / CELL_SIZE));
+
+                    for(int iy = iy0; iy <= iy1; iy++) {
+                        double py = iy * CELL_SIZE - EXTENT - ay;
+                        for(int ix = ix0; ix <= ix1; ix++) {
+                            double px = ix * CELL_SIZE - EXTENT - ax;
+
+                            // Distance to the closest point of the line piece
+                            double f = lengthSquared > 0 ? (px*dx + py*dy) / lengthSquared : 0;
+                            f = Math.max(0, Math.min(1, f));
+                            double ex = px - f*dx, ey = py - f*dy;
+                            float distance = (float)(Math.sqrt(ex*ex + ey*ey) - HALF_WIDTH);
+
+                            int index = iy * size + ix;
+                            if(distance < distances[index]) {
+                                distances[index] = distance;
+                            }
+                        }
+                    }
                 }
             }
 
-            // Return no collision
-            return new TrackCollision(false);
-        }
+            /**
+             * @return If the point lies within the mask
+             */
+            public boolean contains(float x, float y) {
+                return Math.abs(x) < EXTENT && Math.abs(y) < EXTENT;
+            }
 
-        /**
-         * Change the height of the terain at a certain point
-         */
-        public float changeHeight(float x, float y, float height){
-            if(height > 0.5f){
-                TrackCollision collision = findCollision(x, y);
-                if(collision.isCollision) {
-                    height = 0.5f;
-                }
+            /**
+             * @return The distance to the track, interpolated from the grid.
+             * It is negative on the track, and at most MAX_DISTANCE.
+             */
+            public float distance(float x, float y) {
+                float gx = (x + EXTENT) / CELL_SIZE;
+                float gy = (y + EXTENT) / CELL_SIZE;
+                int ix = Math.min(size-2, (int)gx);
+                int iy = Math.min(size-2, (int)gy);
+                float fx = gx - ix, fy = gy - iy;
+
+                int index = iy * size + ix;
+                float lower = distances[index]        * (1-fx) + distances[index+1]        * fx;
+                float upper = distances[index + size] * (1-fx) + distances[index + size+1] * fx;
+                return lower * (1-fy) + upper * fy;
             }
-            return height;
         }
     }
 
@@ -2192,6 +5054,11 @@ public class RobotRace extends Base {
      */
     public static final int FLOAT_SIZE = 4;
 
+    /**
+     * The size of an integer in bytes: 4 (32 bits)
+     */
+    public static final int INT_SIZE = 4;
+
     /**
      * A chunk of data that can be used in a vertex definition
      */
@@ -2204,7 +5071,9 @@ public class RobotRace extends Base {
 
         TEXTCOORD_1D(1  * FLOAT_SIZE),
         TEXTCOORD_2D(2  * FLOAT_SIZE),
-        TEXTCOORD_3D(3  * FLOAT_SIZE);
+        TEXTCOORD_3D(3  * FLOAT_SIZE),
+
+        COLOR_3D(3      * FLOAT_SIZE);
 
         /**
          * Size of the data in bytes
@@ -2229,11 +5098,26 @@ public class RobotRace extends Base {
          */
         protected VertexDefinitionPart [] parts;
 
+        /**
+         * The compiled form of the definition, created when first needed
+         */
+        private VertexLayout layout = null;
+
         public VertexDefinition(VertexDefinitionPart [] parts) {
             assert(parts != null);
             this.parts = parts;
         }
 
+        /**
+         * @return The compiled layout of this definition
+         */
+        public VertexLayout compile() {
+            if(layout == null) {
+                layout = new VertexLayout(parts);
+            }
+            return layout;
+        }
+
         /**
          * @return The stride of the vertex
          */
@@ -2290,20 +5174,141 @@ public class RobotRace extends Base {
         }
     };
 
+    /**
+     * Compiled form of a vertex definition.
+     * The offsets of all parts and the calls that are needed to set up the
+     * client state are computed once, so they don't have to be searched for
+     * every vertex and every draw.
+     */
+    public class VertexLayout {
+        /**
+         * The byte offset of every part in a vertex, by ordinal. -1 When the part is not in the layout.
+         */
+        private final int [] offsets = new int[VertexDefinitionPart.values().length];
+
+        /**
+         * The total size of a vertex in bytes
+         */
+        private final int stride;
+
+        /**
+         * The client states to enable, with the part that is used for the pointer of each
+         */
+        private final int [] clientStates;
+        private final VertexDefinitionPart [] pointerParts;
+
+        VertexLayout(VertexDefinitionPart [] parts) {
+            Arrays.fill(offsets, -1);
+
+            int offset = 0;
+            for(VertexDefinitionPart part : parts) {
+                offsets[part.ordinal()] = offset;
+                offset += part.getStride();
+            }
+            stride = offset;
+
+            // Build the plan for enable, only the first part of each kind is used
+            ArrayList<Integer> states = new ArrayList<Integer>();
+            ArrayList<VertexDefinitionPart> pointers = new ArrayList<VertexDefinitionPart>();
+            VertexDefinitionPart [][] kinds = {
+                { VertexDefinitionPart.POSITION_1D, VertexDefinitionPart.POSITION_2D, VertexDefinitionPart.POSITION_3D },
+                { VertexDefinitionPart.TEXTCOORD_1D, VertexDefinitionPart.TEXTCOORD_2D, VertexDefinitionPart.TEXTCOORD_3D },
+                { VertexDefinitionPart.NORMAL },
+                { VertexDefinitionPart.COLOR_3D }
+            };
+            int [] kindStates = { GL2.GL_VERTEX_ARRAY, GL2.GL_TEXTURE_COORD_ARRAY, GL2.GL_NORMAL_ARRAY, GL2.GL_COLOR_ARRAY };
+
+            for(int i = 0; i < kinds.length; i++) {
+                for(VertexDefinitionPart part : kinds[i]) {
+                    if(hasPart(part)) {
+                        states.add(kindStates[i]);
+                        pointers.add(part);
+                        break;
+                    }
+                }
+            }
+
+            clientStates = new int[states.size()];
+            pointerParts = new VertexDefinitionPart[pointers.size()];
+            for(int i = 0; i < clientStates.length; i++) {
+                clientStates[i] = states.get(i);
+                pointerParts[i] = pointers.get(i);
+            }
+        }
+
+        /**
+         * @return The stride of the vertex
+         */
+        public int getStride() {
+            return stride;
+        }
+
+        /**
+         * @return The byte offset of a part, -1 when the layout does not contain it
+         */
+        public int getOffset(VertexDefinitionPart part) {
+            return offsets[part.ordinal()];
+        }
+
+        /**
+         * @return If the layout contains a certain part
+         */
+        public boolean hasPart(VertexDefinitionPart part) {
+            return offsets[part.ordinal()] != -1;
+        }
+
+        /**
+         * Enable the client states and set the pointers into the bound buffer
+         */
+        public void enable() {
+            for(int i = 0; i < clientStates.length; i++) {
+                VertexDefinitionPart part = pointerParts[i];
+                int offset = offsets[part.ordinal()];
+
+                gl.glEnableClientState(clientStates[i]);
+
+                switch(part) {
+                    case POSITION_1D:   gl.glVertexPointer(1, gl.GL_FLOAT, stride, offset);     break;
+                    case POSITION_2D:   gl.glVertexPointer(2, gl.GL_FLOAT, stride, offset);     break;
+                    case POSITION_3D:   gl.glVertexPointer(3, gl.GL_FLOAT, stride, offset);     break;
+                    case TEXTCOORD_1D:  gl.glTexCoordPointer(1, gl.GL_FLOAT, stride, offset);   break;
+                    case TEXTCOORD_2D:  gl.glTexCoordPointer(2, gl.GL_FLOAT, stride, offset);   break;
+                    case TEXTCOORD_3D:  gl.glTexCoordPointer(3, gl.GL_FLOAT, stride, offset);   break;
+                    case NORMAL:        gl.glNormalPointer(gl.GL_FLOAT, stride, offset);        break;
+                    case COLOR_3D:      gl.glColorPointer(3, gl.GL_FLOAT, stride, offset);      break;
+                }
+            }
+        }
+
+        /**
+         * Disable the client states that were enabled by enable
+         */
+        public void disable() {
+            for(int clientState : clientStates) {
+                gl.glDisableClientState(clientState);
+            }
+        }
+    }
+
     /**
      * Builder for VBO data
      */
     public class VBOBuilder {
         /**
-         * The definition to build according to
+         * The amount of floats the buffer starts with when no size is given
+         */
+        private static final int INITIAL_CAPACITY = 1024;
+
+        /**
+         * The layout to build according to
          */
-        private VertexDefinition definition = null;
+        private VertexLayout layout = null;
 
         /**
-         * The buffer to store the vertex data in before getting converted to packed bytes
+         * The buffer to store the vertex data in, can be handed to opengl directly.
+         * Grows when it is full.
          */
-        // TODO: directly use buffer in order to allow for double / int arguments
-        private ArrayList<Float> buffer = new ArrayList<Float>();
+        private FloatBuffer buffer;
 
         /**
          * The current stride
@@ -2315,8 +5320,68 @@ public class RobotRace extends Base {
          */
         private int nVertex = 0;
 
+        /**
+         * The indices of the vertexes that form the primitives, if any
+         */
+        private IntBuffer indices;
+
         public VBOBuilder(VertexDefinition definition) {
-            this.definition = definition;
+            this(definition, 0, 0);
+        }
+
+        /**
+         * Creates a builder with enough room for a known amount of data
+         * @param nVertex The expected amount of vertexes
+         * @param nIndex The expected amount of indices
+         */
+        public VBOBuilder(VertexDefinition definition, int nVertex, int nIndex) {
+            this.layout = definition.compile();
+            buffer = allocateFloats(Math.max(INITIAL_CAPACITY, nVertex * layout.getStride() / FLOAT_SIZE));
+            indices = allocateInts(nIndex);
+        }
+
+        /**
+         * @return A direct buffer in native order
+         */
+        private FloatBuffer allocateFloats(int capacity) {
+            return ByteBuffer
+                .allocateDirect(capacity*FLOAT_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        }
+
+        /**
+         * @return A direct buffer in native order
+         */
+        private IntBuffer allocateInts(int capacity) {
+            return ByteBuffer
+                .allocateDirect(capacity*INT_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        }
+
+        /**
+         * Make sure there is room for a certain amount of floats
+         */
+        private void ensureCapacity(int nFloat) {
+            if(buffer.remaining() < nFloat) {
+                FloatBuffer grown = allocateFloats(Math.max(buffer.capacity() * 2, buffer.position() + nFloat));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        /**
+         * Make sure there is room for a certain amount of indices
+         */
+        private void ensureIndexCapacity(int nIndex) {
+            if(indices.remaining() < nIndex) {
+                IntBuffer grown = allocateInts(Math.max(indices.capacity() * 2, indices.position() + nIndex));
+                indices.flip();
+                grown.put(indices);
+                indices = grown;
+            }
         }
 
         /**
@@ -2325,7 +5390,7 @@ public class RobotRace extends Base {
          * @throws RuntimeException When the part is not expected according to the definition
          */
         protected void checkStride(VertexDefinitionPart part) {
-            if(definition.getPartAtStride(stride) != part) {
+            if(layout.getOffset(part) != stride) {
                 throw new RuntimeException("This is not expected at this time.");
             }
             stride += part.getStride();
@@ -2336,7 +5401,7 @@ public class RobotRace extends Base {
          * @throws RuntimeException If the length of the vertex does not match the defined stride.
          */
         public void endVertex() {
-            if(stride != definition.getStride()) {
+            if(stride != layout.getStride()) {
                 throw new RuntimeException("Vertex stride invalid");
             }
 
@@ -2346,57 +5411,94 @@ public class RobotRace extends Base {
 
         /**
          * Mark the end of the buffer
+         * @return The vertex data, ready to be read
          * @throws RuntimeException If there is an unfinished vertex.
          */
-        public ArrayList<Float> finish() {
+        public FloatBuffer finish() {
             if(stride != 0) {
                 throw new RuntimeException("Unterminated vertex");
             }
-            return buffer;
+            FloatBuffer data = buffer.duplicate();
+            data.flip();
+            return data;
+        }
+
+        /**
+         * Put raw floats in the buffer
+         */
+        protected void put(float x) {
+            ensureCapacity(1);
+            buffer.put(x);
+        }
+
+        protected void put(float x, float y) {
+            ensureCapacity(2);
+            buffer.put(x).put(y);
+        }
+
+        protected void put(float x, float y, float z) {
+            ensureCapacity(3);
+            buffer.put(x).put(y).put(z);
         }
 
         /**
          * Adds a normal
          */
-        public void addNormal(Vector normal) {
+        public void addNormal(float x, float y, float z) {
             checkStride(VertexDefinitionPart.NORMAL);
+            put(x, y, z);
+        }
 
-            buffer.add((float)normal.x());
-            buffer.add((float)normal.y());
-            buffer.add((float)normal.z());
+        public void addNormal(Vector normal) {
+            addNormal((float)normal.x(), (float)normal.y(), (float)normal.z());
+        }
+
+        /**
+         * Adds a color
+         */
+        public void addColor(float r, float g, float b) {
+            checkStride(VertexDefinitionPart.COLOR_3D);
+            put(r, g, b);
         }
 
         public void addPositionn(int n, Vector coord) {
             if(n < 0 || n > 3) {
                 throw new RuntimeException("Too many dimensions.");
             }
-            checkStride(
-                n == 1 ? VertexDefinitionPart.POSITION_1D :
-                n == 2 ? VertexDefinitionPart.POSITION_2D :
-                         VertexDefinitionPart.POSITION_3D
-            );
 
-            buffer.add((float)coord.x());
-            if(n < 2) return;
-            buffer.add((float)coord.y());
-            if(n < 3) return;
-            buffer.add((float)coord.z());
+            if(n == 1) {
+                addPosition1((float)coord.x());
+            } else if(n == 2) {
+                addPosition2((float)coord.x(), (float)coord.y());
+            } else {
+                addPosition((float)coord.x(), (float)coord.y(), (float)coord.z());
+            }
         }
 
         public void addPosition1(Vector coord) {
             addPositionn(1, coord);
         }
 
+        public void addPosition1(float x) {
+            checkStride(VertexDefinitionPart.POSITION_1D);
+            put(x);
+        }
+
         public void addPosition(float x) {
-            addPositionn(3, new Vector(x, 0, 0));
+            addPosition(x, 0, 0);
         }
 
         public void addPosition2(Vector coord) {
             addPositionn(2, coord);
         }
 
+        public void addPosition2(float x, float y) {
+            checkStride(VertexDefinitionPart.POSITION_2D);
+            put(x, y);
+        }
+
         public void addPosition(float x, float y) {
-            addPositionn(3, new Vector(x, y, 0));
+            addPosition(x, y, 0);
         }
 
         public void addPosition3(Vector coord) {
@@ -2404,24 +5506,22 @@ public class RobotRace extends Base {
         }
 
         public void addPosition(float x, float y, float z) {
-            addPositionn(3, new Vector(x, y, z));
+            checkStride(VertexDefinitionPart.POSITION_3D);
+            put(x, y, z);
         }
 
         public void addTexCoordn(int n, Vector coord) {
             if(n < 0 || n > 3) {
                 throw new RuntimeException("Too many texture dimensions.");
             }
-            checkStride(
-                n == 1 ? VertexDefinitionPart.TEXTCOORD_1D :
-                n == 2 ? VertexDefinitionPart.TEXTCOORD_2D :
-                         VertexDefinitionPart.TEXTCOORD_3D
-            );
 
-            buffer.add((float)coord.x());
-            if(n < 2) return;
-            buffer.add((float)coord.y());
-            if(n < 3) return;
-            buffer.add((float)coord.z());
+            if(n == 1) {
+                addTexCoord((float)coord.x());
+            } else if(n == 2) {
+                addTexCoord((float)coord.x(), (float)coord.y());
+            } else {
+                addTexCoord((float)coord.x(), (float)coord.y(), (float)coord.z());
+            }
         }
 
         public void addTexCoord1(Vector coord) {
@@ -2429,7 +5529,8 @@ public class RobotRace extends Base {
         }
 
         public void addTexCoord(float x) {
-            addTexCoord1(new Vector(x, 0, 0));
+            checkStride(VertexDefinitionPart.TEXTCOORD_1D);
+            put(x);
         }
 
         public void addTexCoord2(Vector coord) {
@@ -2437,19 +5538,99 @@ public class RobotRace extends Base {
         }
 
         public void addTexCoord(float x, float y) {
-            addTexCoord1(new Vector(x, y, 0));
+            checkStride(VertexDefinitionPart.TEXTCOORD_2D);
+            put(x, y);
         }
 
         public void addTexCoord3(Vector coord) {
             addTexCoordn(3, coord);
         }
 
-        public void addTexCoord(float x, float y, float z) {
-            addTexCoord3(new Vector(x, y, z));
+        public void addTexCoord(float x, float y, float z) {
+            checkStride(VertexDefinitionPart.TEXTCOORD_3D);
+            put(x, y, z);
+        }
+
+        public int getVertexCount() {
+            return nVertex;
+        }
+
+        /**
+         * Adds the index of a vertex to the index buffer
+         */
+        public void addIndex(int index) {
+            ensureIndexCapacity(1);
+            indices.put(index);
+        }
+
+        /**
+         * Adds a triangle to the index buffer
+         */
+        public void addTriangle(int a, int b, int c) {
+            ensureIndexCapacity(3);
+            indices.put(a).put(b).put(c);
+        }
+
+        /**
+         * @return The indices that were added, ready to be read
+         */
+        public IntBuffer finishIndices() {
+            IntBuffer data = indices.duplicate();
+            data.flip();
+            return data;
+        }
+
+        public int getIndexCount() {
+            return indices.position();
+        }
+    }
+
+    /**
+     * Represents an opengl element buffer.
+     * Can be shared by VBOs that have the same vertex structure.
+     */
+    public class IndexBuffer {
+        /**
+         * The amount of indices in the buffer
+         */
+        private int nIndex = 0;
+
+        /**
+         * The handle of the buffer
+         */
+        private int ibo = -1;
+
+        public boolean isOpened() {
+            return ibo != -1;
+        }
+
+        public void open() {
+            if(!isOpened()) {
+                int [] x = new int [1];
+                gl.glGenBuffers(1, x, 0);
+                ibo = x[0];
+            }
+        }
+
+        public void bind() {
+            gl.glBindBuffer(gl.GL_ELEMENT_ARRAY_BUFFER, ibo);
+        }
+
+        /**
+         * Upload the indices from the builder to the gpu
+         */
+        public void upload(VBOBuilder builder) {
+            IntBuffer indexData = builder.finishIndices();
+
+            nIndex = indexData.remaining();
+
+            open();
+            bind();
+            gl.glBufferData(gl.GL_ELEMENT_ARRAY_BUFFER, nIndex * INT_SIZE, indexData, gl.GL_STATIC_DRAW);
         }
 
-        public int getVertexCount() {
-            return nVertex;
+        public int getIndexCount() {
+            return nIndex;
         }
     }
 
@@ -2472,6 +5653,11 @@ public class RobotRace extends Base {
          */
         private int vbo = -1;
 
+        /**
+         * The indices to draw with, null to draw the vertexes in order
+         */
+        private IndexBuffer indexBuffer = null;
+
         /**
          * Creates a VBO from a layout
          */
@@ -2486,6 +5672,14 @@ public class RobotRace extends Base {
             return new VBOBuilder(layout);
         }
 
+        /**
+         * @param nVertex The expected amount of vertexes
+         * @return A builder that can be used with this builder, with room for the vertexes
+         */
+        public VBOBuilder getVBOBuilder(int nVertex) {
+            return new VBOBuilder(layout, nVertex, 0);
+        }
+
         public boolean isOpened() {
             return vbo != -1;
         }
@@ -2498,8 +5692,15 @@ public class RobotRace extends Base {
             }
         }
 
+        /**
+         * Removes the buffer from the gpu
+         */
         public void close() {
-            // not used
+            if(isOpened()) {
+                gl.glDeleteBuffers(1, new int [] { vbo }, 0);
+                vbo = -1;
+                nVertex = 0;
+            }
         }
 
         public void bind() {
@@ -2510,107 +5711,121 @@ public class RobotRace extends Base {
          * Set all the pointers right
          */
         public void enable() {
-            int vertexPosition = -1;
-            int vertexSize = 0;
+            layout.compile().enable();
+        }
 
-            int texturePosition = -1;
-            int textureSize = 0;
+        public void disable() {
+            layout.compile().disable();
+        }
 
-            int normalPosition = -1;
+        /**
+         * Upload data from the builder to the gpu
+         */
+        public void upload(VBOBuilder builder) {
+            FloatBuffer vertexData = builder.finish();
 
-            if(layout.hasPart(VertexDefinitionPart.POSITION_1D)) {
-                gl.glEnableClientState(gl.GL_VERTEX_ARRAY);
-                vertexPosition = layout.getStrideOfPart(VertexDefinitionPart.POSITION_1D);
-                vertexSize = 1;
-            } else if(layout.hasPart(VertexDefinitionPart.POSITION_2D)) {
-                gl.glEnableClientState(gl.GL_VERTEX_ARRAY);
-                vertexPosition = layout.getStrideOfPart(VertexDefinitionPart.POSITION_2D);
-                vertexSize = 2;
-            } else if(layout.hasPart(VertexDefinitionPart.POSITION_3D)) {
-                gl.glEnableClientState(gl.GL_VERTEX_ARRAY);
-                vertexPosition = layout.getStrideOfPart(VertexDefinitionPart.POSITION_3D);
-                vertexSize = 3;
-            }
+            nVertex = builder.getVertexCount();
 
-            if(layout.hasPart(VertexDefinitionPart.TEXTCOORD_1D)) {
-                gl.glEnableClientState(gl.GL_TEXTURE_COORD_ARRAY);
-                texturePosition = layout.getStrideOfPart(VertexDefinitionPart.TEXTCOORD_1D);
-                textureSize = 1;
-            } else if(layout.hasPart(VertexDefinitionPart.TEXTCOORD_2D)) {
-                gl.glEnableClientState(gl.GL_TEXTURE_COORD_ARRAY);
-                texturePosition = layout.getStrideOfPart(VertexDefinitionPart.TEXTCOORD_2D);
-                textureSize = 2;
-            } else if(layout.hasPart(VertexDefinitionPart.TEXTCOORD_3D)) {
-                gl.glEnableClientState(gl.GL_TEXTURE_COORD_ARRAY);
-                texturePosition = layout.getStrideOfPart(VertexDefinitionPart.TEXTCOORD_3D);
-                textureSize = 3;
-            }
+            bind();
+            gl.glBufferData(gl.GL_ARRAY_BUFFER, vertexData.remaining() * FLOAT_SIZE, vertexData, gl.GL_STATIC_DRAW);
 
-            if(layout.hasPart(VertexDefinitionPart.NORMAL)) {
-                gl.glEnableClientState(gl.GL_NORMAL_ARRAY);
-                normalPosition = layout.getStrideOfPart(VertexDefinitionPart.NORMAL);
+            // Upload the indices to an own index buffer if there are any
+            if(builder.getIndexCount() > 0) {
+                if(indexBuffer == null) {
+                    indexBuffer = new IndexBuffer();
+                }
+                indexBuffer.upload(builder);
             }
+        }
 
-            int stride = layout.getStride();
-
-            if(vertexPosition != -1) {
-                gl.glVertexPointer(vertexSize, gl.GL_FLOAT, stride, vertexPosition);
-            }
+        /**
+         * Reserve room on the gpu, the contents are uploaded with uploadRange
+         * @param nFloat The size of the vertex data in floats
+         * @param nVertex The amount of vertexes in the data
+         */
+        public void allocate(int nFloat, int nVertex) {
+            allocate(nFloat, nVertex, gl.GL_STATIC_DRAW);
+        }
 
-            if(texturePosition != -1) {
-                gl.glTexCoordPointer(textureSize, gl.GL_FLOAT, stride, texturePosition);
-            }
+        /**
+         * Reserve room on the gpu, with a hint how often the contents change
+         * @param usage GL_STATIC_DRAW, or GL_STREAM_DRAW for data that is replaced every frame
+         */
+        public void allocate(int nFloat, int nVertex, int usage) {
+            this.nVertex = nVertex;
 
-            if(normalPosition != -1) {
-                gl.glNormalPointer(gl.GL_FLOAT, stride, normalPosition);
-            }
+            bind();
+            gl.glBufferData(gl.GL_ARRAY_BUFFER, (long)nFloat * FLOAT_SIZE, null, usage);
         }
 
-        public void disable() {
-            if(layout.hasPart(VertexDefinitionPart.POSITION_1D) ||
-               layout.hasPart(VertexDefinitionPart.POSITION_2D) ||
-               layout.hasPart(VertexDefinitionPart.POSITION_3D)) {
-                gl.glDisableClientState(gl.GL_VERTEX_ARRAY);
-            }
+        /**
+         * Upload a part of the vertex data to the gpu
+         * @param vertexData All the vertex data
+         * @param from The first float to upload
+         * @param count The amount of floats to upload
+         */
+        public void uploadRange(FloatBuffer vertexData, int from, int count) {
+            uploadRange(vertexData, from, count, from);
+        }
 
-            if(layout.hasPart(VertexDefinitionPart.TEXTCOORD_1D) ||
-               layout.hasPart(VertexDefinitionPart.TEXTCOORD_2D) ||
-               layout.hasPart(VertexDefinitionPart.TEXTCOORD_3D)) {
-                gl.glDisableClientState(gl.GL_TEXTURE_COORD_ARRAY);
-            }
+        /**
+         * Upload a part of some data to another place on the gpu
+         * @param data The data to upload from
+         * @param from The first float in the data to upload
+         * @param count The amount of floats to upload
+         * @param target The float in the buffer to upload to
+         */
+        public void uploadRange(FloatBuffer data, int from, int count, int target) {
+            FloatBuffer range = data.duplicate();
+            range.position(data.position() + from);
+            range.limit(data.position() + from + count);
 
-            if(layout.hasPart(VertexDefinitionPart.NORMAL)) {
-                gl.glDisableClientState(gl.GL_NORMAL_ARRAY);
-            }
+            bind();
+            gl.glBufferSubData(gl.GL_ARRAY_BUFFER, (long)target * FLOAT_SIZE, (long)count * FLOAT_SIZE, range);
         }
 
         /**
-         * Upload data from the builder to the gpu
+         * Use an index buffer to draw this VBO, can be shared with other VBOs
          */
-        public void upload(VBOBuilder builder) {
-            ArrayList<Float> buf = builder.finish();
-
-            FloatBuffer vertexData = ByteBuffer
-                .allocateDirect(buf.size()*FLOAT_SIZE)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
+        public void setIndexBuffer(IndexBuffer indexBuffer) {
+            this.indexBuffer = indexBuffer;
+        }
 
-            for(float f : buf) {
-                vertexData.put(f);
+        /**
+         * Draw the contents of the buffer, using the index buffer if there is one.
+         * The VBO should be bound and enabled.
+         * @param mode The kind of primitives to draw
+         */
+        public void draw(int mode) {
+            if(indexBuffer != null) {
+                indexBuffer.bind();
+                gl.glDrawElements(mode, indexBuffer.getIndexCount(), gl.GL_UNSIGNED_INT, 0);
+                gl.glBindBuffer(gl.GL_ELEMENT_ARRAY_BUFFER, 0);
+            } else {
+                gl.glDrawArrays(mode, 0, nVertex);
             }
+        }
 
-            vertexData.rewind();
-
-            nVertex = builder.getVertexCount();
-
-
-            System.out.println("(vbo="+vbo+"nTris="+nVertex+"buf.size()="+buf.size()+")");
-
-            bind();
-            gl.glBufferData(gl.GL_ARRAY_BUFFER, buf.size() * FLOAT_SIZE, vertexData, gl.GL_STATIC_DRAW);
+        /**
+         * Draw the contents of the buffer a number of times, for a shader that
+         * uses the instance id. The VBO should be bound and enabled.
+         * @param mode The kind of primitives to draw
+         * @param instances The amount of times to draw
+         */
+        public void drawInstanced(int mode, int instances) {
+            if(indexBuffer != null) {
+                indexBuffer.bind();
+                gl.glDrawElementsInstanced(mode, indexBuffer.getIndexCount(), gl.GL_UNSIGNED_INT, 0, instances);
+                gl.glBindBuffer(gl.GL_ELEMENT_ARRAY_BUFFER, 0);
+            } else {
+                gl.glDrawArraysInstanced(mode, 0, nVertex, instances);
+            }
         }
 
-        public int getTriangleCount() {
+        /**
+         * @return The amount of vertexes in the buffer
+         */
+        public int getVertexCount() {
             return nVertex;
         }
 
@@ -2642,10 +5857,15 @@ public class RobotRace extends Base {
          */
         private static final int TREE_COUNT = 15;
 
+        /**
+         * The noise backend that is used to generate the terrain
+         */
+        private final PerlinNoise.Type NOISE_TYPE = PerlinNoise.Type.VALUE;
+
         /**
          * The noise generator
          */
-        private final PerlinNoise perlin = new PerlinNoise(123332321, 4, 5.0);
+        private final PerlinNoise perlin = new PerlinNoise(123332321, 4, 5.0, NOISE_TYPE);
 
 
         /**
@@ -2678,30 +5898,335 @@ public class RobotRace extends Base {
             VertexDefinitionPart.TEXTCOORD_1D
         });
 
+        /**
+         * The heights of a chunk on a regular grid
+         */
+        private class HeightGrid {
+            /**
+             * Center of the chunk
+             */
+            private final Vector offset;
+
+            /**
+             * Distance between two grid points
+             */
+            private final float step;
+
+            /**
+             * Amount of quads in each direction
+             */
+            private final int n;
+
+            /**
+             * Height of every grid point, row by row
+             */
+            private final float [] heights;
+
+            /**
+             * Height of every grid point without the corrections for the track
+             */
+            private final float [] rawHeights;
+
+            /**
+             * The slope of the terrain at every grid point, dh/dx and dh/dy
+             * after each other, without the corrections for the track
+             */
+            private final float [] gradients;
+
+            /**
+             * Calculate the height and slope of all the grid points at once,
+             * without the corrections for the track.
+             */
+            public HeightGrid(Vector offset, float step) {
+                this.offset = offset;
+                this.step = step;
+                this.n = Math.round(CHUNK_SIZE / step);
+                this.heights = new float[(n+1) * (n+1)];
+                this.rawHeights = heights;
+                this.gradients = new float[2 * (n+1) * (n+1)];
+
+                rawHeightGrid(pointX(0), pointY(0), step, n+1, heights);
+                rawGradientGrid(pointX(0), pointY(0), step, n+1, gradients);
+            }
+
+            private HeightGrid(HeightGrid grid, float [] heights) {
+                this.offset = grid.offset;
+                this.step = grid.step;
+                this.n = grid.n;
+                this.heights = heights;
+                this.rawHeights = grid.rawHeights;
+                this.gradients = grid.gradients;
+            }
+
+            /**
+             * @param curve The track to correct the heights for
+             * @return A copy of this grid that does not stick through the track
+             */
+            public HeightGrid corrected(CurveInterface curve) {
+                float [] corrected = new float[heights.length];
+
+                for(int iy = 0; iy <= n; iy++) {
+                    for(int ix = 0; ix <= n; ix++) {
+                        int i = iy * (n+1) + ix;
+                        corrected[i] = raceTrack.changeHeight(curve, pointX(ix), pointY(iy), heights[i]);
+                    }
+                }
+
+                return new HeightGrid(this, corrected);
+            }
+
+            /**
+             * @return The x coordinate of a column of the grid
+             */
+            public float pointX(int ix) {
+                return (float)offset.x() + (-GRID_SIZE + ix * step);
+            }
+
+            /**
+             * @return The y coordinate of a row of the grid
+             */
+            public float pointY(int iy) {
+                return (float)offset.y() + (-GRID_SIZE + iy * step);
+            }
+
+            /**
+             * @param ix Column of the grid point, 0 to n
+             * @param iy Row of the grid point, 0 to n
+             * @return The height of the grid point
+             */
+            public float gridHeight(int ix, int iy) {
+                return heights[iy * (n+1) + ix];
+            }
+
+            /**
+             * @param ix Column of the grid point, 0 to n
+             * @param iy Row of the grid point, 0 to n
+             * @return The normal at a grid point, from the analytic gradient
+             * of the noise. Where the track flattens the terrain, the normal
+             * points straight up.
+             */
+            public Vector gridNormal(int ix, int iy) {
+                int i = iy * (n+1) + ix;
+                if(heights[i] != rawHeights[i]) {
+                    return Vector.Z;
+                }
+                return new Vector(-gradients[2*i], -gradients[2*i+1], 1).normalized();
+            }
+
+            /**
+             * @return If the point lies within this grid
+             */
+            public boolean contains(float x, float y) {
+                return Math.abs(x - offset.x()) <= GRID_SIZE &&
+                    Math.abs(y - offset.y()) <= GRID_SIZE;
+            }
+
+            /**
+             * @return The height at a point in the grid, interpolated from the grid points
+             */
+            public float heightAt(float x, float y) {
+                float gx = (x - (float)offset.x() + GRID_SIZE) / step;
+                float gy = (y - (float)offset.y() + GRID_SIZE) / step;
+                int ix = Math.min(n-1, Math.max(0, (int)Math.floor(gx)));
+                int iy = Math.min(n-1, Math.max(0, (int)Math.floor(gy)));
+                float fx = gx - ix, fy = gy - iy;
+
+                float lower = gridHeight(ix, iy)   * (1-fx) + gridHeight(ix+1, iy)   * fx;
+                float upper = gridHeight(ix, iy+1) * (1-fx) + gridHeight(ix+1, iy+1) * fx;
+                return lower * (1-fy) + upper * fy;
+            }
+        }
+
+        /**
+         * The geometry of a chunk without the corrections for the track.
+         * It is built by a worker and uploaded by the GL thread.
+         */
+        private class ChunkMesh {
+            /**
+             * The chunk this mesh belongs to
+             */
+            private final TerrainChunk chunk;
+
+            /**
+             * The generation of the terrain this mesh was built for
+             */
+            private final int generation;
+
+            /**
+             * The vertex data, and the amount of floats that are already on the gpu
+             */
+            private final FloatBuffer vertexData;
+            private final int nVertex;
+            private int uploaded = 0;
+
+            /**
+             * The changes for every track, filled in by the worker.
+             * The entry of a track is null until it is built.
+             */
+            private final AtomicReferenceArray<ChunkVariant> variants;
+
+            /**
+             * The track whose variant was built first
+             */
+            private final int firstTrack;
+
+            public ChunkMesh(TerrainChunk chunk, int generation, VBOBuilder builder, int firstTrack) {
+                this.chunk = chunk;
+                this.generation = generation;
+                this.vertexData = builder.finish();
+                this.nVertex = builder.getVertexCount();
+                this.variants = new AtomicReferenceArray<ChunkVariant>(raceTrack.curves.length);
+                this.firstTrack = firstTrack;
+            }
+
+            /**
+             * @return If all the vertex data is on the gpu
+             */
+            public boolean isUploaded() {
+                return uploaded == vertexData.remaining();
+            }
+        }
+
+        /**
+         * The difference a track makes to the mesh of a chunk.
+         * Only the vertexes near the track are flattened, so only those are stored.
+         */
+        private class ChunkVariant {
+            private final HeightGrid grid;
+            private final ArrayList<Tree> trees;
+
+            /**
+             * For every row of vertexes, the first float in the mesh that differs
+             * and the amount of floats that differ. The length is 0 when the row
+             * is the same as in the mesh without track.
+             */
+            private final int [] runStart;
+            private final int [] runLength;
+
+            /**
+             * The floats of all the runs, after each other
+             */
+            private final FloatBuffer runData;
+
+            /**
+             * @param grid The heights, corrected for the track
+             * @param trees The trees, placed next to the track
+             * @param base The vertex data of the mesh without track
+             * @param builder The vertex data of the mesh with track
+             */
+            public ChunkVariant(HeightGrid grid, ArrayList<Tree> trees, FloatBuffer base, VBOBuilder builder) {
+                this.grid = grid;
+                this.trees = trees;
+
+                FloatBuffer vertexData = builder.finish();
+                int vertexSize = definition.compile().getStride() / FLOAT_SIZE;
+                int rowSize = (grid.n+1) * vertexSize;
+                int rows = grid.n+1;
+
+                runStart = new int[rows];
+                runLength = new int[rows];
+                int total = 0;
+
+                for(int row = 0; row < rows; row++) {
+                    int first = -1, last = -1;
+                    for(int i = row * rowSize; i < (row+1) * rowSize; i++) {
+                        if(base.get(base.position() + i) != vertexData.get(vertexData.position() + i)) {
+                            if(first == -1) first = i;
+                            last = i;
+                        }
+                    }
+
+                    if(first != -1) {
+                        // Whole vertexes only
+                        runStart[row] = first - first % vertexSize;
+                        runLength[row] = last - last % vertexSize + vertexSize - runStart[row];
+                        total += runLength[row];
+                    }
+                }
+
+                runData = ByteBuffer.allocateDirect(total * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for(int row = 0; row < rows; row++) {
+                    for(int i = 0; i < runLength[row]; i++) {
+                        runData.put(vertexData.get(vertexData.position() + runStart[row] + i));
+                    }
+                }
+                runData.flip();
+            }
+
+            /**
+             * Writes the changes of this track into a buffer holding the mesh without track
+             */
+            public void apply(VBO vbo) {
+                int from = 0;
+                for(int row = 0; row < runStart.length; row++) {
+                    if(runLength[row] > 0) {
+                        vbo.uploadRange(runData, from, runLength[row], runStart[row]);
+                        from += runLength[row];
+                    }
+                }
+            }
+
+            /**
+             * Undoes the changes of this track
+             * @param base The vertex data of the mesh without track
+             */
+            public void revert(VBO vbo, FloatBuffer base) {
+                for(int row = 0; row < runStart.length; row++) {
+                    if(runLength[row] > 0) {
+                        vbo.uploadRange(base, runStart[row], runLength[row], runStart[row]);
+                    }
+                }
+            }
+        }
+
         /**
          * A chunk of terrain
          */
         private class TerrainChunk {
-            private Terrain terrain;
             private Vector offset;
+
+            /**
+             * The buffer that is drawn, and the buffer the next mesh is uploaded to.
+             * They are swapped when the upload is done, so the old mesh stays
+             * visible in the meantime.
+             */
             private VBO vbo = new VBO(definition);
+            private VBO backVbo = new VBO(definition);
+
+            /**
+             * The mesh in the front buffer, null until the first mesh is uploaded
+             */
+            private ChunkMesh mesh = null;
+
+            /**
+             * The track variant that is applied to the front buffer
+             */
+            private ChunkVariant shown = null;
+
+            /**
+             * The heights and trees that belong to the front buffer.
+             * These are null until the first mesh is uploaded.
+             */
+            private volatile HeightGrid grid = null;
             private ArrayList<Tree> trees = null;
+
             /**
             * Size of each polygon
             */
             private float STEP_SIZE = 0.25f;
 
-            public TerrainChunk(Terrain terrain, Vector offset) {
-                this.terrain = terrain;
+            public TerrainChunk(Vector offset) {
                 this.offset = offset;
                 if(offset.length() > 0) STEP_SIZE *= 2;
             }
 
             /**
              * Fill chunk with trees
+             * @param curve The track to keep the trees off
+             * @param grid The heights of the chunk
              */
-            public void generateTrees() {
-                trees = new ArrayList<Tree>();
+            public ArrayList<Tree> generateTrees(CurveInterface curve, HeightGrid grid) {
+                ArrayList<Tree> trees = new ArrayList<Tree>();
 
                 for(int i = 0; i < TREE_COUNT; i++) {
                     float x = 0;
@@ -2714,43 +6239,196 @@ public class RobotRace extends Base {
                         x = (float)(GRID_SIZE*(1-Math.random()*2)) + (float)offset.x();
                         y = (float)(GRID_SIZE*(1-Math.random()*2)) + (float)offset.y();
 
-                        //find out if the tree is on the track
-                        RaceTrack.TrackCollision collision = raceTrack.findCollision(x, y);
-                        if(!collision.isCollision) {
-                            z = heightAt(x, y);
-                        }
-                    }
+                        //find out if the tree is on the track
+                        if(!raceTrack.isOnTrack(curve, x, y)) {
+                            z = grid.heightAt(x, y);
+                        }
+                    }
+
+                    trees.add(new Tree(x,y,z));//add the tree.
+                }
+
+                return trees;
+            }
+
+            /**
+             * @return If the point lies within this chunk and its heights are known
+             */
+            public boolean contains(float x, float y) {
+                HeightGrid grid = this.grid;
+                return grid != null && grid.contains(x, y);
+            }
+
+            /**
+             * @return The height at a point in the chunk, interpolated from the grid
+             */
+            public float heightAt(float x, float y) {
+                return grid.heightAt(x, y);
+            }
+
+            /**
+             * Generate the vertexes of a grid
+             */
+            private VBOBuilder buildVertices(HeightGrid grid) {
+                int n = grid.n;
+                VBOBuilder builder = new VBOBuilder(definition, (n+1) * (n+1), 0);
+
+                // One vertex for every grid point, row by row
+                for(int iy = 0; iy <= n; iy++)
+                {//for every y in the range
+                    for(int ix = 0; ix <= n; ix++)
+                    {//for every x in the range
+                        float   x = grid.pointX(ix),
+                                y = grid.pointY(iy);
+                        float   z = grid.gridHeight(ix, iy);
+
+                        builder.addPosition(x, y, z);//add the position
+                        builder.addNormal(grid.gridNormal(ix, iy));//add the normal
+                        builder.addTexCoord(getColorAtHeight(z));//add the texture
+                        builder.endVertex();//close this vertex
+                    }
+                }
+
+                return builder;
+            }
+
+            /**
+             * Generate geometry. Does not use OpenGL, so it can run on a worker.
+             * The mesh is queued for uploading as soon as the variant of the
+             * first track is known, the other tracks follow in the background.
+             * @param generation The generation of the terrain to build for
+             * @param firstTrack The track to build the variant for first
+             */
+            public void buildMesh(int generation, int firstTrack) {
+                HeightGrid raw = new HeightGrid(offset, STEP_SIZE);
+                ChunkMesh mesh = new ChunkMesh(this, generation, buildVertices(raw), firstTrack);
+
+                mesh.variants.set(firstTrack, buildVariant(mesh, raw, firstTrack));
+                builtMeshes.add(mesh);
+
+                for(int track = 0; track < raceTrack.curves.length; track++) {
+                    // Stop if the terrain changed in the meantime
+                    if(generation != Terrain.this.generation) {
+                        return;
+                    }
+
+                    if(track != firstTrack) {
+                        mesh.variants.set(track, buildVariant(mesh, raw, track));
+                    }
+                }
+            }
+
+            /**
+             * @return The changes to the mesh for a track
+             */
+            private ChunkVariant buildVariant(ChunkMesh mesh, HeightGrid raw, int track) {
+                CurveInterface curve = raceTrack.curves[track];
+                HeightGrid grid = raw.corrected(curve);
+                return new ChunkVariant(grid, generateTrees(curve, grid), mesh.vertexData, buildVertices(grid));
+            }
+
+            /**
+             * Makes the uploaded mesh visible
+             * @param mesh The mesh that was uploaded to the back buffer
+             * @param variant The variant that was applied to the back buffer
+             */
+            public void swap(ChunkMesh mesh, ChunkVariant variant) {
+                VBO swap = vbo;
+                vbo = backVbo;
+                backVbo = swap;
+
+                vbo.setIndexBuffer(getIndexBuffer(STEP_SIZE, variant.grid.n));//the triangles are the same for all chunks
+                this.mesh = mesh;
+                show(variant);
+            }
+
+            /**
+             * Switch the front buffer to another track, only the rows that
+             * differ are uploaded.
+             */
+            public void patch(ChunkVariant variant) {
+                if(shown != null) {
+                    shown.revert(vbo, mesh.vertexData);
+                }
+                variant.apply(vbo);
+                show(variant);
+            }
+
+            private void show(ChunkVariant variant) {
+                shown = variant;
+                grid = variant.grid;
+                trees = variant.trees;
+            }
+        }
+
+        /**
+         * Maximum amount of vertex data to upload in one frame, in bytes
+         */
+        private static final int UPLOAD_BYTES_PER_FRAME = 512 * 1024;
+
+        /**
+         * Maximum time to spend on uploading in one frame, in milliseconds
+         */
+        private static final float UPLOAD_MILLIS_PER_FRAME = 2f;
 
-                    trees.add(new Tree(x,y,z));//add the tree.
+        /**
+         * The workers that build the chunks
+         */
+        private final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Terrain worker");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
 
-            /**
-             * Generate geometry
-             */
-            public void recomputeGeometry() {
-                System.out.print("Building Geometry " + offset + ": ");
+        /**
+         * Meshes that are built, but not yet uploaded
+         */
+        private final ConcurrentLinkedQueue<ChunkMesh> builtMeshes = new ConcurrentLinkedQueue<ChunkMesh>();
+
+        /**
+         * The mesh that is being uploaded, null if none
+         */
+        private ChunkMesh uploading = null;
 
-                vbo.open();
+        /**
+         * Increased every time the terrain is recomputed. Meshes of an older
+         * generation are thrown away.
+         */
+        private volatile int generation = 0;
 
-                VBOBuilder builder = vbo.getVBOBuilder();
+        /**
+         * The track the terrain is shown for
+         */
+        private int track = 0;
 
-                for(float innerX = -GRID_SIZE; innerX < GRID_SIZE; innerX += STEP_SIZE)
-                {//for every x in the range
-                    System.out.print("|");
+        /**
+         * Chunks to render
+         */
+        ArrayList<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
 
-                    for(float innerY = -GRID_SIZE; innerY < GRID_SIZE; innerY += STEP_SIZE)
-                    {//for every y in the range
+        /**
+         * The triangles of the chunks, shared by all chunks with the same step size
+         */
+        HashMap<Float, IndexBuffer> indexBuffers = new HashMap<Float, IndexBuffer>();
 
-                        float   x = (float)offset.x() + innerX,
-                                y = (float)offset.y() + innerY;
+        /**
+         * @param stepSize The step size of the chunk
+         * @param n The amount of quads in each direction
+         * @return The index buffer with the triangles of a chunk
+         */
+        public IndexBuffer getIndexBuffer(float stepSize, int n) {
+            IndexBuffer indexBuffer = indexBuffers.get(stepSize);
 
-                        // Calculate the height of the corners
-                        float lowerLeftCorner   = terrain.heightAt(x,               y);
-                        float lowerRightCorner  = terrain.heightAt(x+STEP_SIZE,     y);
-                        float upperLeftCorner   = terrain.heightAt(x,               y+STEP_SIZE);
-                        float upperRightCorner  = terrain.heightAt(x+STEP_SIZE,     y+STEP_SIZE);
+            if(indexBuffer == null) {
+                VBOBuilder builder = new VBOBuilder(definition, 0, n * n * 6);
 
+                for(int iy = 0; iy < n; iy++) {
+                    for(int ix = 0; ix < n; ix++) {
                         /* structure of this quad
                         *
                         *             ulc - - - - - - urc
@@ -2762,63 +6440,23 @@ public class RobotRace extends Base {
                         *             llc - - - - - - lrc
                         *                  horizontal
                         */
+                        int lowerLeftCorner     = iy       * (n+1) + ix;
+                        int lowerRightCorner    = iy       * (n+1) + ix+1;
+                        int upperLeftCorner     = (iy+1)   * (n+1) + ix;
+                        int upperRightCorner    = (iy+1)   * (n+1) + ix+1;
 
-                        // Triangle 1
-
-                        // Add lower left corner to VBO
-                        builder.addPosition(x, y, lowerLeftCorner);//add the position
-                        builder.addNormal(terrain.getNormal(x, y, STEP_SIZE));//find the normal and add the normal
-                        builder.addTexCoord(terrain.getColorAtHeight(lowerLeftCorner));//add the texture
-                        builder.endVertex();//close this vertex
-
-                        // Add lower right corner to VBO
-                        builder.addPosition(x + STEP_SIZE, y, lowerRightCorner);
-                        builder.addNormal(terrain.getNormal(x + STEP_SIZE, y, STEP_SIZE));
-                        builder.addTexCoord(terrain.getColorAtHeight(lowerRightCorner));
-                        builder.endVertex();
-
-                        // Add upper right corner to VBO
-                        builder.addPosition(x + STEP_SIZE, y + STEP_SIZE, upperRightCorner);
-                        builder.addNormal(terrain.getNormal(x + STEP_SIZE, y + STEP_SIZE, STEP_SIZE));
-                        builder.addTexCoord(terrain.getColorAtHeight(upperRightCorner));
-                        builder.endVertex();
-
-                        // Triangle 2
-
-                        // Add lower left corner to VBO
-                        builder.addPosition(x, y, lowerLeftCorner);
-                        builder.addNormal(terrain.getNormal(x, y, STEP_SIZE));
-                        builder.addTexCoord(terrain.getColorAtHeight(lowerLeftCorner));
-                        builder.endVertex();
-
-                        // Add upper right corner to VBO
-                        builder.addPosition(x + STEP_SIZE, y + STEP_SIZE, upperRightCorner);
-                        builder.addNormal(terrain.getNormal(x + STEP_SIZE, y + STEP_SIZE, STEP_SIZE));
-                        builder.addTexCoord(terrain.getColorAtHeight(upperRightCorner));
-                        builder.endVertex();
-
-                        // Add upper left corner to VBO
-                        builder.addPosition(x, y + STEP_SIZE, upperLeftCorner);
-                        builder.addNormal(terrain.getNormal(x, y + STEP_SIZE, STEP_SIZE));
-                        builder.addTexCoord(terrain.getColorAtHeight(upperLeftCorner));
-                        builder.endVertex();
+                        builder.addTriangle(lowerLeftCorner, lowerRightCorner, upperRightCorner);
+                        builder.addTriangle(lowerLeftCorner, upperRightCorner, upperLeftCorner);
                     }
                 }
 
-                System.out.print(" -> Uploading geometry. ");
-
-                vbo.upload(builder);//add it to the vbo.
-
-                System.out.println("Done.");
-
-                generateTrees();//generate all the trees.
+                indexBuffer = new IndexBuffer();
+                indexBuffer.upload(builder);
+                indexBuffers.put(stepSize, indexBuffer);
             }
-        }
 
-        /**
-         * Chunks to render
-         */
-        ArrayList<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
+            return indexBuffer;
+        }
 
         /**
          * Can be used to set up a display list.
@@ -2838,7 +6476,7 @@ public class RobotRace extends Base {
             };
 
             for(int [] x : sides) {
-                chunks.add(new TerrainChunk(this, new Vector(
+                chunks.add(new TerrainChunk(new Vector(
                     x[0] * CHUNK_SIZE,
                     x[1] * CHUNK_SIZE,
                     0
@@ -2847,20 +6485,114 @@ public class RobotRace extends Base {
         }
 
         /**
-         * Recompute the geometry for all the terrain
+         * Recompute the geometry for all the terrain.
+         * The chunks are built in the background, the current meshes are
+         * drawn until their replacements are uploaded. The changes for
+         * every track are built as well, so switching tracks is quick.
          */
         public void recomputeGeometry() {
-            for(TerrainChunk chunk : chunks) {
+            final int newGeneration = ++generation;
+            final int firstTrack = track;
+
+            for(final TerrainChunk chunk : chunks) {
                 if(chunk != null) {
-                    chunk.recomputeGeometry();
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Skip the work if the terrain changed again in the meantime
+                            if(newGeneration == generation) {
+                                chunk.buildMesh(newGeneration, firstTrack);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Show the terrain for another track. Only the parts of the chunks
+         * that are flattened by either track are uploaded again.
+         * @param track The index of the track
+         */
+        public void setTrack(int track) {
+            this.track = track;
+            updateVariants();
+        }
+
+        /**
+         * Patch the chunks that do not show the current track yet,
+         * if the changes for the track are built.
+         */
+        private void updateVariants() {
+            for(TerrainChunk chunk : chunks) {
+                if(chunk != null && chunk.mesh != null) {
+                    ChunkVariant variant = chunk.mesh.variants.get(track);
+                    if(variant != null && variant != chunk.shown) {
+                        chunk.patch(variant);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Uploads built meshes to the gpu, within the budget of a frame.
+         * A mesh can be spread over multiple frames.
+         */
+        private void uploadMeshes() {
+            long deadline = System.nanoTime() + (long)(UPLOAD_MILLIS_PER_FRAME * 1000000);
+            int budget = UPLOAD_BYTES_PER_FRAME / FLOAT_SIZE;
+
+            while(budget > 0 && System.nanoTime() < deadline) {
+                // Throw away meshes of an older generation
+                if(uploading != null && uploading.generation != generation) {
+                    uploading = null;
+                }
+
+                if(uploading == null) {
+                    uploading = builtMeshes.poll();
+                    if(uploading == null) {
+                        break;//nothing to upload
+                    }
+                    if(uploading.generation != generation) {
+                        continue;
+                    }
+
+                    uploading.chunk.backVbo.open();
+                    uploading.chunk.backVbo.allocate(uploading.vertexData.remaining(), uploading.nVertex);
+                }
+
+                // Upload the next slice of the mesh
+                int count = Math.min(budget, uploading.vertexData.remaining() - uploading.uploaded);
+                uploading.chunk.backVbo.uploadRange(uploading.vertexData, uploading.uploaded, count);
+                uploading.uploaded += count;
+                budget -= count;
+
+                if(uploading.isUploaded()) {
+                    // Prefer the current track, it may have changed while building
+                    ChunkVariant variant = uploading.variants.get(track);
+                    if(variant == null) {
+                        variant = uploading.variants.get(uploading.firstTrack);
+                    }
+
+                    variant.apply(uploading.chunk.backVbo);
+                    uploading.chunk.swap(uploading, variant);
+                    uploading = null;
                 }
             }
+
+            updateVariants();
         }
 
         /**
          * Draws the terrain.
          */
         public void draw() {
+            // Build the terrain if that was not requested yet
+            if(generation == 0) {
+                recomputeGeometry();
+            }
+            uploadMeshes();
+
             OneDColorId = OneDColorId == -1 ? create1DTexture() : OneDColorId;
             RobotRace.Material.BLANK.set(gl);//set to blank material
             gl.glEnable(gl.GL_TEXTURE_1D);
@@ -2870,17 +6602,13 @@ public class RobotRace extends Base {
                 boolean isFirst = true;
                 VBO vbo = null;
                 for(TerrainChunk chunk : chunks) {
-                    if(chunk != null) {
+                    if(chunk != null && chunk.mesh != null) {//chunks that are still being built are skipped
                         vbo = chunk.vbo;
 
-                        if(!vbo.isOpened()) {//if no vbo
-                            chunk.recomputeGeometry();//make it!
-                        }
-
                         vbo.bind();
                         vbo.enable();
 
-                        gl.glDrawArrays(gl.GL_TRIANGLES, 0, vbo.getTriangleCount());
+                        vbo.draw(gl.GL_TRIANGLES);
 
                         vbo.disable();
                     }
@@ -2952,10 +6680,47 @@ public class RobotRace extends Base {
          * @return height at specified position
          */
         public float heightAt(float x, float y) {
+            // Use the heights of a chunk when they are known
+            for(TerrainChunk chunk : chunks) {
+                if(chunk.contains(x, y)) {
+                    return chunk.heightAt(x, y);
+                }
+            }
+
             float height = (float)(perlin.noise2d(x,y) * TERRAIN_HEIGHT_LEVEL);
             return heightCorrection(x,y,height);
         }
 
+        /**
+         * Calculates the height of a square grid of points in one go,
+         * without the corrections for the track.
+         * @param x0 The x coordinate of the first point
+         * @param y0 The y coordinate of the first point
+         * @param step The distance between two points
+         * @param n The amount of points in each direction
+         * @param out The heights, row by row. Must hold n * n values.
+         */
+        public void rawHeightGrid(float x0, float y0, float step, int n, float [] out) {
+            perlin.fillGrid(x0, y0, step, n, n, out);
+
+            for(int i = 0; i < n * n; i++) {
+                out[i] *= TERRAIN_HEIGHT_LEVEL;
+            }
+        }
+
+        /**
+         * Calculates the slope of the terrain at the points of rawHeightGrid,
+         * from the analytic derivatives of the noise.
+         * @param out dh/dx and dh/dy of every point, row by row. Must hold 2 * n * n values.
+         */
+        public void rawGradientGrid(float x0, float y0, float step, int n, float [] out) {
+            perlin.fillGradientGrid(x0, y0, step, n, n, out);
+
+            for(int i = 0; i < 2 * n * n; i++) {
+                out[i] *= TERRAIN_HEIGHT_LEVEL;
+            }
+        }
+
         /**
          * @return vector at specified position
          */
@@ -2993,54 +6758,40 @@ public class RobotRace extends Base {
 
             return z;
         }
-        
+
         /**
          * Get smooth normal at position.
+         * The normal follows from the analytic gradient of the noise.
          * @param x x coordinate
          * @param y y coordinate
-         * @param step step till next point
          * @return the normal vector.
          */
-        public Vector getNormal(double x_, double y_, float step) {
+        public Vector getNormal(double x_, double y_) {
             float x = (float)x_, y = (float)y_;//set x and y
+
+            double [] gradient = new double[2];
+            float height = (float)(perlin.noise2d(x, y, gradient) * TERRAIN_HEIGHT_LEVEL);
+
+            // The terrain is flat where it is flattened by the track
+            if(heightCorrection(x, y, height) != height) {
+                return Vector.Z;
+            }
+
             /**
-             *     /  | n /
-             *   /    | /          a
-             *  w ----p---- e     bcd
-             *       /|   /        e
-             *      / | s
-             */
-            Vector n = positionAt(x,        y + step);//find the vector position at specified x and y coordinates
-            Vector ne= positionAt(x + step, y + step);
-            Vector e = positionAt(x + step, y);
-            Vector s = positionAt(x,        y - step);
-            Vector sw= positionAt(x - step, y - step);
-            Vector w = positionAt(x - step, y);
-
-            Vector p = positionAt(x,        y);
-
-            Vector pn = n.subtract(p);//subtract p from n to find vector pn
-            Vector pe = e.subtract(p);
-            Vector ps = s.subtract(p);
-            Vector pw = w.subtract(p);
-
-            Vector npw = pn.cross(pw);//find north west point by crossing pn with pw.
-            Vector wps = pw.cross(ps);
-            Vector spe = ps.cross(pe);
-            Vector epn = pe.cross(pn);
-
-            Vector normal = npw
-                            .add(wps)
-                            .add(spe)
-                            .add(epn)
-                            .normalized();//calculate the normal by adding all nw, ws, se and en.
+             * The surface z = h(x, y) has tangents (1, 0, dh/dx) and (0, 1, dh/dy),
+             * their cross product is the normal.
+             */
+            Vector normal = new Vector(
+                -gradient[0] * TERRAIN_HEIGHT_LEVEL,
+                -gradient[1] * TERRAIN_HEIGHT_LEVEL,
+                1
+            ).normalized();
 
             assert(normal.z() > 0);//assure the normal points in the correct direction.
 
-//             System.out.println("Position: "+p+" Normal: "+normal);
-            
             return normal;//return the normal
         }
+        
     }
     
     /**
@@ -3091,225 +6842,432 @@ public class RobotRace extends Base {
      * implementation.
      */
     public static void main(String args[]) {
-        RobotRace robotRace = new RobotRace();
+        // The first argument is the amount of extra robots in the race
+        int crowd = 0;
+        if(args.length > 0) {
+            try {
+                crowd = Integer.parseInt(args[0]);
+            } catch(NumberFormatException e) {
+                crowd = -1;
+            }
+            if(crowd < 0) {
+                System.err.println("Usage: RobotRace [amount of extra robots, 0 or more]");
+                System.exit(1);
+            }
+        }
+
+        RobotRace robotRace = new RobotRace(crowd);
         robotRace.run();
     }
     
-    private float[][] boxVertices;
-    private float[][] boxNormals = {
-      {-1.0f, 0.0f, 0.0f},
-      {0.0f, 1.0f, 0.0f},
-      {1.0f, 0.0f, 0.0f},
-      {0.0f, -1.0f, 0.0f},
-      {0.0f, 0.0f, 1.0f},
-      {0.0f, 0.0f, -1.0f}
-    };
-    private int[][] boxFaces = {
-      {0, 1, 2, 3},
-      {3, 2, 6, 7},
-      {7, 6, 5, 4},
-      {4, 5, 1, 0},
-      {5, 6, 2, 1},
-      {7, 4, 0, 3}
-    };
-    
-    /*
-     * This code is based on the GLUT approach, but with textures.
+    /**
+     * The kinds of meshes the robots are made of
      */
-    public void drawBox(final GL2 gl, final float size, final int type, float textureX1, float textureX2, float textureY1, float textureY2) {
-        gl.glEnable(gl.GL_TEXTURE_2D);
-        torso.bind(gl);//bind the texture
-
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
-
-        float deltaX = 720;//x size of texture file
-        float deltaY = 2100;//y size of texture file
-
-        textureX1 /= deltaX;//scale to 0 - 1 values
-        textureX2 /= deltaX;
-        textureY1 /= deltaY;
-        textureY2 /= deltaY;
-
-        if (boxVertices == null) {
-          final float[][] v = new float[8][];
-          for (int i = 0; i < 8; i++) {
-            v[i] = new float[3];
-          }
-          v[0][0] = v[1][0] = v[2][0] = v[3][0] = -0.5f;
-          v[4][0] = v[5][0] = v[6][0] = v[7][0] =  0.5f;
-          v[0][1] = v[1][1] = v[4][1] = v[5][1] = -0.5f;
-          v[2][1] = v[3][1] = v[6][1] = v[7][1] =  0.5f;
-          v[0][2] = v[3][2] = v[4][2] = v[7][2] = -0.5f;
-          v[1][2] = v[2][2] = v[5][2] = v[6][2] =  0.5f;
-          boxVertices = v;
-        }
-        final float[][] v = boxVertices;
-        final float[][] n = boxNormals;
-        final int[][] faces = boxFaces;
-        for (int i = 5; i >= 0; i--) {//for all 6 faces
-          gl.glBegin(gl.GL_QUADS);
-          gl.glNormal3fv(n[i], 0);//set the correct normals for this side of the cube.
-          float[] vt = v[faces[i][0]];//choose the correct face
-          gl.glTexCoord2f(textureX1, textureY1); //set the textures, clockwise
-          gl.glVertex3f(vt[0] * size, vt[1] * size, vt[2] * size);//set coordinates
-          vt = v[faces[i][1]];//choose the correct face
-          gl.glTexCoord2f(textureX1, textureY2);//set the textures, clockwise 
-          gl.glVertex3f(vt[0] * size, vt[1] * size, vt[2] * size);//set coordinates
-          vt = v[faces[i][2]];//choose the correct face
-          gl.glTexCoord2f(textureX2, textureY2);//set the textures, clockwise
-          gl.glVertex3f(vt[0] * size, vt[1] * size, vt[2] * size);//set coordinates
-          vt = v[faces[i][3]];//choose the correct face
-          gl.glTexCoord2f(textureX2, textureY1);//set the textures, clockwise 
-          gl.glVertex3f(vt[0] * size, vt[1] * size, vt[2] * size);//set coordinates
-          gl.glEnd();
-        }
-        gl.glDisable(gl.GL_TEXTURE_2D);
+    public enum Shape {
+        BOX, CYLINDER, CYLINDER_FRONT, SPHERE, FOOT
     }
-    
-    public void drawCylinder(float radius, float height, int steps, float textureX1, float textureX2, float textureY1, float textureY2){
-        gl.glEnable(gl.GL_TEXTURE_2D);
-        torso.bind(gl);
-        //gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, gl.GL_RGB, dimensions.w(), dimensions.h(), 0, gl.GL_RGB, gl.GL_UNSIGNED_BYTE, null);
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
-        
-        
-        float deltaX = 720;//x size of texture file
-        float deltaY = 2100;//y size of texture file    
 
-        /*textureX1 /= deltaX;
-        textureX2 /= deltaX;
-        textureY1 /= deltaY;
-        textureY2 /= deltaY;*/
-        
-        float delta = (textureX2 - textureX1) / (steps-1);//calculate size of texture step
-        
-        double step = (2* Math.PI) / steps;//calculate step sizes.
-        gl.glBegin(gl.GL_QUADS);
-        for(int i = 0; i<steps; i++){
-            double x = Math.cos(step*i)*radius;//find x,y, next x, next y, and the points in middle.
-            double y = Math.sin(step*i)*radius;
-            double xn = Math.cos(step*(i+1))*radius;
-            double yn = Math.sin(step*(i+1))*radius;
-            double xnn = Math.cos(step*(i+0.5))*radius;
-            double ynn = Math.sin(step*(i+0.5))*radius;
-            
-            Vector normal = new Vector(xnn,ynn,0).normalized();//normal found by subtracting 0,0,0 from point
-            
-            gl.glNormal3d(normal.x(), normal.y(), normal.z());//set the normal         
-            gl.glTexCoord2f((textureX1+delta*i)/deltaX, textureY1/deltaY);//find the correct part of the texture (texture is devided into steps to spread it over cylinder face) 
-            gl.glVertex3d(x,y,0);//set coordinates
-            gl.glTexCoord2f((textureX1+delta*i)/deltaX, textureY2/deltaY); 
-            gl.glVertex3d(x,y,height);
-            gl.glTexCoord2f((textureX1+delta*(i+1))/deltaX, textureY2/deltaY); 
-            gl.glVertex3d(xn,yn,height);
-            gl.glTexCoord2f((textureX1+delta*(i+1))/deltaX, textureY1/deltaY); 
-            gl.glVertex3d(xn,yn,0);
-        }
-        gl.glEnd();
-        
-        float dummyX = 650;//part of the texture without special stuff
-        float dummyX2 = 700;//part of the texture without special stuff
-        
-        float diffX = (dummyX2 - dummyX);//calculate the difference
-        float diffY = (textureY2 - textureY1);//calculate the y difference
-        
-        gl.glBegin(gl.GL_TRIANGLES);
-        for(int i = 0; i<steps; i++){
-            double x = Math.cos(step*i)*radius;//find x,y next x and next y coordinates.
-            double y = Math.sin(step*i)*radius;
-            double xn = Math.cos(step*(i+1))*radius;
-            double yn = Math.sin(step*(i+1))*radius;
-            gl.glNormal3d(0, 0, 1);//set the normal (midpoint to top, so positive)
-            gl.glTexCoord2d((dummyX+0.5*diffX+0.5*diffX*Math.cos(step*i))/deltaX,(textureY1+0.5*diffY+0.5*diffY*Math.sin(step*i))/deltaY);//select correct part of texture  
-            gl.glVertex3d(x,y,height);//set the coordinates
-            gl.glTexCoord2d((dummyX+0.5*diffX+0.5*diffX*Math.cos(step*i+step))/deltaX,(textureY1+0.5*diffY+0.5*diffY*Math.sin(step*(i+1)))/deltaY); 
-            gl.glVertex3d(xn,yn,height);
-            gl.glTexCoord2d((dummyX+0.5*diffX)/deltaX,(textureY1+0.5*diffY)/deltaY); 
-            gl.glVertex3d(0,0,height);
-            
-            gl.glNormal3d(0, 0, -1);//set the normal (midpoint to bottom, so negative).
-            gl.glTexCoord2d((dummyX+0.5*diffX+0.5*diffX*Math.cos(step*i))/deltaX,(textureY1+0.5*diffY+0.5*diffY*Math.sin(step*i))/deltaY); 
-            gl.glVertex3d(x,y,0);
-            gl.glTexCoord2d((dummyX+0.5*diffX+0.5*diffX*Math.cos(step*i+step))/deltaX,(textureY1+0.5*diffY+0.5*diffY*Math.sin(step*(i+1)))/deltaY); 
-            gl.glVertex3d(xn,yn,0);
-            gl.glTexCoord2d((dummyX+0.5*diffX)/deltaX,(textureY1+0.5*diffY)/deltaY); 
-            gl.glVertex3d(0,0,0);
-        }
-        gl.glEnd();
-        gl.glDisable(gl.GL_TEXTURE_2D);
-    }
-    
-    /*
-     * Different method for the torso, as it uses different order of textures (top and bottom have textures, instead of the curved part)
+    /**
+     * The meshes of the parts of the robots. Every mesh has a unit size, and
+     * is scaled when it is drawn, so parts that only differ in size share
+     * their mesh. Meshes are made the first time they are asked for. When
+     * there are too many, the one that was used the longest ago is removed.
      */
-    public void drawCylinderFront(float radius, float height, int steps, float textureX1, float textureX2, float textureY1, float textureY2){
-        gl.glEnable(gl.GL_TEXTURE_2D);
-        torso.bind(gl);
-        //gl.glTexImage2D(gl.GL_TEXTURE_2D, 0, gl.GL_RGB, dimensions.w(), dimensions.h(), 0, gl.GL_RGB, gl.GL_UNSIGNED_BYTE, null);
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_S, gl.GL_REPEAT );
-        gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_REPEAT );
-        
-        
-        float deltaX = 720;//x size of texture file
-        float deltaY = 2100;//y size of texture file    
+    private class MeshCache {
+        /**
+         * The most vertexes the meshes may have together
+         */
+        private static final int MAX_VERTICES = 64 * 1024;
 
-        float diffX = (textureX2 - textureX1);//difference
-        float diffY = (textureY2 - textureY1);//difference
-        
-        double step = (2* Math.PI) / steps;//calculate the steps
-        
-        gl.glBegin(gl.GL_TRIANGLES);
-        for(int i = 0; i<steps; i++){//for all steps
-            double x = Math.cos(step*i)*radius;//calculate the x, y, next x and next y values
-            double y = Math.sin(step*i)*radius;
-            double xn = Math.cos(step*(i+1))*radius;
-            double yn = Math.sin(step*(i+1))*radius;
-            
-            gl.glNormal3d(0, 0, 1);//set normal (midpoint -> top, +)
-            gl.glTexCoord2d((textureX1+diffX*0.5+diffX*0.5*Math.cos(step*i))/deltaX, (textureY1 + diffY*0.5+ diffY*0.5*Math.sin(step*i))/deltaY);//find the position on the texture  
-            gl.glVertex3d(x,y,height);//set the points
-            gl.glTexCoord2d((textureX1+diffX*0.5+diffX*0.5*Math.cos(step*(i+1)))/deltaX, (textureY1 + diffY*0.5+ diffY*0.5*Math.sin(step*(i+1)))/deltaY);//find the position on the texture 
-            gl.glVertex3d(xn,yn,height);
-            gl.glTexCoord2d((textureX1+diffX*0.5)/deltaX, (textureY1 + diffY*0.5)/deltaY);//find the position on the texture
-            gl.glVertex3d(0,0,height);//midpoint of top of cylinder
-            
-            gl.glNormal3d(0, 0, -1);//set normal (midpoin -> bottom, -)
-            gl.glTexCoord2d((textureX1+diffX*0.5-diffX*0.5*Math.cos(step*i))/deltaX, (textureY1 + diffY*0.5+ diffY*0.5*Math.sin(step*i))/deltaY);//show texture mirrored  
-            gl.glVertex3d(x,y,0);
-            gl.glTexCoord2d((textureX1+diffX*0.5-diffX*0.5*Math.cos(step*(i+1)))/deltaX, (textureY1 + diffY*0.5+ diffY*0.5*Math.sin(step*(i+1)))/deltaY); 
-            gl.glVertex3d(xn,yn,0);
-            gl.glTexCoord2d((textureX1+diffX*0.5)/deltaX, (textureY1 + diffY*0.5)/deltaY);
-            gl.glVertex3d(0,0,0);//midpoint of bottom of cylinder
-        }
-        gl.glEnd();
-        
-        float delta = (textureX2 - textureX1) / (steps-1);//texture step increase
-
-        gl.glBegin(gl.GL_QUADS);
-        for(int i = 0; i<steps; i++){
-            double x = Math.cos(step*i)*radius;//calculate x,y, next x, next y, and the x and y in between.
-            double y = Math.sin(step*i)*radius;
-            double xn = Math.cos(step*i+step)*radius;
-            double yn = Math.sin(step*i+step)*radius;
-            double xnn = Math.cos(step*i+0.5*step)*radius;
-            double ynn = Math.sin(step*i+0.5*step)*radius;
-            
-            Vector normal = new Vector(xnn,ynn,0).normalized();//calculate the normal vector, subtracting vector (0,0,0) from coordinates.
-            
-            gl.glNormal3d(normal.x(), normal.y(), normal.z());//set the normal         
-            gl.glTexCoord2f((textureX1+delta*i+130)/deltaX, textureY1/deltaY);//get the location of the texture (only used for torso, so adding 130 gives us clean textures) 
-            gl.glVertex3d(x,y,0);//set coordinates
-            gl.glTexCoord2f((textureX1+delta*i+130)/deltaX, textureY2/deltaY);//get the location of the texture
-            gl.glVertex3d(x,y,height);
-            gl.glTexCoord2f((textureX1+delta*(i+1)+130)/deltaX, textureY2/deltaY);//get the location of the texture 
-            gl.glVertex3d(xn,yn,height);
-            gl.glTexCoord2f((textureX1+delta*(i+1)+130)/deltaX, textureY1/deltaY); //get the location of the texture
-            gl.glVertex3d(xn,yn,0);
-        }
-        gl.glEnd();
-       
-        gl.glDisable(gl.GL_TEXTURE_2D);
+        /**
+         * x and y size of texture file
+         */
+        private static final float TEXTURE_WIDTH = 720;
+        private static final float TEXTURE_HEIGHT = 2100;
+
+        /**
+         * The layout of the meshes
+         */
+        private final VertexDefinition definition = new VertexDefinition(new VertexDefinitionPart [] {
+            VertexDefinitionPart.POSITION_3D,
+            VertexDefinitionPart.NORMAL,
+            VertexDefinitionPart.TEXTCOORD_2D
+        });
+
+        /**
+         * The meshes, the least recently used one first
+         */
+        private final LinkedHashMap<MeshKey, VBO> meshes = new LinkedHashMap<MeshKey, VBO>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MeshKey, VBO> eldest) {
+                if(vertexCount > MAX_VERTICES && size() > 1) {
+                    vertexCount -= eldest.getValue().getVertexCount();
+                    eldest.getValue().close();
+                    generation++;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        /**
+         * The amount of vertexes of all meshes together
+         */
+        private int vertexCount = 0;
+
+        /**
+         * Goes up every time a mesh is removed, meshes that were looked up
+         * in the same generation are still there
+         */
+        private int generation = 0;
+
+        /**
+         * The cosines and sines of the circle split into n steps, for every n used so far
+         */
+        private final HashMap<Integer, double [][]> circles = new HashMap<Integer, double [][]>();
+
+        private final float[][] boxVertices = {
+          {-0.5f, -0.5f, -0.5f},
+          {-0.5f, -0.5f,  0.5f},
+          {-0.5f,  0.5f,  0.5f},
+          {-0.5f,  0.5f, -0.5f},
+          { 0.5f, -0.5f, -0.5f},
+          { 0.5f, -0.5f,  0.5f},
+          { 0.5f,  0.5f,  0.5f},
+          { 0.5f,  0.5f, -0.5f}
+        };
+        private final float[][] boxNormals = {
+          {-1.0f, 0.0f, 0.0f},
+          {0.0f, 1.0f, 0.0f},
+          {1.0f, 0.0f, 0.0f},
+          {0.0f, -1.0f, 0.0f},
+          {0.0f, 0.0f, 1.0f},
+          {0.0f, 0.0f, -1.0f}
+        };
+        private final int[][] boxFaces = {
+          {0, 1, 2, 3},
+          {3, 2, 6, 7},
+          {7, 6, 5, 4},
+          {4, 5, 1, 0},
+          {5, 6, 2, 1},
+          {7, 4, 0, 3}
+        };
+
+        /**
+         * What a mesh is made from
+         */
+        private class MeshKey {
+            private final Shape shape;
+            private final int steps;
+            private final float textureX1, textureX2, textureY1, textureY2;
+
+            MeshKey(Shape shape, int steps, float textureX1, float textureX2, float textureY1, float textureY2) {
+                this.shape = shape;
+                this.steps = steps;
+                this.textureX1 = textureX1;
+                this.textureX2 = textureX2;
+                this.textureY1 = textureY1;
+                this.textureY2 = textureY2;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                if(!(other instanceof MeshKey)) {
+                    return false;
+                }
+                MeshKey key = (MeshKey)other;
+                return shape == key.shape && steps == key.steps &&
+                       textureX1 == key.textureX1 && textureX2 == key.textureX2 &&
+                       textureY1 == key.textureY1 && textureY2 == key.textureY2;
+            }
+
+            @Override
+            public int hashCode() {
+                int hash = shape.hashCode();
+                hash = 31 * hash + steps;
+                hash = 31 * hash + Float.floatToIntBits(textureX1);
+                hash = 31 * hash + Float.floatToIntBits(textureX2);
+                hash = 31 * hash + Float.floatToIntBits(textureY1);
+                hash = 31 * hash + Float.floatToIntBits(textureY2);
+                return hash;
+            }
+        }
+
+        /**
+         * @return The generation of the cache, it changes when a mesh is removed
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @param shape The kind of mesh
+         * @param steps The amount of pieces around, for the round shapes
+         * @return The mesh, it is made if it is not there
+         */
+        public VBO get(Shape shape, int steps, float textureX1, float textureX2, float textureY1, float textureY2) {
+            MeshKey key = new MeshKey(shape, steps, textureX1, textureX2, textureY1, textureY2);
+            VBO mesh = meshes.get(key);
+            if(mesh == null) {
+                switch(shape) {
+                    case BOX:               mesh = buildBox(textureX1, textureX2, textureY1, textureY2);                    break;
+                    case CYLINDER:          mesh = buildCylinder(steps, textureX1, textureX2, textureY1, textureY2);        break;
+                    case CYLINDER_FRONT:    mesh = buildCylinderFront(steps, textureX1, textureX2, textureY1, textureY2);   break;
+                    case SPHERE:            mesh = buildSphere(steps, steps + 1);                                           break;
+                    default:                mesh = buildFoot(textureX1, textureX2, textureY1, textureY2);                   break;
+                }
+                vertexCount += mesh.getVertexCount();
+                meshes.put(key, mesh);
+            }
+            return mesh;
+        }
+
+        /**
+         * @return The cosines at [0] and sines at [1] of the angles 2 pi k / n,
+         * for k = 0 up to and including n
+         */
+        private double [][] getCircle(int n) {
+            double [][] circle = circles.get(n);
+            if(circle == null) {
+                circle = new double[2][n + 1];
+                for(int k = 0; k <= n; k++) {
+                    circle[0][k] = Math.cos(2 * Math.PI * k / n);
+                    circle[1][k] = Math.sin(2 * Math.PI * k / n);
+                }
+                circles.put(n, circle);
+            }
+            return circle;
+        }
+
+        /**
+         * Adds a vertex to a mesh
+         */
+        private void addVertex(VBOBuilder builder, double x, double y, double z, double nx, double ny, double nz, double s, double t) {
+            builder.addPosition((float)x, (float)y, (float)z);
+            builder.addNormal((float)nx, (float)ny, (float)nz);
+            builder.addTexCoord((float)s, (float)t);
+            builder.endVertex();
+        }
+
+        /**
+         * Uploads a mesh to the gpu
+         */
+        private VBO upload(VBO mesh, VBOBuilder builder) {
+            mesh.open();
+            mesh.upload(builder);
+            return mesh;
+        }
+
+        /*
+         * This code is based on the GLUT approach, but with textures.
+         * A box of size 1 made of triangles.
+         */
+        private VBO buildBox(float textureX1, float textureX2, float textureY1, float textureY2) {
+            textureX1 /= TEXTURE_WIDTH;//scale to 0 - 1 values
+            textureX2 /= TEXTURE_WIDTH;
+            textureY1 /= TEXTURE_HEIGHT;
+            textureY2 /= TEXTURE_HEIGHT;
+
+            final float[][] v = boxVertices;
+            final float[][] n = boxNormals;
+            final int[][] faces = boxFaces;
+
+            // The texture coordinates of the corners of a face, clockwise
+            final float[][] texture = {
+                {textureX1, textureY1},
+                {textureX1, textureY2},
+                {textureX2, textureY2},
+                {textureX2, textureY1}
+            };
+            // Every face is split into two triangles
+            final int[] corners = {0, 1, 2, 0, 2, 3};
+
+            VBO mesh = new VBO(definition);
+            VBOBuilder builder = mesh.getVBOBuilder(6 * corners.length);
+            for (int i = 5; i >= 0; i--) {//for all 6 faces
+              for (int corner : corners) {
+                float[] vt = v[faces[i][corner]];//choose the correct corner
+                addVertex(builder, vt[0], vt[1], vt[2], n[i][0], n[i][1], n[i][2], texture[corner][0], texture[corner][1]);
+              }
+            }
+            return upload(mesh, builder);
+        }
+
+        /**
+         * A cylinder along the z axis with radius 1 and height 1, the texture
+         * goes around the curved part. Made of triangles.
+         */
+        private VBO buildCylinder(int steps, float textureX1, float textureX2, float textureY1, float textureY2){
+            float delta = (textureX2 - textureX1) / (steps-1);//calculate size of texture step
+
+            // Also the points in the middle of the steps
+            double [][] circle = getCircle(2 * steps);
+            double [] cos = circle[0], sin = circle[1];
+
+            VBO mesh = new VBO(definition);
+            VBOBuilder builder = mesh.getVBOBuilder(12 * steps);
+            for(int i = 0; i<steps; i++){
+                double x = cos[2*i], y = sin[2*i];//find x,y, next x, next y, and the normal in the middle.
+                double xn = cos[2*i+2], yn = sin[2*i+2];
+                double nx = cos[2*i+1], ny = sin[2*i+1];
+
+                //find the correct part of the texture (texture is devided into steps to spread it over cylinder face) 
+                float s = (textureX1+delta*i)/TEXTURE_WIDTH, sn = (textureX1+delta*(i+1))/TEXTURE_WIDTH;
+                float t = textureY1/TEXTURE_HEIGHT, t2 = textureY2/TEXTURE_HEIGHT;
+
+                addVertex(builder, x, y, 0,     nx, ny, 0, s, t);
+                addVertex(builder, x, y, 1,     nx, ny, 0, s, t2);
+                addVertex(builder, xn, yn, 1,   nx, ny, 0, sn, t2);
+
+                addVertex(builder, x, y, 0,     nx, ny, 0, s, t);
+                addVertex(builder, xn, yn, 1,   nx, ny, 0, sn, t2);
+                addVertex(builder, xn, yn, 0,   nx, ny, 0, sn, t);
+            }
+
+            float dummyX = 650;//part of the texture without special stuff
+            float dummyX2 = 700;//part of the texture without special stuff
+
+            float diffX = (dummyX2 - dummyX);//calculate the difference
+            float diffY = (textureY2 - textureY1);//calculate the y difference
+
+            for(int i = 0; i<steps; i++){
+                double x = cos[2*i], y = sin[2*i];//find x,y next x and next y coordinates.
+                double xn = cos[2*i+2], yn = sin[2*i+2];
+
+                //select correct part of texture
+                double s = (dummyX+0.5*diffX+0.5*diffX*x)/TEXTURE_WIDTH, t = (textureY1+0.5*diffY+0.5*diffY*y)/TEXTURE_HEIGHT;
+                double sn = (dummyX+0.5*diffX+0.5*diffX*xn)/TEXTURE_WIDTH, tn = (textureY1+0.5*diffY+0.5*diffY*yn)/TEXTURE_HEIGHT;
+                double sm = (dummyX+0.5*diffX)/TEXTURE_WIDTH, tm = (textureY1+0.5*diffY)/TEXTURE_HEIGHT;
+
+                // The top, the normal goes from the midpoint to the top, so positive
+                addVertex(builder, x, y, 1,     0, 0, 1, s, t);
+                addVertex(builder, xn, yn, 1,   0, 0, 1, sn, tn);
+                addVertex(builder, 0, 0, 1,     0, 0, 1, sm, tm);
+
+                // The bottom, the normal goes from the midpoint to the bottom, so negative
+                addVertex(builder, x, y, 0,     0, 0, -1, s, t);
+                addVertex(builder, xn, yn, 0,   0, 0, -1, sn, tn);
+                addVertex(builder, 0, 0, 0,     0, 0, -1, sm, tm);
+            }
+            return upload(mesh, builder);
+        }
+
+        /*
+         * Different mesh for the torso, as it uses different order of textures (top and bottom have textures, instead of the curved part)
+         */
+        private VBO buildCylinderFront(int steps, float textureX1, float textureX2, float textureY1, float textureY2){
+            float diffX = (textureX2 - textureX1);//difference
+            float diffY = (textureY2 - textureY1);//difference
+
+            // Also the points in the middle of the steps
+            double [][] circle = getCircle(2 * steps);
+            double [] cos = circle[0], sin = circle[1];
+
+            VBO mesh = new VBO(definition);
+            VBOBuilder builder = mesh.getVBOBuilder(12 * steps);
+            for(int i = 0; i<steps; i++){//for all steps
+                double x = cos[2*i], y = sin[2*i];//calculate the x, y, next x and next y values
+                double xn = cos[2*i+2], yn = sin[2*i+2];
+
+                //find the position on the texture
+                double sm = (textureX1+diffX*0.5)/TEXTURE_WIDTH, tm = (textureY1 + diffY*0.5)/TEXTURE_HEIGHT;
+                double t = (textureY1 + diffY*0.5+ diffY*0.5*y)/TEXTURE_HEIGHT;
+                double tn = (textureY1 + diffY*0.5+ diffY*0.5*yn)/TEXTURE_HEIGHT;
+
+                // The top, normal goes from the midpoint to the top, +
+                addVertex(builder, x, y, 1,     0, 0, 1, (textureX1+diffX*0.5+diffX*0.5*x)/TEXTURE_WIDTH, t);
+                addVertex(builder, xn, yn, 1,   0, 0, 1, (textureX1+diffX*0.5+diffX*0.5*xn)/TEXTURE_WIDTH, tn);
+                addVertex(builder, 0, 0, 1,     0, 0, 1, sm, tm);//midpoint of top of cylinder
+
+                // The bottom, normal goes from the midpoint to the bottom, -, the texture is mirrored
+                addVertex(builder, x, y, 0,     0, 0, -1, (textureX1+diffX*0.5-diffX*0.5*x)/TEXTURE_WIDTH, t);
+                addVertex(builder, xn, yn, 0,   0, 0, -1, (textureX1+diffX*0.5-diffX*0.5*xn)/TEXTURE_WIDTH, tn);
+                addVertex(builder, 0, 0, 0,     0, 0, -1, sm, tm);//midpoint of bottom of cylinder
+            }
+
+            float delta = (textureX2 - textureX1) / (steps-1);//texture step increase
+
+            for(int i = 0; i<steps; i++){
+                double x = cos[2*i], y = sin[2*i];//calculate x,y, next x, next y, and the normal in between.
+                double xn = cos[2*i+2], yn = sin[2*i+2];
+                double nx = cos[2*i+1], ny = sin[2*i+1];
+
+                //get the location of the texture (only used for torso, so adding 130 gives us clean textures) 
+                float s = (textureX1+delta*i+130)/TEXTURE_WIDTH, sn = (textureX1+delta*(i+1)+130)/TEXTURE_WIDTH;
+                float t = textureY1/TEXTURE_HEIGHT, t2 = textureY2/TEXTURE_HEIGHT;
+
+                addVertex(builder, x, y, 0,     nx, ny, 0, s, t);
+                addVertex(builder, x, y, 1,     nx, ny, 0, s, t2);
+                addVertex(builder, xn, yn, 1,   nx, ny, 0, sn, t2);
+
+                addVertex(builder, x, y, 0,     nx, ny, 0, s, t);
+                addVertex(builder, xn, yn, 1,   nx, ny, 0, sn, t2);
+                addVertex(builder, xn, yn, 0,   nx, ny, 0, sn, t);
+            }
+            return upload(mesh, builder);
+        }
+
+        /**
+         * A sphere with radius 1 around the origin, like glutSolidSphere.
+         * It has no texture. Made of triangles.
+         */
+        private VBO buildSphere(int slices, int stacks) {
+            double [][] around = getCircle(slices);
+
+            // Half a circle from the top to the bottom
+            double [][] down = getCircle(2 * stacks);
+
+            VBO mesh = new VBO(definition);
+            VBOBuilder builder = mesh.getVBOBuilder(6 * slices * stacks);
+            for(int j = 0; j < stacks; j++) {
+                for(int i = 0; i < slices; i++) {
+                    // The corners of the piece
+                    int [][] corners = { {i, j}, {i, j+1}, {i+1, j+1}, {i+1, j} };
+                    for(int corner : new int [] {0, 1, 2, 0, 2, 3}) {
+                        int a = corners[corner][0], b = corners[corner][1];
+                        double x = around[0][a] * down[1][b];
+                        double y = around[1][a] * down[1][b];
+                        double z = down[0][b];
+                        addVertex(builder, x, y, z, x, y, z, 0, 0);
+                    }
+                }
+            }
+            return upload(mesh, builder);
+        }
+
+        /**
+         * A foot, a wedge in the unit cube like the stick feet of Robot.
+         * Made of a triangle strip.
+         */
+        private VBO buildFoot(float textureX, float textureX2, float textureY, float textureY2) {
+            float s = textureX/TEXTURE_WIDTH, s2 = textureX2/TEXTURE_WIDTH;
+            float t = textureY/TEXTURE_HEIGHT, t2 = textureY2/TEXTURE_HEIGHT;
+            float sqrt2 = (float)Math.sqrt(2);
+
+            VBO mesh = new VBO(definition);
+            VBOBuilder builder = mesh.getVBOBuilder(11);
+
+            // Left side
+            addVertex(builder, 0, 0, 0, 0, -1, 0,               s,  t);
+            addVertex(builder, 1, 0, 0, sqrt2, -1, sqrt2,       s2, t);
+            addVertex(builder, 0, 0, 1, sqrt2, -1, sqrt2,       s,  t2);
+
+            //Front quad
+            addVertex(builder, 1, 1, 0, sqrt2, 1, sqrt2,        s2, t);
+            addVertex(builder, 0, 1, 1, sqrt2-1, 1, sqrt2,      s,  t2);
+
+            //Right side
+            addVertex(builder, 0, 1, 0, -1, 1, 0,               s,  t2);
+
+            //Back side
+            addVertex(builder, 0, 0, 1, -1, 0, 0,               s,  t2);
+            addVertex(builder, 0, 0, 0, -1, 0, -1,             s,  t);
+            addVertex(builder, 0, 1, 0, -1, 0, -1,             s2, t);
+
+            //Bottom side
+            addVertex(builder, 1, 0, 0, 0, 0, -1,               s2, t);
+            addVertex(builder, 1, 1, 0, 0, 0, -1,               s2, t2);
+            return upload(mesh, builder);
+        }
     }
 }
@@ -0,0 +1,132 @@
+/**
+ * 2D simplex noise.
+ * The plane is divided into triangles instead of squares, so only three
+ * corners contribute to every point instead of four.
+ * Based on the description by Stefan Gustavson.
+ */
+class SimplexNoise implements NoiseBackend {
+    /**
+     * Skewing factors between the square and the triangle grid.
+     */
+    private static final double F2 = 0.5 * (Math.sqrt(3.0) - 1.0);
+    private static final double G2 = (3.0 - Math.sqrt(3.0)) / 6.0;
+
+    /**
+     * The gradients a lattice point can have.
+     */
+    private static final double[][] GRADIENTS = {
+        { 1, 1 }, {-1, 1 }, { 1,-1 }, {-1,-1 },
+        { 1, 0 }, {-1, 0 }, { 1, 0 }, {-1, 0 },
+        { 0, 1 }, { 0,-1 }, { 0, 1 }, { 0,-1 }
+    };
+
+    /**
+     * Scales the result to the range [-1,1]
+     */
+    private static final double SCALE = 70.0;
+
+    /**
+     * The permutation table, repeated twice so it can be indexed without wrapping.
+     */
+    private final int[] permutation = new int[512];
+
+    /**
+     * @param seed A number to base the noise on.
+     */
+    public SimplexNoise(int seed) {
+        PerlinNoise.shuffle(permutation, seed);
+    }
+
+    /**
+     * @return The contribution of a single corner of the triangle
+     */
+    private double corner(int x, int y, double dx, double dy) {
+        double t = 0.5 - dx * dx - dy * dy;
+        if (t < 0) {
+            return 0;
+        }
+        double[] gradient = GRADIENTS[permutation[permutation[x & 255] + (y & 255)] % 12];
+        t *= t;
+        return t * t * (gradient[0] * dx + gradient[1] * dy);
+    }
+
+    /**
+     * The contribution of a single corner of the triangle, and adds its derivative.
+     * @return The contribution of the corner
+     */
+    private double corner(int x, int y, double dx, double dy, double[] derivative) {
+        double t = 0.5 - dx * dx - dy * dy;
+        if (t < 0) {
+            return 0;
+        }
+        double[] gradient = GRADIENTS[permutation[permutation[x & 255] + (y & 255)] % 12];
+        double dot = gradient[0] * dx + gradient[1] * dy;
+        double t2 = t * t;
+        double t4 = t2 * t2;
+
+        // d(t^4 * dot) = -8 t^3 * (dx, dy) * dot + t^4 * gradient
+        derivative[0] += -8 * t2 * t * dx * dot + t4 * gradient[0];
+        derivative[1] += -8 * t2 * t * dy * dot + t4 * gradient[1];
+        return t4 * dot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y, double[] derivative) {
+        double skew = (x + y) * F2;
+        int i = (int) (Math.floor(x + skew));
+        int j = (int) (Math.floor(y + skew));
+
+        double unskew = (i + j) * G2;
+        double x0 = x - (i - unskew);
+        double y0 = y - (j - unskew);
+
+        int i1 = x0 > y0 ? 1 : 0;
+        int j1 = 1 - i1;
+
+        derivative[0] = 0;
+        derivative[1] = 0;
+        double value = corner(i, j, x0, y0, derivative) +
+            corner(i + i1, j + j1, x0 - i1 + G2, y0 - j1 + G2, derivative) +
+            corner(i + 1, j + 1, x0 - 1 + 2 * G2, y0 - 1 + 2 * G2, derivative);
+
+        derivative[0] *= SCALE;
+        derivative[1] *= SCALE;
+        return SCALE * value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y) {
+        // Find the cell in the skewed grid
+        double skew = (x + y) * F2;
+        int i = (int) (Math.floor(x + skew));
+        int j = (int) (Math.floor(y + skew));
+
+        // The distance to the first corner
+        double unskew = (i + j) * G2;
+        double x0 = x - (i - unskew);
+        double y0 = y - (j - unskew);
+
+        // Find out in which of the two triangles of the cell we are
+        int i1 = x0 > y0 ? 1 : 0;
+        int j1 = 1 - i1;
+
+        return SCALE * (
+            corner(i, j, x0, y0) +
+            corner(i + i1, j + j1, x0 - i1 + G2, y0 - j1 + G2) +
+            corner(i + 1, j + 1, x0 - 1 + 2 * G2, y0 - 1 + 2 * G2));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addRow(double[] xs, int n, double y, double amplitude, double[] sums, int offset) {
+        // The cells are skewed, so there are no corners to share along a row
+        for (int i = 0; i < n; i++) {
+            sums[offset + i] += noise(xs[i], y) * amplitude;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Value noise: random values on a lattice that are smoothly interpolated.
+ * The random values are generated by hashing the lattice coordinates.
+ */
+class ValueNoise implements NoiseBackend {
+    int seed;
+
+    /**
+     * @param newSeed A number to base the noise on.
+     */
+    public ValueNoise(int newSeed) {
+        seed = newSeed;
+    }
+
+    /**
+     * This function generates a pseudo-random number based on: x, y and the seed.
+     * It is based on prime magic.
+     * @return a value in the range [-1,1]
+     */
+    private double random2d(int x, int y) {
+        int n = x + y * 57;
+        n *= seed;
+        n ^= n << 13;
+        int nn = (n * (n * n * 60493 + 19990303) + 1376312589) & 0x7fffffff;
+        return 1.0 - ((double) nn / 1073741824.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y) {
+        // Get random values for the four corners
+        int xFloored = (int) (Math.floor(x));
+        int yFloored = (int) (Math.floor(y));
+        double topLeft = random2d(xFloored, yFloored);
+        double topRight = random2d(xFloored + 1, yFloored);
+        double bottomLeft = random2d(xFloored, yFloored + 1);
+        double bottomRight = random2d(xFloored + 1, yFloored + 1);
+
+        // Interpolate the four corners.
+        double top = PerlinNoise.interpolate(topLeft, topRight, x - xFloored);
+        double bottom = PerlinNoise.interpolate(bottomLeft, bottomRight, x - xFloored);
+        return PerlinNoise.interpolate(top, bottom, y - yFloored);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double noise(double x, double y, double[] derivative) {
+        int xFloored = (int) (Math.floor(x));
+        int yFloored = (int) (Math.floor(y));
+        double topLeft = random2d(xFloored, yFloored);
+        double topRight = random2d(xFloored + 1, yFloored);
+        double bottomLeft = random2d(xFloored, yFloored + 1);
+        double bottomRight = random2d(xFloored + 1, yFloored + 1);
+
+        double xFade = PerlinNoise.fade(x - xFloored);
+        double yFade = PerlinNoise.fade(y - yFloored);
+        double top = PerlinNoise.lerp(topLeft, topRight, xFade);
+        double bottom = PerlinNoise.lerp(bottomLeft, bottomRight, xFade);
+
+        // Chain rule on the two interpolation steps
+        double dTop = (topRight - topLeft) * PerlinNoise.fadeDerivative(x - xFloored);
+        double dBottom = (bottomRight - bottomLeft) * PerlinNoise.fadeDerivative(x - xFloored);
+        derivative[0] = PerlinNoise.lerp(dTop, dBottom, yFade);
+        derivative[1] = (bottom - top) * PerlinNoise.fadeDerivative(y - yFloored);
+
+        return PerlinNoise.lerp(top, bottom, yFade);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addRow(double[] xs, int n, double y, double amplitude, double[] sums, int offset) {
+        // Let the vector kernel do as much of the row as it can
+        int start = 0;
+        NoiseKernel kernel = PerlinNoise.getKernel();
+        if (kernel != null) {
+            start = kernel.addValueNoiseRow(seed, xs, n, y, amplitude, sums, offset);
+        }
+
+        int yFloored = (int) (Math.floor(y));
+        double yFade = PerlinNoise.fade(y - yFloored);
+
+        // The corners of the cell that is currently being sampled
+        int cellX = Integer.MIN_VALUE;
+        double topLeft = 0, topRight = 0, bottomLeft = 0, bottomRight = 0;
+
+        for (int i = start; i < n; i++) {
+            int xFloored = (int) (Math.floor(xs[i]));
+
+            // Only hash the corners that were not used by the previous sample
+            if (xFloored == cellX + 1) {
+                topLeft = topRight;
+                bottomLeft = bottomRight;
+                topRight = random2d(xFloored + 1, yFloored);
+                bottomRight = random2d(xFloored + 1, yFloored + 1);
+            } else if (xFloored != cellX) {
+                topLeft = random2d(xFloored, yFloored);
+                topRight = random2d(xFloored + 1, yFloored);
+                bottomLeft = random2d(xFloored, yFloored + 1);
+                bottomRight = random2d(xFloored + 1, yFloored + 1);
+            }
+            cellX = xFloored;
+
+            double xFade = PerlinNoise.fade(xs[i] - xFloored);
+            double top = PerlinNoise.lerp(topLeft, topRight, xFade);
+            double bottom = PerlinNoise.lerp(bottomLeft, bottomRight, xFade);
+            sums[offset + i] += PerlinNoise.lerp(top, bottom, yFade) * amplitude;
+        }
+    }
+}